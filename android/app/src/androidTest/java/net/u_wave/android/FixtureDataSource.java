@@ -0,0 +1,54 @@
+package net.u_wave.android;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/** Reads media from the fixture server instead of the URL the stream was extracted with. */
+class FixtureDataSource implements DataSource {
+  private final DataSource upstream;
+  private final FixtureServer server;
+
+  FixtureDataSource(DataSource upstream, FixtureServer server) {
+    this.upstream = upstream;
+    this.server = server;
+  }
+
+  static DataSource.Factory factory(DataSource.Factory upstream, FixtureServer server) {
+    return () -> new FixtureDataSource(upstream.createDataSource(), server);
+  }
+
+  @Override
+  public void addTransferListener(TransferListener transferListener) {
+    upstream.addTransferListener(transferListener);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    return upstream.open(dataSpec.withUri(server.mediaUri(dataSpec.uri)));
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    return upstream.read(buffer, offset, readLength);
+  }
+
+  @Override
+  public Uri getUri() {
+    return upstream.getUri();
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return upstream.getResponseHeaders();
+  }
+
+  @Override
+  public void close() throws IOException {
+    upstream.close();
+  }
+}
@@ -0,0 +1,49 @@
+package net.u_wave.android;
+
+import java.io.IOException;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/** Sends NewPipe's requests to the fixture server, or records the real responses as fixtures. */
+class FixtureInterceptor implements Interceptor {
+  private final FixtureServer server;
+  private final FixtureStore recordTo;
+
+  private FixtureInterceptor(FixtureServer server, FixtureStore recordTo) {
+    this.server = server;
+    this.recordTo = recordTo;
+  }
+
+  static FixtureInterceptor replay(FixtureServer server) {
+    return new FixtureInterceptor(server, null);
+  }
+
+  static FixtureInterceptor record(FixtureStore store) {
+    return new FixtureInterceptor(null, store);
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    final Request request = chain.request();
+    if (server != null) {
+      return chain.proceed(request.newBuilder().url(server.extractUrl(request.url())).build());
+    }
+
+    final Response response = chain.proceed(request);
+    final ResponseBody body = response.body();
+    if (body == null) {
+      return response;
+    }
+    final MediaType contentType = body.contentType();
+    final byte[] bytes = body.bytes();
+    recordTo.put(
+        request.method(),
+        request.url().toString(),
+        new FixtureStore.Fixture(
+            response.code(), contentType != null ? contentType.toString() : null, bytes));
+    return response.newBuilder().body(ResponseBody.create(contentType, bytes)).build();
+  }
+}
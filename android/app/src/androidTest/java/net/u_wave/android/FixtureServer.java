@@ -0,0 +1,123 @@
+package net.u_wave.android;
+
+import android.net.Uri;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * A local stand-in for the sites NewPipe extracts from and the CDNs media is streamed from.
+ * Extraction requests are answered from a {@link FixtureStore}; media requests get a generated
+ * audio file. Every response goes through a {@link NetworkProfile}.
+ */
+class FixtureServer {
+  private static final String EXTRACT_PATH = "/extract";
+  private static final String MEDIA_PATH = "/media";
+
+  // 8kHz 16 bit mono PCM is 128kbps, about what the preferred YouTube audio streams use.
+  private static final int SAMPLE_RATE = 8000;
+  private static final int MEDIA_SECONDS = 30;
+
+  private final MockWebServer server = new MockWebServer();
+  private final FixtureStore store;
+  private final NetworkProfile profile;
+  // Seeded, so that a profile injects the same errors on every run.
+  private final Random random = new Random(1);
+  private final byte[] media = createWav(SAMPLE_RATE, MEDIA_SECONDS);
+
+  FixtureServer(FixtureStore store, NetworkProfile profile) {
+    this.store = store;
+    this.profile = profile;
+    server.setDispatcher(
+        new Dispatcher() {
+          @Override
+          public MockResponse dispatch(RecordedRequest request) {
+            return respond(request);
+          }
+        });
+  }
+
+  void start() throws IOException {
+    server.start();
+  }
+
+  void shutdown() throws IOException {
+    server.shutdown();
+  }
+
+  /** Where to send an extraction request for the given URL instead. */
+  HttpUrl extractUrl(HttpUrl original) {
+    return server.url(EXTRACT_PATH).newBuilder().addQueryParameter("url", original.toString()).build();
+  }
+
+  /** Where to send a media request for the given URL instead. */
+  Uri mediaUri(Uri original) {
+    return Uri.parse(
+        server.url(MEDIA_PATH).newBuilder().addQueryParameter("url", original.toString()).toString());
+  }
+
+  private MockResponse respond(RecordedRequest request) {
+    final HttpUrl url = request.getRequestUrl();
+    final String original = url.queryParameter("url");
+    if (original == null) {
+      return new MockResponse().setResponseCode(400);
+    }
+
+    final MockResponse failure = profile.maybeFail(random);
+    if (failure != null) {
+      return failure;
+    }
+
+    switch (url.encodedPath()) {
+      case EXTRACT_PATH:
+        final FixtureStore.Fixture fixture;
+        try {
+          fixture = store.get(request.getMethod(), original);
+        } catch (IOException err) {
+          return new MockResponse().setResponseCode(500).setBody(String.valueOf(err));
+        }
+        if (fixture == null) {
+          return new MockResponse().setResponseCode(404).setBody("No fixture for " + original);
+        }
+        final MockResponse response =
+            new MockResponse()
+                .setResponseCode(fixture.code)
+                .setBody(new Buffer().write(fixture.body));
+        if (fixture.contentType != null) {
+          response.setHeader("Content-Type", fixture.contentType);
+        }
+        return profile.apply(response);
+      case MEDIA_PATH:
+        return profile.apply(
+            new MockResponse()
+                .setHeader("Content-Type", "audio/wav")
+                .setBody(new Buffer().write(media)));
+      default:
+        return new MockResponse().setResponseCode(404);
+    }
+  }
+
+  /** A WAV file of silence. */
+  private static byte[] createWav(int sampleRate, int seconds) {
+    final int dataSize = sampleRate * 2 * seconds;
+    final ByteBuffer wav = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+    wav.put(new byte[] {'R', 'I', 'F', 'F'}).putInt(36 + dataSize);
+    wav.put(new byte[] {'W', 'A', 'V', 'E'});
+    wav.put(new byte[] {'f', 'm', 't', ' '}).putInt(16);
+    wav.putShort((short) 1); // PCM
+    wav.putShort((short) 1); // mono
+    wav.putInt(sampleRate);
+    wav.putInt(sampleRate * 2); // byte rate
+    wav.putShort((short) 2); // block align
+    wav.putShort((short) 16); // bits per sample
+    wav.put(new byte[] {'d', 'a', 't', 'a'}).putInt(dataSize);
+    return wav.array();
+  }
+}
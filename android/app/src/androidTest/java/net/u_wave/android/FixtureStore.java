@@ -0,0 +1,140 @@
+package net.u_wave.android;
+
+import android.content.res.AssetManager;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Recorded HTTP responses, keyed by request method and URL. Responses recorded on the device are
+ * written to a directory; checked in fixtures are read from the test APK's assets.
+ *
+ * <p>Each fixture is one file: the status code, content type and original URL on separate lines,
+ * an empty line, and the body.
+ */
+class FixtureStore {
+  private static final String ASSETS_DIR = "fixtures";
+
+  private final File directory;
+  private final AssetManager assets;
+
+  FixtureStore(File directory, AssetManager assets) {
+    this.directory = directory;
+    this.assets = assets;
+  }
+
+  static class Fixture {
+    final int code;
+    final String contentType;
+    final byte[] body;
+
+    Fixture(int code, String contentType, byte[] body) {
+      this.code = code;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+
+  boolean isEmpty() {
+    if (hasFixtures(directory.list())) {
+      return false;
+    }
+    try {
+      return !hasFixtures(assets.list(ASSETS_DIR));
+    } catch (IOException err) {
+      return true;
+    }
+  }
+
+  private static boolean hasFixtures(String[] names) {
+    if (names != null) {
+      for (String name : names) {
+        if (name.endsWith(".http")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  Fixture get(String method, String url) throws IOException {
+    final String name = key(method, url);
+    final File file = new File(directory, name);
+    if (file.exists()) {
+      try (InputStream input = new FileInputStream(file)) {
+        return parse(readAll(input));
+      }
+    }
+    try (InputStream input = assets.open(ASSETS_DIR + "/" + name)) {
+      return parse(readAll(input));
+    } catch (IOException err) {
+      return null;
+    }
+  }
+
+  void put(String method, String url, Fixture fixture) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format("Could not create %s", directory));
+    }
+    final String header =
+        String.format(
+            "%d\n%s\n%s\n\n",
+            fixture.code, fixture.contentType != null ? fixture.contentType : "", url);
+    try (OutputStream output = new FileOutputStream(new File(directory, key(method, url)))) {
+      output.write(header.getBytes(StandardCharsets.UTF_8));
+      output.write(fixture.body);
+    }
+  }
+
+  private static Fixture parse(byte[] data) throws IOException {
+    final int[] lineEnds = new int[4];
+    int line = 0;
+    for (int i = 0; i < data.length && line < lineEnds.length; i++) {
+      if (data[i] == '\n') {
+        lineEnds[line++] = i;
+      }
+    }
+    if (line < lineEnds.length) {
+      throw new IOException("Truncated fixture");
+    }
+
+    final int code = Integer.parseInt(new String(data, 0, lineEnds[0], StandardCharsets.UTF_8));
+    final String contentType =
+        new String(data, lineEnds[0] + 1, lineEnds[1] - lineEnds[0] - 1, StandardCharsets.UTF_8);
+    final int bodyStart = lineEnds[3] + 1;
+    final byte[] body = new byte[data.length - bodyStart];
+    System.arraycopy(data, bodyStart, body, 0, body.length);
+    return new Fixture(code, contentType.isEmpty() ? null : contentType, body);
+  }
+
+  private static byte[] readAll(InputStream input) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = input.read(buffer)) != -1) {
+      output.write(buffer, 0, read);
+    }
+    return output.toByteArray();
+  }
+
+  private static String key(String method, String url) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      final byte[] hash = digest.digest((method + " " + url).getBytes(StandardCharsets.UTF_8));
+      final StringBuilder name = new StringBuilder();
+      for (byte b : hash) {
+        name.append(String.format("%02x", b));
+      }
+      return name.append(".http").toString();
+    } catch (NoSuchAlgorithmException err) {
+      throw new IllegalStateException(err);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package net.u_wave.android;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/** Latency, bandwidth and failure rate applied to every response from the fixture server. */
+class NetworkProfile {
+  static final NetworkProfile LAN = new NetworkProfile("lan", 0, 0, 0);
+  static final NetworkProfile WIFI = new NetworkProfile("wifi", 20, 2_500_000, 0);
+  static final NetworkProfile LTE = new NetworkProfile("4g", 60, 1_000_000, 0);
+  static final NetworkProfile EDGE = new NetworkProfile("3g", 200, 100_000, 0);
+  static final NetworkProfile FLAKY = new NetworkProfile("flaky", 60, 1_000_000, 0.1);
+
+  static final NetworkProfile[] ALL = {LAN, WIFI, LTE, EDGE, FLAKY};
+
+  final String name;
+  /** Time to first byte of each response. */
+  final long latencyMillis;
+  /** Body bandwidth, or 0 for unlimited. */
+  final long bytesPerSecond;
+  /** Fraction of requests that fail, half with a 503 and half by dropping the connection. */
+  final double errorRate;
+
+  NetworkProfile(String name, long latencyMillis, long bytesPerSecond, double errorRate) {
+    this.name = name;
+    this.latencyMillis = latencyMillis;
+    this.bytesPerSecond = bytesPerSecond;
+    this.errorRate = errorRate;
+  }
+
+  static NetworkProfile byName(String name) {
+    for (NetworkProfile profile : ALL) {
+      if (profile.name.equals(name)) {
+        return profile;
+      }
+    }
+    throw new IllegalArgumentException(String.format("Unknown network profile \"%s\"", name));
+  }
+
+  /** A failure to respond with instead of the real response, or null. */
+  MockResponse maybeFail(Random random) {
+    if (errorRate == 0 || random.nextDouble() >= errorRate) {
+      return null;
+    }
+    if (random.nextBoolean()) {
+      return apply(new MockResponse().setResponseCode(503));
+    }
+    return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START);
+  }
+
+  MockResponse apply(MockResponse response) {
+    if (latencyMillis > 0) {
+      response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+    if (bytesPerSecond > 0) {
+      // Ten chunks a second keeps the stream smooth without waking up too often.
+      response.throttleBody(bytesPerSecond / 10, 100, TimeUnit.MILLISECONDS);
+    }
+    return response;
+  }
+}
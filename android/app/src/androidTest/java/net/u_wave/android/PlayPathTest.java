@@ -0,0 +1,226 @@
+package net.u_wave.android;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.ServiceTestRule;
+import com.google.android.exoplayer2.upstream.DataSource;
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.OkHttpClient;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.schabi.newpipe.extractor.NewPipe;
+import org.schabi.newpipe.extractor.localization.Localization;
+
+/**
+ * Measures how long it takes from a play call until playback is ready, per phase, against the
+ * fixture server under each network profile. Runs the same path as PlayerPlugin's "play" method,
+ * from PlaybackService.play() onwards.
+ *
+ * <p>Fixtures are recorded from the live sites once, and pulled into the test assets:
+ *
+ * <pre>
+ * adb shell am instrument -w -e fixtures record \
+ *   -e class net.u_wave.android.PlayPathTest \
+ *   net.u_wave.android.test/androidx.test.runner.AndroidJUnitRunner
+ * adb pull /sdcard/Android/data/net.u_wave.android/files/fixtures \
+ *   android/app/src/androidTest/assets/
+ * </pre>
+ *
+ * <p>Other arguments: {@code -e entries "YouTube|https://youtube.com/watch?v=…,SoundCloud|…"},
+ * {@code -e profiles lan,3g} and {@code -e runs 5}. Results are logged, reported as
+ * instrumentation status, and written to files/play-path/report.json.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlayPathTest {
+  private static final String TAG = "PlayPathTest";
+  private static final String DEFAULT_ENTRIES =
+      "YouTube|https://youtube.com/watch?v=dQw4w9WgXcQ,"
+          + "SoundCloud|https://soundcloud.com/forss/flickermood";
+  private static final long TIMEOUT_SECONDS = 60;
+
+  @Rule public final ServiceTestRule serviceRule = new ServiceTestRule();
+
+  private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+  private final Context context = instrumentation.getTargetContext();
+  private final Bundle arguments = InstrumentationRegistry.getArguments();
+
+  @Test
+  public void playPath() throws Exception {
+    final PlaybackService service =
+        ((PlaybackService.LocalBinder)
+                serviceRule.bindService(new Intent(context, PlaybackService.class)))
+            .getService();
+    final FixtureStore store =
+        new FixtureStore(
+            new File(context.getExternalFilesDir(null), "fixtures"),
+            instrumentation.getContext().getAssets());
+    final boolean record = "record".equals(arguments.getString("fixtures"));
+    final int runs = Integer.parseInt(arguments.getString("runs", "3"));
+    final List<String[]> entries = new ArrayList<>();
+    for (String entry : arguments.getString("entries", DEFAULT_ENTRIES).split(",")) {
+      entries.add(entry.split("\\|", 2));
+    }
+
+    // Extraction responses are mostly uncacheable, but make sure runs don't share a cache.
+    final OkHttpClient baseClient = HttpClients.getShared().newBuilder().cache(null).build();
+    final DataSource.Factory mediaFactory = service.dataSourceFactory;
+    final JSONObject report = new JSONObject();
+
+    if (record) {
+      NewPipe.init(
+          new OkHttpDownloader(
+              baseClient.newBuilder().addInterceptor(FixtureInterceptor.record(store)).build()),
+          new Localization("en", "GB"));
+      report.put("live", measure(service, entries, 1, true));
+      writeReport(report);
+      return;
+    }
+
+    assumeFalse("No fixtures, record them first (see PlayPathTest)", store.isEmpty());
+
+    final List<NetworkProfile> profiles = new ArrayList<>();
+    final String profileNames = arguments.getString("profiles");
+    if (profileNames != null) {
+      for (String name : profileNames.split(",")) {
+        profiles.add(NetworkProfile.byName(name));
+      }
+    } else {
+      Collections.addAll(profiles, NetworkProfile.ALL);
+    }
+
+    try {
+      for (NetworkProfile profile : profiles) {
+        final FixtureServer server = new FixtureServer(store, profile);
+        server.start();
+        try {
+          NewPipe.init(
+              new OkHttpDownloader(
+                  baseClient
+                      .newBuilder()
+                      .addInterceptor(FixtureInterceptor.replay(server))
+                      .build()),
+              new Localization("en", "GB"));
+          service.dataSourceFactory = FixtureDataSource.factory(mediaFactory, server);
+          report.put(profile.name, measure(service, entries, runs, profile.errorRate == 0));
+        } finally {
+          server.shutdown();
+        }
+      }
+    } finally {
+      service.dataSourceFactory = mediaFactory;
+    }
+    writeReport(report);
+  }
+
+  private JSONObject measure(
+      PlaybackService service, List<String[]> entries, int runs, boolean mustSucceed)
+      throws InterruptedException, JSONException {
+    final JSONObject results = new JSONObject();
+    for (String[] entry : entries) {
+      final JSONArray entryResults = new JSONArray();
+      for (int run = 0; run < runs; run++) {
+        final JSONObject result = playOnce(service, entry[0], entry[1]);
+        if (mustSucceed) {
+          assertTrue(
+              String.format("Playing %s failed: %s", entry[1], result.optString("error")),
+              result.has("total") && result.getLong("total") >= 0);
+        }
+        entryResults.put(result);
+      }
+      results.put(entry[1], entryResults);
+    }
+    return results;
+  }
+
+  private JSONObject playOnce(PlaybackService service, String sourceName, String sourceUrl)
+      throws InterruptedException, JSONException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<String> error = new AtomicReference<>();
+    final Result result =
+        new Result() {
+          @Override
+          public void success(Object value) {
+            done.countDown();
+          }
+
+          @Override
+          public void error(String code, String message, Object details) {
+            error.set(String.format("%s: %s", code, message));
+            done.countDown();
+          }
+
+          @Override
+          public void notImplemented() {
+            error.set("notImplemented");
+            done.countDown();
+          }
+        };
+
+    // Video needs a Flutter texture registry, so measure the audio path.
+    final PlaybackAction.Entry entry =
+        new PlaybackAction.Entry(sourceName, sourceUrl, 0, PlaybackAction.PlaybackType.AUDIO_ONLY);
+    instrumentation.runOnMainSync(() -> service.play(entry, null, result));
+    if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      error.set("Timed out");
+    }
+
+    final AtomicReference<PlaybackTimings> timings = new AtomicReference<>();
+    instrumentation.runOnMainSync(
+        () -> {
+          final PlaybackAction playback = service.getCurrentPlayback();
+          if (playback != null) {
+            timings.set(playback.getTimings());
+          }
+          service.stopPlayback();
+        });
+
+    final JSONObject json = new JSONObject();
+    if (timings.get() != null) {
+      for (Map.Entry<String, Long> phase : timings.get().toMap().entrySet()) {
+        json.put(phase.getKey(), phase.getValue());
+      }
+    }
+    if (error.get() != null) {
+      json.put("error", error.get());
+    }
+    Log.i(TAG, String.format("%s: %s %s", sourceUrl, timings.get(), error.get()));
+    return json;
+  }
+
+  private void writeReport(JSONObject report) throws IOException, JSONException {
+    final Bundle status = new Bundle();
+    status.putString("report", report.toString());
+    instrumentation.sendStatus(0, status);
+
+    final File directory = new File(context.getExternalFilesDir(null), "play-path");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format("Could not create %s", directory));
+    }
+    try (Writer writer = new FileWriter(new File(directory, "report.json"))) {
+      writer.write(report.toString(2));
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package net.u_wave.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Counts the bytes that native code moves over the network this month, per category and per kind
+ * of network, and decides how much playback holds back to stay within a budget for metered data.
+ *
+ * <p>Counting is a couple of atomic adds, as it happens for every read of a media stream. The
+ * counters are saved to preferences a while after they change.
+ */
+final class DataUsage {
+  private static final String PREFERENCES = "net.u_wave.android.DataUsage";
+  private static final long SAVE_DELAY_MS = 30_000;
+
+  /**
+   * What the bytes were for. Requests on the shared OkHttpClient can be tagged with one, using
+   * {@link Request.Builder#tag(Object)}.
+   */
+  enum Category {
+    MEDIA("media"),
+    EXTRACTION("extraction"),
+    API("api"),
+    SOCKET("socket");
+
+    final String key;
+
+    Category(String key) {
+      this.key = key;
+    }
+  }
+
+  private static final int UNMETERED = 0;
+  private static final int METERED = 1;
+  private static final String[] NETWORK_KEYS = {"unmetered", "metered"};
+
+  /** No limits. */
+  static final int SAVER_OFF = 0;
+  /** Cheapest streams, no hedged requests, and a short buffer. */
+  static final int SAVER_REDUCED = 1;
+  /** Audio only, on top of the above. */
+  static final int SAVER_AUDIO_ONLY = 2;
+  private static final String[] SAVER_KEYS = {"off", "reduced", "audioOnly"};
+  // Part of the budget after which streams are reduced.
+  private static final double REDUCE_AT = 0.8;
+
+  private static DataUsage instance;
+
+  static synchronized void init(Context context) {
+    if (instance == null) {
+      instance = new DataUsage(context.getApplicationContext());
+    }
+  }
+
+  static DataUsage getInstance() {
+    return instance;
+  }
+
+  private final Context context;
+  private final SharedPreferences preferences;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final AtomicLongArray bytes =
+      new AtomicLongArray(Category.values().length * NETWORK_KEYS.length);
+  private final AtomicBoolean savePending = new AtomicBoolean(false);
+  private volatile int network = UNMETERED;
+  // Metered bytes allowed per month, or 0 for no budget.
+  private volatile long budget;
+  // The month the counters are for, as yyyy-MM.
+  private String period;
+
+  private final Runnable save = this::save;
+
+  private DataUsage(Context context) {
+    this.context = context;
+    preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    budget = preferences.getLong("budget", 0);
+    period = preferences.getString("period", currentPeriod());
+    for (Category category : Category.values()) {
+      for (int network = 0; network < NETWORK_KEYS.length; network++) {
+        bytes.set(index(category, network), preferences.getLong(key(category, network), 0));
+      }
+    }
+
+    updateNetwork();
+    context.registerReceiver(
+        new BroadcastReceiver() {
+          @Override
+          public void onReceive(Context context, Intent intent) {
+            updateNetwork();
+          }
+        },
+        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+
+  private static int index(Category category, int network) {
+    return category.ordinal() * NETWORK_KEYS.length + network;
+  }
+
+  private static String key(Category category, int network) {
+    return "bytes." + category.key + "." + NETWORK_KEYS[network];
+  }
+
+  private static String currentPeriod() {
+    return new SimpleDateFormat("yyyy-MM", Locale.ROOT).format(new Date());
+  }
+
+  private void updateNetwork() {
+    final ConnectivityManager connectivity =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    network = connectivity != null && connectivity.isActiveNetworkMetered() ? METERED : UNMETERED;
+  }
+
+  /** Count bytes that went over the current network. */
+  void add(Category category, long count) {
+    if (count <= 0) {
+      return;
+    }
+    bytes.addAndGet(index(category, network), count);
+    if (savePending.compareAndSet(false, true)) {
+      handler.postDelayed(save, SAVE_DELAY_MS);
+    }
+  }
+
+  /** Start a new month if it is one. */
+  private synchronized void checkPeriod() {
+    final String current = currentPeriod();
+    if (!current.equals(period)) {
+      period = current;
+      for (int i = 0; i < bytes.length(); i++) {
+        bytes.set(i, 0);
+      }
+    }
+  }
+
+  private void save() {
+    savePending.set(false);
+    checkPeriod();
+    final SharedPreferences.Editor editor = preferences.edit();
+    editor.putString("period", period);
+    editor.putLong("budget", budget);
+    for (Category category : Category.values()) {
+      for (int network = 0; network < NETWORK_KEYS.length; network++) {
+        editor.putLong(key(category, network), bytes.get(index(category, network)));
+      }
+    }
+    editor.apply();
+  }
+
+  void setBudget(long budget) {
+    this.budget = Math.max(0, budget);
+    handler.removeCallbacks(save);
+    handler.post(save);
+  }
+
+  private long getMeteredBytes() {
+    long total = 0;
+    for (Category category : Category.values()) {
+      total += bytes.get(index(category, METERED));
+    }
+    return total;
+  }
+
+  /** How much playback should hold back. Only ever limits playback on metered networks. */
+  int getSaverLevel() {
+    checkPeriod();
+    final long budget = this.budget;
+    if (network != METERED || budget <= 0) {
+      return SAVER_OFF;
+    }
+    final long used = getMeteredBytes();
+    if (used >= budget) {
+      return SAVER_AUDIO_ONLY;
+    }
+    if (used >= budget * REDUCE_AT) {
+      return SAVER_REDUCED;
+    }
+    return SAVER_OFF;
+  }
+
+  Map<String, Object> toMap() {
+    checkPeriod();
+    final Map<String, Object> map = new HashMap<>();
+    final Map<String, Object> categories = new HashMap<>();
+    for (Category category : Category.values()) {
+      final Map<String, Object> networks = new HashMap<>();
+      for (int network = 0; network < NETWORK_KEYS.length; network++) {
+        networks.put(NETWORK_KEYS[network], bytes.get(index(category, network)));
+      }
+      categories.put(category.key, networks);
+    }
+    map.put("bytes", categories);
+    map.put("period", period);
+    map.put("budget", budget);
+    map.put("metered", network == METERED);
+    map.put("saver", SAVER_KEYS[getSaverLevel()]);
+    return map;
+  }
+
+  /** Counts the network reads of ExoPlayer data sources, but not reads from caches. */
+  TransferListener getTransferListener(Category category) {
+    return new TransferListener() {
+      @Override
+      public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+
+      @Override
+      public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+
+      @Override
+      public void onBytesTransferred(
+          DataSource source, DataSpec dataSpec, boolean isNetwork, int bytesTransferred) {
+        if (isNetwork) add(category, bytesTransferred);
+      }
+
+      @Override
+      public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {}
+    };
+  }
+
+  /**
+   * Counts requests that go over the network as a network interceptor, so responses from the
+   * disk cache are not counted, and compressed bodies count at their compressed size. Requests
+   * count as {@link Category#API} unless they are tagged with another category.
+   */
+  Interceptor getInterceptor() {
+    return (chain) -> {
+      final Request request = chain.request();
+      final Object tag = request.tag();
+      final Category category = tag instanceof Category ? (Category) tag : Category.API;
+
+      final RequestBody requestBody = request.body();
+      add(
+          category,
+          headerBytes(request.headers())
+              + (requestBody != null ? Math.max(0, requestBody.contentLength()) : 0));
+
+      final Response response = chain.proceed(request);
+      add(category, headerBytes(response.headers()));
+      final ResponseBody body = response.body();
+      // Socket upgrades have no body, and their frames are counted separately.
+      if (body == null || response.code() == 101) {
+        return response;
+      }
+      return response.newBuilder().body(new CountingBody(body, category)).build();
+    };
+  }
+
+  /** Headers at their HTTP/1.1 size, which is close enough for HTTP/2 as well. */
+  private static long headerBytes(Headers headers) {
+    long size = 0;
+    for (int i = 0; i < headers.size(); i++) {
+      size += headers.name(i).length() + headers.value(i).length() + 4;
+    }
+    return size;
+  }
+
+  private class CountingBody extends ResponseBody {
+    private final ResponseBody body;
+    private final BufferedSource source;
+
+    CountingBody(ResponseBody body, Category category) {
+      this.body = body;
+      source =
+          Okio.buffer(
+              new ForwardingSource(body.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                  final long read = super.read(sink, byteCount);
+                  add(category, read);
+                  return read;
+                }
+              });
+    }
+
+    @Override
+    public MediaType contentType() {
+      return body.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+      return body.contentLength();
+    }
+
+    @Override
+    public BufferedSource source() {
+      return source;
+    }
+  }
+}
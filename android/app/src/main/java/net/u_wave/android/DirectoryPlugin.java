@@ -0,0 +1,112 @@
+package net.u_wave.android;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.EventChannel.EventSink;
+import io.flutter.plugin.common.EventChannel.StreamHandler;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import net.u_wave.client.DirectoryEvent;
+import net.u_wave.client.ServerDirectory;
+
+/**
+ * Streams the server directory to Dart. Listening starts a refresh: the cached server list, the
+ * fresh one, and then each server's probe result, as JSON strings. The stream ends when every
+ * server has been probed.
+ */
+public class DirectoryPlugin implements FlutterPlugin, StreamHandler {
+  private static final String EVENT_CHANNEL_NAME = "u-wave.net/directory";
+
+  private static final String TAG = "DirectoryPlugin";
+
+  private final Handler mainThread = new Handler(Looper.getMainLooper());
+  private EventChannel eventChannel;
+  private ServerDirectory directory;
+  private EventSink sink;
+  private Closeable refresh;
+
+  /* FlutterPlugin */
+  @Override
+  public void onAttachedToEngine(FlutterPluginBinding binding) {
+    HttpClients.init(binding.getApplicationContext());
+    directory = new ServerDirectory(HttpClients.getShared());
+    eventChannel =
+        new EventChannel(binding.getFlutterEngine().getDartExecutor(), EVENT_CHANNEL_NAME);
+    eventChannel.setStreamHandler(this);
+  }
+
+  @Override
+  public void onDetachedFromEngine(FlutterPluginBinding binding) {
+    eventChannel.setStreamHandler(null);
+    stopRefresh();
+    directory.close();
+  }
+
+  private void stopRefresh() {
+    sink = null;
+    if (refresh != null) {
+      try {
+        refresh.close();
+      } catch (IOException err) {
+        // Only cancels a coroutine, does not throw.
+      }
+      refresh = null;
+    }
+  }
+
+  /* StreamHandler */
+  @Override
+  public void onListen(Object arguments, EventSink events) {
+    String url = null;
+    if (arguments instanceof Map) {
+      url = (String) ((Map<?, ?>) arguments).get("url");
+    }
+    if (url == null) {
+      url = ServerDirectory.DEFAULT_ANNOUNCE_URL;
+    }
+
+    stopRefresh();
+    sink = events;
+    refresh =
+        directory.refresh(
+            url,
+            new ServerDirectory.Listener() {
+              // Called on a background thread. Events for a refresh that was replaced or
+              // cancelled in the mean time are dropped.
+              @Override
+              public void onEvent(DirectoryEvent event) {
+                final String json = event.toJson().toString();
+                mainThread.post(
+                    () -> {
+                      if (sink == events) events.success(json);
+                    });
+              }
+
+              @Override
+              public void onError(Throwable err) {
+                Log.w(TAG, "Could not refresh the server directory", err);
+                mainThread.post(
+                    () -> {
+                      if (sink == events) events.error("DirectoryError", err.getMessage(), null);
+                    });
+              }
+
+              @Override
+              public void onDone() {
+                mainThread.post(
+                    () -> {
+                      if (sink == events) events.endOfStream();
+                    });
+              }
+            });
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    stopRefresh();
+  }
+}
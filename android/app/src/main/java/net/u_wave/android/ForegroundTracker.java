@@ -0,0 +1,91 @@
+package net.u_wave.android;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks whether any of our activities is visible, or exists at all. Only used on the main thread.
+ */
+class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+  interface Listener {
+    void onForegroundChanged(boolean foreground);
+  }
+
+  private static ForegroundTracker instance;
+
+  static void init(Application application) {
+    if (instance == null) {
+      instance = new ForegroundTracker();
+      application.registerActivityLifecycleCallbacks(instance);
+    }
+  }
+
+  static ForegroundTracker getInstance() {
+    if (instance == null) {
+      throw new IllegalStateException("ForegroundTracker.init() was not called");
+    }
+    return instance;
+  }
+
+  private final List<Listener> listeners = new ArrayList<>();
+  private int started = 0;
+  private int created = 0;
+
+  boolean isForeground() {
+    return started > 0;
+  }
+
+  /** Whether any activity exists, even in the background. */
+  boolean hasActivity() {
+    return created > 0;
+  }
+
+  void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  private void notifyListeners() {
+    for (Listener listener : new ArrayList<>(listeners)) {
+      listener.onForegroundChanged(isForeground());
+    }
+  }
+
+  /* ActivityLifecycleCallbacks */
+  @Override
+  public void onActivityStarted(Activity activity) {
+    started++;
+    if (started == 1) notifyListeners();
+  }
+
+  @Override
+  public void onActivityStopped(Activity activity) {
+    started--;
+    if (started == 0) notifyListeners();
+  }
+
+  @Override
+  public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    created++;
+  }
+
+  @Override
+  public void onActivityResumed(Activity activity) {}
+
+  @Override
+  public void onActivityPaused(Activity activity) {}
+
+  @Override
+  public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+  @Override
+  public void onActivityDestroyed(Activity activity) {
+    created--;
+  }
+}
@@ -0,0 +1,334 @@
+package net.u_wave.android;
+
+import android.net.Uri;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the first of several equivalent stream URLs to deliver bytes. The first candidate is
+ * opened straight away, and if it has not delivered a byte after a short delay, the next one is
+ * opened alongside it. Candidates that fail are replaced by the next one immediately. The loser
+ * is closed as soon as there is a winner.
+ *
+ * <p>Candidates are different files, so byte offsets only make sense within one of them. Once a
+ * candidate has won, every later open of the stream, eg. for seeking, uses it. The player picks its
+ * extractor for the winner's container, so if the winner fails later, only candidates of the same
+ * MIME type can take over.
+ */
+class HedgedDataSource implements DataSource {
+  private static final String TAG = "HedgedDataSource";
+  // How long a candidate gets to deliver its first byte before the next one is started.
+  static final long HEDGE_DELAY_MS = 1200;
+  // How many candidates are opened at the same time, at most.
+  static final int MAX_IN_FLIGHT = 2;
+
+  private static final ExecutorService executor =
+      Executors.newCachedThreadPool(
+          (runnable) -> {
+            final Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** A stream URL, and the MIME type of its container if known. */
+  static class Candidate {
+    final Uri uri;
+    final String mimeType;
+
+    Candidate(Uri uri, String mimeType) {
+      this.uri = uri;
+      this.mimeType = mimeType;
+    }
+  }
+
+  /** Creates data sources for one stream, which share the winning candidate. */
+  static class Factory implements DataSource.Factory {
+    private final DataSource.Factory upstream;
+    private final List<Candidate> candidates;
+    private final int maxInFlight;
+    private final boolean[] failed;
+    private volatile int winner = -1;
+    // Set when the first candidate wins. Candidates that take over from it must have its MIME type.
+    private boolean typeLocked = false;
+    private String mimeType;
+
+    /** With a `maxInFlight` of 1, candidates are only tried one after the other when they fail. */
+    Factory(DataSource.Factory upstream, List<Candidate> candidates, int maxInFlight) {
+      if (candidates.isEmpty()) {
+        throw new IllegalArgumentException("Expected at least one candidate");
+      }
+      this.upstream = upstream;
+      this.maxInFlight = maxInFlight;
+      this.candidates = Collections.unmodifiableList(new ArrayList<>(candidates));
+      this.failed = new boolean[candidates.size()];
+    }
+
+    @Override
+    public HedgedDataSource createDataSource() {
+      return new HedgedDataSource(this);
+    }
+
+    int getWinner() {
+      return winner;
+    }
+
+    /** The next candidate that has not failed, and that can stand in for the first winner. */
+    private synchronized int nextCandidate(int after) {
+      for (int i = after + 1; i < candidates.size(); i++) {
+        if (!failed[i] && (!typeLocked || isSameType(i))) return i;
+      }
+      return -1;
+    }
+
+    private boolean isSameType(int index) {
+      // Without a known type, a candidate can not be shown to match.
+      return mimeType != null && mimeType.equals(candidates.get(index).mimeType);
+    }
+
+    private synchronized void setWinner(int index) {
+      winner = index;
+      if (!typeLocked) {
+        typeLocked = true;
+        mimeType = candidates.get(index).mimeType;
+      }
+    }
+
+    private synchronized void markFailed(int index) {
+      failed[index] = true;
+      if (winner == index) winner = -1;
+    }
+  }
+
+  /** One candidate being opened. */
+  private static class Attempt {
+    final int index;
+    final DataSource dataSource;
+    final DataSpec dataSpec;
+    // The first byte, read to prove that the candidate delivers.
+    final byte[] firstByte = new byte[1];
+    int firstByteCount;
+    long length;
+    IOException error;
+    Future<?> future;
+    private boolean finished = false;
+    private boolean cancelled = false;
+
+    Attempt(int index, DataSource dataSource, DataSpec dataSpec) {
+      this.index = index;
+      this.dataSource = dataSource;
+      this.dataSpec = dataSpec;
+    }
+
+    void run() throws IOException {
+      try {
+        length = dataSource.open(dataSpec);
+        firstByteCount = dataSource.read(firstByte, 0, 1);
+      } catch (IOException err) {
+        closeQuietly();
+        throw err;
+      }
+      synchronized (this) {
+        finished = true;
+        // Lost the race while opening.
+        if (cancelled) closeQuietly();
+      }
+    }
+
+    void cancel() {
+      synchronized (this) {
+        cancelled = true;
+        if (finished) {
+          closeQuietly();
+          return;
+        }
+      }
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+
+    void closeQuietly() {
+      try {
+        dataSource.close();
+      } catch (IOException err) {
+        // Nothing to do.
+      }
+    }
+  }
+
+  private final Factory factory;
+  private final List<TransferListener> transferListeners = new ArrayList<>();
+  private Attempt current;
+  private boolean pendingFirstByte;
+
+  private HedgedDataSource(Factory factory) {
+    this.factory = factory;
+  }
+
+  @Override
+  public void addTransferListener(TransferListener transferListener) {
+    transferListeners.add(transferListener);
+  }
+
+  private Attempt createAttempt(int index, DataSpec dataSpec) {
+    final DataSource dataSource = factory.upstream.createDataSource();
+    for (TransferListener listener : transferListeners) {
+      dataSource.addTransferListener(listener);
+    }
+    return new Attempt(index, dataSource, dataSpec.withUri(factory.candidates.get(index).uri));
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    final int winner = factory.winner;
+    if (winner >= 0) {
+      final Attempt attempt = createAttempt(winner, dataSpec);
+      try {
+        attempt.run();
+        return opened(attempt);
+      } catch (IOException err) {
+        // Another candidate can only take over from the start of the stream.
+        if (dataSpec.absoluteStreamPosition != 0) throw err;
+        factory.markFailed(winner);
+        if (factory.nextCandidate(-1) < 0) throw err;
+        Log.w(TAG, String.format("Candidate %d failed, trying the others", winner), err);
+      }
+    } else if (dataSpec.absoluteStreamPosition != 0) {
+      // We can't race partway into a stream without knowing which file the offset belongs to.
+      final Attempt attempt = createAttempt(Math.max(0, factory.nextCandidate(-1)), dataSpec);
+      attempt.run();
+      return opened(attempt);
+    }
+    return race(dataSpec);
+  }
+
+  private void start(Attempt attempt, LinkedBlockingQueue<Attempt> done) {
+    attempt.future =
+        executor.submit(
+            () -> {
+              try {
+                attempt.run();
+              } catch (IOException err) {
+                attempt.error = err;
+              }
+              done.add(attempt);
+            });
+  }
+
+  private long race(DataSpec dataSpec) throws IOException {
+    final LinkedBlockingQueue<Attempt> done = new LinkedBlockingQueue<>();
+    final List<Attempt> inFlight = new ArrayList<>();
+    int next = factory.nextCandidate(-1);
+    IOException lastError = null;
+
+    try {
+      while (true) {
+        if (inFlight.isEmpty()) {
+          if (next < 0) break;
+          final Attempt attempt = createAttempt(next, dataSpec);
+          start(attempt, done);
+          inFlight.add(attempt);
+          next = factory.nextCandidate(next);
+        }
+
+        final Attempt finished;
+        if (next >= 0 && inFlight.size() < factory.maxInFlight) {
+          // Hedge with the next candidate if nothing has delivered after the delay.
+          finished = done.poll(HEDGE_DELAY_MS, TimeUnit.MILLISECONDS);
+          if (finished == null) {
+            Trace.event(Trace.HEDGE_STARTED, next);
+            final Attempt attempt = createAttempt(next, dataSpec);
+            start(attempt, done);
+            inFlight.add(attempt);
+            next = factory.nextCandidate(next);
+            continue;
+          }
+        } else {
+          finished = done.take();
+        }
+
+        // Taking the attempt from the queue makes the executor thread's writes visible here.
+        inFlight.remove(finished);
+        if (finished.error != null) {
+          Log.w(TAG, String.format("Candidate %d failed", finished.index), finished.error);
+          factory.markFailed(finished.index);
+          lastError = finished.error;
+          continue;
+        }
+
+        for (Attempt loser : inFlight) {
+          loser.cancel();
+        }
+        factory.setWinner(finished.index);
+        if (finished.index != 0) {
+          Trace.event(Trace.HEDGE_WON, finished.index);
+        }
+        return opened(finished);
+      }
+    } catch (InterruptedException err) {
+      for (Attempt attempt : inFlight) {
+        attempt.cancel();
+      }
+      throw new InterruptedIOException();
+    }
+
+    throw lastError != null ? lastError : new IOException("No stream candidates left");
+  }
+
+  private long opened(Attempt attempt) {
+    current = attempt;
+    pendingFirstByte = attempt.firstByteCount > 0;
+    return attempt.length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (readLength == 0) {
+      return 0;
+    }
+    if (pendingFirstByte) {
+      pendingFirstByte = false;
+      buffer[offset] = current.firstByte[0];
+      return 1;
+    }
+    if (current.firstByteCount == C.RESULT_END_OF_INPUT) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    return current.dataSource.read(buffer, offset, readLength);
+  }
+
+  @Override
+  public Uri getUri() {
+    return current != null ? current.dataSource.getUri() : null;
+  }
+
+  @Override
+  public Map<String, List<String>> getResponseHeaders() {
+    return current != null
+        ? current.dataSource.getResponseHeaders()
+        : Collections.<String, List<String>>emptyMap();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (current != null) {
+      final Attempt closing = current;
+      current = null;
+      closing.dataSource.close();
+    }
+  }
+}
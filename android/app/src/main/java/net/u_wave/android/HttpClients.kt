@@ -0,0 +1,35 @@
+package net.u_wave.android
+
+import android.content.Context
+import java.io.File
+import okhttp3.Cache
+import okhttp3.OkHttpClient
+
+/**
+ * The OkHttpClient shared by all native networking, so extraction, media, API calls and sockets use
+ * a single dispatcher, connection pool and disk cache.
+ */
+object HttpClients {
+  private const val CACHE_SIZE = 20L * 1024 * 1024
+
+  private var cacheDirectory: File? = null
+
+  /**
+   * Set up the disk cache and data accounting. Must be called before the first use of `shared`.
+   */
+  @JvmStatic
+  fun init(context: Context) {
+    if (cacheDirectory == null) {
+      cacheDirectory = File(context.cacheDir, "http")
+    }
+    DataUsage.init(context)
+  }
+
+  @JvmStatic
+  val shared: OkHttpClient by lazy {
+    val builder = OkHttpClient.Builder()
+    cacheDirectory?.let { builder.cache(Cache(it, CACHE_SIZE)) }
+    DataUsage.getInstance()?.let { builder.addNetworkInterceptor(it.interceptor) }
+    builder.build()
+  }
+}
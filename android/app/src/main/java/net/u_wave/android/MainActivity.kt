@@ -1,16 +1,15 @@
 package net.u_wave.android
 
-import android.os.Bundle
-import io.flutter.app.FlutterActivity
-import io.flutter.plugins.GeneratedPluginRegistrant
+import android.content.Context
+import io.flutter.embedding.android.FlutterActivity
+import io.flutter.embedding.engine.FlutterEngine
 
-class MainActivity(): FlutterActivity() {
-  override protected fun onCreate(savedInstanceState: Bundle) {
-    super.onCreate(savedInstanceState)
-    GeneratedPluginRegistrant.registerWith(this)
-
-    PlayerPlugin.registerWith(registrarFor(PlayerPlugin::class.qualifiedName))
-    NotificationPlugin.registerWith(registrarFor(NotificationPlugin::class.qualifiedName))
-    WebSocketPlugin.registerWith(registrarFor(WebSocketPlugin::class.qualifiedName))
+class MainActivity : FlutterActivity() {
+  // Use the engine started by UwaveApplication, or start it again if it was released.
+  override fun provideFlutterEngine(context: Context): FlutterEngine? {
+    return (application as UwaveApplication).getEngine()
   }
+
+  // The engine outlives the activity, so configuration changes keep the player and socket.
+  override fun shouldDestroyEngineWithHost(): Boolean = false
 }
@@ -0,0 +1,105 @@
+package net.u_wave.android;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sheds memory when the system asks us to, in a fixed order, so that the cheapest losses come
+ * first and playback is the last thing the low memory killer takes from us. The more severe the
+ * trim level, the more steps are run. Only used on the main thread.
+ */
+class MemoryPressure implements ComponentCallbacks2 {
+  private static final String TAG = "MemoryPressure";
+
+  // Steps, in the order they are shed.
+  static final int SHRINK_BUFFERS = 0;
+  static final int DROP_VIDEO = 1;
+  static final int TRIM_CACHES = 2;
+  private static final int STEP_COUNT = 3;
+
+  interface Handler {
+    /** Release memory. Returns a description of what was released, or null if nothing was. */
+    String release(int level);
+  }
+
+  private static MemoryPressure instance;
+
+  static MemoryPressure getInstance() {
+    if (instance == null) {
+      instance = new MemoryPressure();
+    }
+    return instance;
+  }
+
+  static void init(Context context) {
+    context.getApplicationContext().registerComponentCallbacks(getInstance());
+  }
+
+  private final List<List<Handler>> handlers = new ArrayList<>();
+
+  private MemoryPressure() {
+    for (int i = 0; i < STEP_COUNT; i++) {
+      handlers.add(new ArrayList<>());
+    }
+  }
+
+  void register(int step, Handler handler) {
+    handlers.get(step).add(handler);
+  }
+
+  void unregister(Handler handler) {
+    for (List<Handler> step : handlers) {
+      step.remove(handler);
+    }
+  }
+
+  /** How many steps to run for a trim level. */
+  private static int getStepCount(int level) {
+    if (level >= TRIM_MEMORY_MODERATE) {
+      return STEP_COUNT;
+    }
+    switch (level) {
+      case TRIM_MEMORY_RUNNING_CRITICAL:
+        return STEP_COUNT;
+      case TRIM_MEMORY_RUNNING_LOW:
+        return TRIM_CACHES + 1;
+      case TRIM_MEMORY_BACKGROUND:
+      case TRIM_MEMORY_UI_HIDDEN:
+        return DROP_VIDEO + 1;
+      case TRIM_MEMORY_RUNNING_MODERATE:
+        return SHRINK_BUFFERS + 1;
+      default:
+        return 0;
+    }
+  }
+
+  private void shed(int level) {
+    final int steps = getStepCount(level);
+    for (int step = 0; step < steps; step++) {
+      for (Handler handler : new ArrayList<>(handlers.get(step))) {
+        final String released = handler.release(level);
+        if (released != null) {
+          Log.i(TAG, String.format("level %d: released %s", level, released));
+        }
+      }
+    }
+  }
+
+  /* ComponentCallbacks2 */
+  @Override
+  public void onTrimMemory(int level) {
+    shed(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    shed(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {}
+}
@@ -2,70 +2,127 @@ package net.u_wave.android;
 
 import android.app.Notification;
 import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.support.v4.media.session.MediaSessionCompat;
 import android.util.Log;
 import android.view.View;
 import android.widget.RemoteViews;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
+import com.google.android.exoplayer2.Player;
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
-import io.flutter.plugin.common.PluginRegistry.Registrar;
-import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class NotificationPlugin
-    implements MethodCallHandler, SharedPreferences.OnSharedPreferenceChangeListener {
+    implements FlutterPlugin,
+        MethodCallHandler,
+        SharedPreferences.OnSharedPreferenceChangeListener,
+        PlaybackService.PlaybackListener,
+        Player.EventListener {
   public static final String NAME = "u-wave.net/notification";
   private static final String TAG = "NotificationPlugin";
   private static final String PREFERENCE_NAME = "flutter.nowPlayingNotification";
-  private static final int NOTIFY_NOW_PLAYING = 0;
-
-  private static final String ACTION_UPVOTE = "net.u_wave.android.UPVOTE";
-  private static final String ACTION_DOWNVOTE = "net.u_wave.android.DOWNVOTE";
-  private static final String ACTION_MUTE_UNMUTE = "net.u_wave.android.MUTE_UNMUTE";
-  private static final String ACTION_DISCONNECT = "net.u_wave.android.DISCONNECT";
-
-  /** Plugin registration. */
-  public static void registerWith(Registrar registrar) {
-    final MethodChannel channel = new MethodChannel(registrar.messenger(), NAME);
-    channel.setMethodCallHandler(new NotificationPlugin(registrar, channel));
-  }
-
-  private final Registrar registrar;
-  private final MethodChannel channel;
-  private final SharedPreferences preferences;
-  private BroadcastReceiver receiver;
+  // Shared with the PlaybackService, which uses this notification while in the foreground.
+  static final int NOTIFY_NOW_PLAYING = 1;
+
+  // Handled by the PlaybackService.
+  static final String ACTION_UPVOTE = "net.u_wave.android.UPVOTE";
+  static final String ACTION_DOWNVOTE = "net.u_wave.android.DOWNVOTE";
+  static final String ACTION_MUTE_UNMUTE = "net.u_wave.android.MUTE_UNMUTE";
+  static final String ACTION_DISCONNECT = "net.u_wave.android.DISCONNECT";
+
+  private Context context;
+  private MethodChannel channel;
+  private SharedPreferences preferences;
+  private PlaybackServiceBinding service;
+  private ThumbnailCache thumbnails;
   private NowPlayingNotification nowPlayingNotification;
   private NowPlaying nowPlaying;
+  // The player of the current playback, whose position the notification shows.
+  private Player player;
   private boolean enabled = true;
   private int vote = 0;
 
-  private NotificationPlugin(Registrar registrar, MethodChannel channel) {
-    final Context context = registrar.context();
-    this.registrar = registrar;
-    this.channel = channel;
+  /* FlutterPlugin */
+  @Override
+  public void onAttachedToEngine(FlutterPluginBinding binding) {
+    context = binding.getApplicationContext();
+    channel = new MethodChannel(binding.getFlutterEngine().getDartExecutor(), NAME);
+    channel.setMethodCallHandler(this);
 
+    service = new PlaybackServiceBinding(context);
+    thumbnails = ThumbnailCache.getInstance(context);
     nowPlayingNotification = new NowPlayingNotification(context);
     preferences = context.getSharedPreferences("FlutterSharedPreferences", Context.MODE_PRIVATE);
 
     preferences.registerOnSharedPreferenceChangeListener(this);
     setEnabled(preferences.getBoolean(PREFERENCE_NAME, enabled));
+
+    service.run(
+        (playbackService) -> {
+          nowPlayingNotification.setMediaSession(playbackService.getSessionToken());
+          playbackService.setNotificationActionListener(this::onNotificationAction);
+          if (nowPlaying != null && enabled) publishNowPlayingNotification();
+          playbackService.addPlaybackListener(this);
+        });
+  }
+
+  @Override
+  public void onDetachedFromEngine(FlutterPluginBinding binding) {
+    channel.setMethodCallHandler(null);
+    detach();
   }
 
   public void close() {
     cancelNowPlayingNotification();
+    detach();
+  }
+
+  /** The engine is going away. The notification stays up, and its actions keep working. */
+  private void detach() {
+    final PlaybackService playbackService = service.getService();
+    if (playbackService != null) {
+      playbackService.setNotificationActionListener(null);
+      playbackService.removePlaybackListener(this);
+    }
+    // The elapsed time keeps running as it is, for as long as playback goes on without us.
+    if (player != null) {
+      player.removeListener(this);
+      player = null;
+    }
     preferences.unregisterOnSharedPreferenceChangeListener(this);
+    service.unbind();
+  }
+
+  /**
+   * Called after the PlaybackService has handled a notification action. Votes are shown right
+   * away, without waiting for the server to echo them, and Dart is told about the action.
+   */
+  private void onNotificationAction(String action) {
+    Log.d(TAG, String.format("Notification action: %s", action));
+    if (ACTION_UPVOTE.equals(action) || ACTION_DOWNVOTE.equals(action)) {
+      vote = ACTION_UPVOTE.equals(action) ? 1 : -1;
+      if (nowPlaying != null && nowPlayingNotification.setVote(vote) && enabled) {
+        publishNowPlayingNotification();
+      }
+    } else if (ACTION_DISCONNECT.equals(action)) {
+      nowPlaying = null;
+      cancelNowPlayingNotification();
+    }
+    channel.invokeMethod("intent", action);
   }
 
   private NotificationManagerCompat getNotificationManager() {
-    return NotificationManagerCompat.from(registrar.context());
+    return NotificationManagerCompat.from(context);
   }
 
   private void setEnabled(boolean enabled) {
@@ -80,26 +137,13 @@ public class NotificationPlugin
   }
 
   private void publishNowPlayingNotification() {
+    final Notification notification = nowPlayingNotification.build();
     NotificationManagerCompat manager = getNotificationManager();
-    manager.notify(NOTIFY_NOW_PLAYING, nowPlayingNotification.build());
-
-    if (receiver == null) {
-      receiver = new Receiver(channel);
-      IntentFilter filter = new IntentFilter();
-      filter.addAction(ACTION_UPVOTE);
-      filter.addAction(ACTION_DOWNVOTE);
-      filter.addAction(ACTION_MUTE_UNMUTE);
-      filter.addAction(ACTION_DISCONNECT);
-      registrar.context().registerReceiver(receiver, filter);
-    }
+    manager.notify(NOTIFY_NOW_PLAYING, notification);
+    service.run((playbackService) -> playbackService.setNotification(notification));
   }
 
   private void cancelNowPlayingNotification() {
-    if (receiver != null) {
-      registrar.context().unregisterReceiver(receiver);
-      receiver = null;
-    }
-
     NotificationManagerCompat manager = getNotificationManager();
     manager.cancel(NOTIFY_NOW_PLAYING);
   }
@@ -110,6 +154,7 @@ public class NotificationPlugin
     if (args == null) {
       nowPlaying = null;
       cancelNowPlayingNotification();
+      service.run((playbackService) -> playbackService.setNowPlaying(null, null, 0));
       result.success(null);
       return;
     }
@@ -121,40 +166,68 @@ public class NotificationPlugin
         args.containsKey("showVoteButtons") && args.get("showVoteButtons").equals("true");
 
     nowPlaying =
-        new NowPlaying(args.get("artist"), args.get("title"), duration, seek, showVoteButtons);
-    nowPlayingNotification.update(nowPlaying);
+        new NowPlaying(
+            args.get("artist"), args.get("title"), args.get("thumbnail"), duration, seek,
+            showVoteButtons);
+    nowPlayingNotification.reset(nowPlaying);
+    // Playback may already be underway.
+    setElapsed();
+    service.run(
+        (playbackService) ->
+            playbackService.setNowPlaying(
+                nowPlaying.artist, nowPlaying.title, nowPlaying.duration * 1000L));
+
+    if (nowPlaying.thumbnail != null) {
+      loadThumbnails(nowPlaying);
+    }
 
     if (enabled) publishNowPlayingNotification();
 
     result.success(null);
   }
 
-  private void onVote(int direction, Result result) {
-    vote = direction;
-
-    nowPlayingNotification.update(nowPlaying, vote);
-
-    if (enabled) publishNowPlayingNotification();
-    result.success(null);
-  }
-
-  private void onProgress(List<Integer> args, Result result) {
-    if (args.size() != 2) {
-      throw new IllegalArgumentException(
-          "Incorrect number of arguments to setProgress, expected 2");
-    }
-    if (nowPlaying == null) {
-      throw new RuntimeException("No media is currently played");
+  /**
+   * Show the thumbnail in the notification, and a larger version on the lock screen through the
+   * media session. Thumbnails we have decoded before are shown before the notification is first
+   * published, so it does not flash without one.
+   */
+  private void loadThumbnails(NowPlaying track) {
+    final int notificationSize =
+        context.getResources().getDimensionPixelSize(R.dimen.notification_thumbnail_size);
+    final int artworkSize =
+        context.getResources().getDimensionPixelSize(R.dimen.notification_artwork_size);
+
+    final Bitmap cached = thumbnails.getCached(track.thumbnail, notificationSize);
+    if (cached != null) {
+      nowPlayingNotification.setThumbnail(cached);
+    } else {
+      thumbnails.load(
+          track.thumbnail,
+          notificationSize,
+          (bitmap) -> {
+            if (bitmap != null && track == nowPlaying) {
+              nowPlayingNotification.setThumbnail(bitmap);
+              if (enabled) publishNowPlayingNotification();
+            }
+          });
     }
 
-    final int progress = args.get(0);
-    final int duration = args.get(1);
-
-    nowPlaying.setProgress(duration, progress);
-    nowPlayingNotification.update(nowPlaying, vote);
+    thumbnails.load(
+        track.thumbnail,
+        artworkSize,
+        (bitmap) -> {
+          if (bitmap != null && track == nowPlaying) {
+            service.run((playbackService) -> playbackService.setArtwork(bitmap));
+          }
+        });
+  }
 
-    if (enabled) publishNowPlayingNotification();
+  private void onVote(int direction, Result result) {
+    vote = direction;
 
+    if (nowPlaying != null && nowPlayingNotification.setVote(vote) && enabled) {
+      publishNowPlayingNotification();
+    }
     result.success(null);
   }
 
@@ -169,15 +242,61 @@ public class NotificationPlugin
       case "setVote":
         onVote((Integer) call.arguments, result);
         return;
-      case "setProgress":
-        onProgress((List<Integer>) call.arguments, result);
-        return;
       default:
         result.notImplemented();
         return;
     }
   }
 
+  /**
+   * Run the elapsed time while the player is actually playing, from its current position, and
+   * hold it while paused, buffering or ended. This only republishes when the chronometer has to
+   * change, not as the position moves.
+   */
+  private void updateElapsed() {
+    if (nowPlaying != null && setElapsed() && enabled) {
+      publishNowPlayingNotification();
+    }
+  }
+
+  /** Returns true if the view changed. */
+  private boolean setElapsed() {
+    final boolean playing =
+        player != null
+            && player.getPlayWhenReady()
+            && player.getPlaybackState() == Player.STATE_READY;
+    final long positionMs = player != null ? player.getCurrentPosition() : nowPlaying.seek * 1000L;
+    return nowPlayingNotification.setElapsed(playing, positionMs);
+  }
+
+  /* PlaybackService.PlaybackListener */
+  @Override
+  public void onPlaybackChanged(PlaybackAction playback) {
+    final Player newPlayer = playback != null ? playback.getPlayer() : null;
+    if (player == newPlayer) {
+      return;
+    }
+    if (player != null) {
+      player.removeListener(this);
+    }
+    if (newPlayer != null) {
+      newPlayer.addListener(this);
+    }
+    player = newPlayer;
+    updateElapsed();
+  }
+
+  /* Player.EventListener */
+  @Override
+  public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+    updateElapsed();
+  }
+
+  @Override
+  public void onPositionDiscontinuity(int reason) {
+    updateElapsed();
+  }
+
   /* OnSharedPreferenceChangeListener */
   public void onSharedPreferenceChanged(SharedPreferences self, String key) {
     if (!key.equals(PREFERENCE_NAME)) {
@@ -190,24 +309,36 @@ public class NotificationPlugin
   private static class NowPlaying {
     public final String artist;
     public final String title;
-    public int duration;
-    public int progress;
-    public boolean showVoteButtons;
-
-    NowPlaying(String artist, String title, int duration, int progress, boolean showVoteButtons) {
+    public final String thumbnail;
+    public final int duration;
+    public final int seek;
+    public final boolean showVoteButtons;
+
+    NowPlaying(
+        String artist,
+        String title,
+        String thumbnail,
+        int duration,
+        int seek,
+        boolean showVoteButtons) {
       this.artist = artist;
       this.title = title;
+      this.thumbnail = thumbnail;
       this.duration = duration;
-      this.progress = progress;
+      this.seek = seek;
       this.showVoteButtons = showVoteButtons;
     }
-
-    public void setProgress(int duration, int progress) {
-      this.duration = duration;
-      this.progress = progress;
-    }
   }
 
+  /**
+   * The now playing notification. The builder and intents are kept for the lifetime of the
+   * plugin, and each setter only touches the view if its value changed. The view is recreated for
+   * each track, so the actions RemoteViews records do not pile up.
+   *
+   * <p>Progress is never pushed. The elapsed time is a chronometer that the system ticks only while
+   * the player is playing, and the media session lets the system extrapolate the position on its
+   * own surfaces.
+   */
   private static class NowPlayingNotification {
     private static final String NAME = "u-wave.net/nowPlaying";
 
@@ -215,71 +346,138 @@ public class NotificationPlugin
     private static final int UPVOTE = 1;
     private static final int DOWNVOTE = -1;
 
-    private NotificationCompat.Builder builder;
+    private final Context context;
+    private final NotificationCompat.Builder builder;
+    private final PendingIntent upvoteIntent;
+    private final PendingIntent downvoteIntent;
+    private final PendingIntent muteUnmuteIntent;
+    private final PendingIntent disconnectIntent;
     private RemoteViews view;
-    private Context context;
+
+    // What the view currently shows.
+    private boolean showVoteButtons;
+    private int vote = NOVOTE;
+    private String elapsedFormat;
+    private boolean elapsedRunning;
+    // While running, when the chronometer was at 0:00, in SystemClock.elapsedRealtime().
+    private long elapsedBase;
+    // While held, the position it shows.
+    private long elapsedPositionMs;
 
     NowPlayingNotification(Context context) {
       this.context = context;
-      create();
-    }
-
-    private void create() {
-      view = new RemoteViews("net.u_wave.android", R.layout.player_notification);
 
-      view.setOnClickPendingIntent(
-          R.id.upvote,
-          PendingIntent.getBroadcast(
-              context,
-              NOTIFY_NOW_PLAYING,
-              new Intent(ACTION_UPVOTE),
-              PendingIntent.FLAG_UPDATE_CURRENT));
-      view.setOnClickPendingIntent(
-          R.id.downvote,
-          PendingIntent.getBroadcast(
-              context,
-              NOTIFY_NOW_PLAYING,
-              new Intent(ACTION_DOWNVOTE),
-              PendingIntent.FLAG_UPDATE_CURRENT));
-      view.setOnClickPendingIntent(
-          R.id.muteUnmute,
-          PendingIntent.getBroadcast(
-              context,
-              NOTIFY_NOW_PLAYING,
-              new Intent(ACTION_MUTE_UNMUTE),
-              PendingIntent.FLAG_UPDATE_CURRENT));
-      view.setOnClickPendingIntent(
-          R.id.disconnect,
-          PendingIntent.getBroadcast(
-              context,
-              NOTIFY_NOW_PLAYING,
-              new Intent(ACTION_DISCONNECT),
-              PendingIntent.FLAG_UPDATE_CURRENT));
+      upvoteIntent = createBroadcast(ACTION_UPVOTE);
+      downvoteIntent = createBroadcast(ACTION_DOWNVOTE);
+      muteUnmuteIntent = createBroadcast(ACTION_MUTE_UNMUTE);
+      disconnectIntent = createBroadcast(ACTION_DISCONNECT);
 
       builder =
           new NotificationCompat.Builder(context, NAME)
               .setOngoing(true)
+              .setOnlyAlertOnce(true)
+              .setShowWhen(false)
               .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-              .setSmallIcon(R.mipmap.ic_launcher)
-              .setCustomContentView(view);
+              .setSmallIcon(R.mipmap.ic_launcher);
+      createView();
     }
 
-    public Notification build() {
-      return builder.build();
+    private PendingIntent createBroadcast(String action) {
+      final Intent intent = new Intent(action).setPackage(context.getPackageName());
+      return PendingIntent.getBroadcast(
+          context, NOTIFY_NOW_PLAYING, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
-    public void update(NowPlaying nowPlaying) {
-      update(nowPlaying, NOVOTE);
+    private void createView() {
+      view = new RemoteViews("net.u_wave.android", R.layout.player_notification);
+      view.setOnClickPendingIntent(R.id.upvote, upvoteIntent);
+      view.setOnClickPendingIntent(R.id.downvote, downvoteIntent);
+      view.setOnClickPendingIntent(R.id.muteUnmute, muteUnmuteIntent);
+      view.setOnClickPendingIntent(R.id.disconnect, disconnectIntent);
+      builder.setCustomContentView(view);
     }
 
-    public void update(NowPlaying nowPlaying, int vote) {
-      create();
+    public void setMediaSession(MediaSessionCompat.Token token) {
+      builder.setStyle(
+          new androidx.media.app.NotificationCompat.DecoratedMediaCustomViewStyle()
+              .setMediaSession(token));
+    }
 
+    public Notification build() {
+      // A stopped chronometer shows the time since its base as of when the view is applied, so
+      // it is moved along to keep showing the same position.
+      if (!elapsedRunning) {
+        holdElapsed(elapsedPositionMs);
+      }
+      return builder.build();
+    }
+
+    /** Show a new track. */
+    public void reset(NowPlaying nowPlaying) {
+      createView();
       view.setTextViewText(R.id.artist, nowPlaying.artist);
       view.setTextViewText(R.id.title, nowPlaying.title);
-      view.setProgressBar(R.id.progressBar, nowPlaying.duration, nowPlaying.progress, false);
 
-      if (nowPlaying.showVoteButtons) {
+      elapsedFormat = "%s / " + formatDuration(nowPlaying.duration);
+      holdElapsed(nowPlaying.seek * 1000L);
+
+      showVoteButtons = nowPlaying.showVoteButtons;
+      applyVote(NOVOTE);
+    }
+
+    /**
+     * Show the player's position, ticking if it is playing. Returns true if the view changed. A
+     * position less than a second off what is shown is left alone.
+     */
+    public boolean setElapsed(boolean playing, long positionMs) {
+      final long base = SystemClock.elapsedRealtime() - positionMs;
+      if (playing) {
+        if (elapsedRunning && Math.abs(base - elapsedBase) < 1000) {
+          return false;
+        }
+        elapsedRunning = true;
+        elapsedBase = base;
+        view.setChronometer(R.id.elapsed, base, elapsedFormat, true);
+      } else {
+        if (!elapsedRunning && Math.abs(positionMs - elapsedPositionMs) < 1000) {
+          return false;
+        }
+        holdElapsed(positionMs);
+      }
+      return true;
+    }
+
+    private void holdElapsed(long positionMs) {
+      elapsedRunning = false;
+      elapsedPositionMs = positionMs;
+      view.setChronometer(
+          R.id.elapsed, SystemClock.elapsedRealtime() - positionMs, elapsedFormat, false);
+    }
+
+    public void setThumbnail(Bitmap bitmap) {
+      view.setImageViewBitmap(R.id.thumbnail, bitmap);
+    }
+
+    private static String formatDuration(int seconds) {
+      if (seconds >= 3600) {
+        return String.format(
+            Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+      }
+      return String.format(Locale.ROOT, "%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    /** Returns true if the view changed. */
+    public boolean setVote(int vote) {
+      if (vote == this.vote) {
+        return false;
+      }
+      applyVote(vote);
+      return true;
+    }
+
+    private void applyVote(int vote) {
+      this.vote = vote;
+      if (showVoteButtons) {
         view.setViewVisibility(R.id.upvote, vote == UPVOTE ? View.GONE : View.VISIBLE);
         view.setViewVisibility(R.id.upvoteActive, vote == UPVOTE ? View.VISIBLE : View.GONE);
         view.setViewVisibility(R.id.downvote, vote == DOWNVOTE ? View.GONE : View.VISIBLE);
@@ -292,19 +490,4 @@ public class NotificationPlugin
       }
     }
   }
-
-  private static class Receiver extends BroadcastReceiver {
-    private final MethodChannel channel;
-
-    Receiver(final MethodChannel channel) {
-      this.channel = channel;
-    }
-
-    @Override
-    public void onReceive(Context context, Intent intent) {
-      Log.d(TAG, String.format("Receiving broadcast: %s", intent.getAction()));
-      // TODO these should use an EventChannel more likely?
-      channel.invokeMethod("intent", intent.getAction());
-    }
-  }
 }
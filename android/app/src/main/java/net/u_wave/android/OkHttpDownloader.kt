@@ -1,43 +1,57 @@
 package net.u_wave.android
 
 import java.io.IOException
-import java.util.List
-import java.util.Map
 import org.schabi.newpipe.extractor.downloader.Request
 import org.schabi.newpipe.extractor.downloader.Response
 import org.schabi.newpipe.extractor.downloader.Downloader
-import org.schabi.newpipe.extractor.localization.Localization
 import org.schabi.newpipe.extractor.exceptions.ReCaptchaException
 import okhttp3.OkHttpClient
 
 /**
+ * NewPipe Downloader backed by the app's OkHttpClient. Requests carry `requestTag`, if there is
+ * one, so interceptors can tell them apart from other requests on the same client.
  */
-class OkHttpDownloader(val client: OkHttpClient): Downloader() {
+class OkHttpDownloader @JvmOverloads constructor(
+  val client: OkHttpClient,
+  private val requestTag: Any? = null
+): Downloader() {
   @Throws(IOException::class, ReCaptchaException::class)
   override public fun execute(descr: Request): Response {
-    var body: okhttp3.RequestBody? = descr.dataToSend()?.let {
+    val request = toOkHttpRequest(descr)
+    val response = this.client.newCall(request).execute()
+
+    if (response.code() == 429) {
+      response.close()
+      throw ReCaptchaException("reCaptcha Challenge requested", descr.url())
+    }
+
+    return toResponse(response)
+  }
+
+  fun toOkHttpRequest(descr: Request): okhttp3.Request {
+    val body: okhttp3.RequestBody? = descr.dataToSend()?.let {
       val contentType = descr.headers().get("Content-Type")?.get(0)
-      val mediaType = okhttp3.MediaType.parse(contentType)
-      okhttp3.RequestBody.create(mediaType, descr.dataToSend())
+      val mediaType = contentType?.let { okhttp3.MediaType.parse(it) }
+      okhttp3.RequestBody.create(mediaType, it)
     }
-    var builder = okhttp3.Request.Builder()
-      .method(descr.httpMethod(), null)
+    val builder = okhttp3.Request.Builder()
+      .method(descr.httpMethod(), body)
       .url(descr.url())
+      .tag(requestTag)
 
-    descr.headers().putAll(Request.headersFromLocalization(descr.localization()))
-    for (pair in descr.headers()) {
+    val headers = LinkedHashMap(descr.headers())
+    headers.putAll(Request.headersFromLocalization(descr.localization()))
+    for (pair in headers) {
       for (value in pair.value) {
         builder.addHeader(pair.key, value)
       }
     }
 
-    val request = builder.build()
-    val response = this.client.newCall(request).execute()
+    return builder.build()
+  }
 
-    if (response.code() == 429) {
-      throw ReCaptchaException("reCaptcha Challenge requested", descr.url())
+  fun toResponse(response: okhttp3.Response): Response =
+    response.use {
+      Response(it.code(), it.message(), it.headers().toMultimap(), it.body()?.string())
     }
-
-    return Response(response.code(), response.message(), response.headers().toMultimap(), response.body()?.string())
-  }
 }
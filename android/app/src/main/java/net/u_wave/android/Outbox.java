@@ -0,0 +1,193 @@
+package net.u_wave.android;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import net.u_wave.client.SocketKt;
+
+/**
+ * Outgoing socket messages, held until there is a socket to take them. Commands are only sent
+ * once the socket is open and a socket token has been sent on it, as the server ignores them from
+ * unauthenticated connections. Messages are sent in the order they were added, except that tokens
+ * added with {@link #addToken} go first.
+ *
+ * <p>Commands that only matter for their latest value, like votes, wait a short window before
+ * going out, and a newer one replaces an older one that is still waiting.
+ *
+ * <p>Only used on the main thread.
+ */
+class Outbox {
+  private static final String TAG = "Outbox";
+  static final long COALESCE_WINDOW_MS = 300;
+  // Messages kept while disconnected. The oldest are dropped after this.
+  private static final int MAX_MESSAGES = 100;
+  private static final Set<String> COALESCED_COMMANDS = new HashSet<>(Arrays.asList("vote"));
+
+  interface Sender {
+    /** Returns false if the socket can not take the message anymore. */
+    boolean send(String text);
+  }
+
+  /** Runs the delayed flushes. A {@link Handler} in the app, and a fake clock in tests. */
+  interface Scheduler {
+    long uptimeMillis();
+
+    void postAtTime(Runnable runnable, long uptimeMillis);
+
+    void removeCallbacks(Runnable runnable);
+  }
+
+  private static class Message {
+    final String text;
+    final boolean token;
+    // The command name, if the message has one that could be read.
+    final String command;
+    long sendAt;
+
+    Message(String text, boolean token, String command, long sendAt) {
+      this.text = text;
+      this.token = token;
+      this.command = command;
+      this.sendAt = sendAt;
+    }
+  }
+
+  private final Scheduler scheduler;
+  private final LinkedList<Message> queue = new LinkedList<>();
+  private final Runnable flush = this::flush;
+  private Sender sender;
+  private boolean authenticated = false;
+
+  Outbox(Handler handler) {
+    this(
+        new Scheduler() {
+          @Override
+          public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+          }
+
+          @Override
+          public void postAtTime(Runnable runnable, long uptimeMillis) {
+            handler.postAtTime(runnable, uptimeMillis);
+          }
+
+          @Override
+          public void removeCallbacks(Runnable runnable) {
+            handler.removeCallbacks(runnable);
+          }
+        });
+  }
+
+  Outbox(Scheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Send a socket token for the current connection. It goes ahead of the commands waiting for it,
+   * and is not kept for the next connection.
+   */
+  void addToken(String token) {
+    queue.addFirst(new Message(token, true, null, scheduler.uptimeMillis()));
+    flush();
+  }
+
+  /** Send a message once the socket is authenticated. */
+  void add(String text) {
+    final String command = SocketKt.peekCommand(text);
+    final long now = scheduler.uptimeMillis();
+
+    if (command != null && COALESCED_COMMANDS.contains(command)) {
+      final Message waiting = findWaiting(command);
+      if (waiting != null) {
+        queue.set(queue.indexOf(waiting), new Message(text, false, command, waiting.sendAt));
+      } else {
+        queue.add(new Message(text, false, command, now + COALESCE_WINDOW_MS));
+      }
+    } else {
+      // Everything before this message goes out now, so that it is not held up behind them.
+      for (Message message : queue) {
+        message.sendAt = now;
+      }
+      queue.add(new Message(text, false, command, now));
+    }
+
+    if (queue.size() > MAX_MESSAGES) {
+      Log.w(TAG, "Too many messages waiting for the socket, dropping the oldest");
+      dropOldestMessage();
+    }
+    flush();
+  }
+
+  private void dropOldestMessage() {
+    final Iterator<Message> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      if (!iterator.next().token) {
+        iterator.remove();
+        return;
+      }
+    }
+  }
+
+  private Message findWaiting(String command) {
+    for (Message message : queue) {
+      if (command.equals(message.command)) return message;
+    }
+    return null;
+  }
+
+  /** The socket is open: start sending. */
+  void open(Sender sender) {
+    this.sender = sender;
+    authenticated = false;
+    flush();
+  }
+
+  /** The socket went away. Messages are kept for the next one, except for its tokens. */
+  void close() {
+    sender = null;
+    authenticated = false;
+    scheduler.removeCallbacks(flush);
+    final Iterator<Message> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().token) iterator.remove();
+    }
+  }
+
+  /** Forget everything, eg. when the user disconnects. */
+  void clear() {
+    close();
+    queue.clear();
+  }
+
+  private void flush() {
+    scheduler.removeCallbacks(flush);
+    if (sender == null) {
+      return;
+    }
+
+    final long now = scheduler.uptimeMillis();
+    while (!queue.isEmpty()) {
+      final Message message = queue.getFirst();
+      if (!message.token && !authenticated) {
+        return;
+      }
+      if (message.sendAt > now) {
+        scheduler.postAtTime(flush, message.sendAt);
+        return;
+      }
+      if (!sender.send(message.text)) {
+        // The socket is closing. Keep the message for the next one.
+        return;
+      }
+      queue.removeFirst();
+      if (message.token) {
+        authenticated = true;
+      }
+    }
+  }
+}
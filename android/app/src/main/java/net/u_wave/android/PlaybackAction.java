@@ -1,10 +1,11 @@
 package net.u_wave.android;
 
+import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
-import android.util.Log;
 import android.view.Surface;
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ExoPlayerFactory;
 import com.google.android.exoplayer2.PlaybackParameters;
@@ -20,74 +21,114 @@ import com.google.android.exoplayer2.source.dash.DefaultDashChunkSource;
 import com.google.android.exoplayer2.source.hls.HlsMediaSource;
 import com.google.android.exoplayer2.source.smoothstreaming.DefaultSsChunkSource;
 import com.google.android.exoplayer2.source.smoothstreaming.SsMediaSource;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.util.Util;
 import com.google.android.exoplayer2.video.VideoListener;
 import io.flutter.plugin.common.MethodChannel.Result;
-import io.flutter.plugin.common.PluginRegistry.Registrar;
-import io.flutter.view.TextureRegistry.SurfaceTextureEntry;
 import java.io.IOException;
 import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import org.schabi.newpipe.extractor.MediaFormat;
 import org.schabi.newpipe.extractor.NewPipe;
 import org.schabi.newpipe.extractor.exceptions.ExtractionException;
 import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.Stream;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.VideoStream;
 
 class PlaybackAction implements Player.EventListener, VideoListener {
-  private boolean ended = false;
+  // Read on the playback starter thread.
+  private volatile boolean ended = false;
   private Result flutterResult;
   private final Entry entry;
-  private final Surface surface;
-  private final SurfaceTextureEntry textureEntry;
+  private VideoSurface videoSurface;
+  private Surface surface;
   private final DataSource.Factory dataSourceFactory;
+  private final PlayerLoadControl loadControl = new PlayerLoadControl();
+  private final DefaultTrackSelector trackSelector = new DefaultTrackSelector();
   private final SimpleExoPlayer player;
   private int videoWidth;
   private int videoHeight;
   private final String id;
-  private final String logTag;
   private final Date startTime = new Date();
   private final Handler mainThread;
+  private final PlaybackTimings timings = new PlaybackTimings();
+  // How much to hold back to stay within the data budget, from DataUsage.
+  private final int dataSaver;
 
-  private StreamInfo streamInfo;
+  // Written on the playback starter thread, and checked on the main thread by cancel().
+  private volatile StreamInfo streamInfo;
 
   PlaybackAction(
-      final Registrar registrar,
+      final Context context,
+      final VideoSurface videoSurface,
       final Result result,
       final DataSource.Factory dataSourceFactory,
       final Entry entry) {
     flutterResult = result;
+    this.videoSurface = videoSurface;
     this.dataSourceFactory = dataSourceFactory;
     this.entry = entry;
     id = entry.sourceUrl;
-    logTag = String.format("PlaybackAction[%s]", id);
 
-    mainThread = new Handler(registrar.context().getMainLooper());
+    mainThread = new Handler(context.getMainLooper());
 
-    player = ExoPlayerFactory.newSimpleInstance(registrar.context());
+    dataSaver = DataUsage.getInstance().getSaverLevel();
+    if (dataSaver >= DataUsage.SAVER_AUDIO_ONLY && entry.shouldPlayVideo()) {
+      entry.setPlaybackType(PlaybackType.AUDIO_ONLY);
+    }
+    if (dataSaver >= DataUsage.SAVER_REDUCED) {
+      // Don't download further ahead than we need to.
+      loadControl.constrain();
+    }
+
+    player =
+        ExoPlayerFactory.newSimpleInstance(
+            context, new DefaultRenderersFactory(context), trackSelector, loadControl);
     player.addVideoListener(this);
     player.addListener(this);
 
-    if (entry.shouldPlayVideo()) {
-      textureEntry = registrar.textures().createSurfaceTexture();
-      surface = new Surface(textureEntry.surfaceTexture());
-    } else {
-      textureEntry = null;
-      surface = null;
+    // Without a video surface nobody can see the video, so it is not decoded.
+    if (videoSurface == null && entry.shouldPlayVideo()) {
+      entry.setPlaybackType(PlaybackType.AUDIO_ONLY);
     }
+
+    surface = entry.shouldPlayVideo() ? videoSurface.acquire() : null;
   }
 
   public Entry getEntry() {
     return entry;
   }
 
+  public Player getPlayer() {
+    return player;
+  }
+
+  public PlaybackTimings getTimings() {
+    return timings;
+  }
+
+  /** Extract and prepare the streams. Blocks on the network, so must not run on the main thread. */
   public void start() {
+    // Starts run one at a time, so one that was cancelled while it waited should not hold up the
+    // next.
+    if (ended) {
+      return;
+    }
+    timings.markStarted();
     final MediaSource mediaSource = getMediaSource();
     mainThread.post(
         () -> {
+          if (ended) {
+            return;
+          }
           player.prepare(mediaSource);
           player.seekTo(getCurrentSeek());
           player.setPlayWhenReady(true);
@@ -95,8 +136,81 @@ class PlaybackAction implements Player.EventListener, VideoListener {
         });
   }
 
+  /* Memory pressure, on the main thread */
+
+  /** Returns a description of what was released, or null if the buffer was already shrunk. */
+  public String shrinkBuffers() {
+    if (!loadControl.constrain()) {
+      return null;
+    }
+    return String.format(
+        Locale.ROOT,
+        "player buffer capped at %ds (%d KB held)",
+        PlayerLoadControl.CONSTRAINED_MAX_BUFFER_US / C.MICROS_PER_SECOND,
+        loadControl.getBufferedBytes() / 1024);
+  }
+
+  public boolean hasVideo() {
+    return surface != null;
+  }
+
+  /**
+   * Continue as audio only, releasing the video decoder. The caller may release the video surface
+   * afterwards. Returns false if there was no video.
+   *
+   * <p>The video renderer is disabled rather than the source being prepared again, so playback
+   * carries on without interruption. A separate video stream stops loading once nothing reads
+   * from it; one with the audio muxed in keeps loading for the audio.
+   */
+  public boolean dropVideo() {
+    if (surface == null) {
+      return false;
+    }
+    Trace.event(Trace.PLAYBACK_CALL, id, "dropVideo");
+    entry.setPlaybackType(PlaybackType.AUDIO_ONLY);
+    setVideoRenderersDisabled(true);
+    player.clearVideoSurface();
+    surface = null;
+    return true;
+  }
+
+  /**
+   * Switch between audio only and video, for the next start(). Video goes on the given surface,
+   * and is refused if there is none. Returns false if it was refused.
+   */
+  public boolean setPlaybackType(byte playbackType, VideoSurface videoSurface) {
+    if (playbackType != PlaybackType.BOTH) {
+      dropVideo();
+    } else if (surface == null) {
+      if (videoSurface == null) {
+        return false;
+      }
+      Trace.event(Trace.PLAYBACK_CALL, id, "restoreVideo");
+      this.videoSurface = videoSurface;
+      surface = videoSurface.acquire();
+      setVideoRenderersDisabled(false);
+    }
+    entry.setPlaybackType(playbackType);
+    return true;
+  }
+
+  /** The texture video is shown on, or null for audio only. */
+  public VideoSurface getVideoSurface() {
+    return surface != null ? videoSurface : null;
+  }
+
+  private void setVideoRenderersDisabled(boolean disabled) {
+    final DefaultTrackSelector.ParametersBuilder parameters = trackSelector.buildUponParameters();
+    for (int i = 0; i < player.getRendererCount(); i++) {
+      if (player.getRendererType(i) == C.TRACK_TYPE_VIDEO) {
+        parameters.setRendererDisabled(i, disabled);
+      }
+    }
+    trackSelector.setParameters(parameters);
+  }
+
   public void cancel() {
-    Log.d(logTag, "cancel()");
+    Trace.event(Trace.PLAYBACK_CALL, id, "cancel");
     if (streamInfo == null) {
       fail("Cancel", "Playback was cancelled", null);
     }
@@ -104,20 +218,10 @@ class PlaybackAction implements Player.EventListener, VideoListener {
   }
 
   public void end() {
-    Log.d(logTag, "end()");
+    Trace.event(Trace.PLAYBACK_CALL, id, "end");
     ended = true;
-    if (entry.shouldPlayVideo()) {
-      if (textureEntry != null) {
-        textureEntry.release();
-      } else {
-        try {
-          throw new RuntimeException("end() was called on a video entry, but textureEntry is null");
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
-      }
-    }
 
+    // The video surface outlives us: the next video track renders to it too.
     mainThread.post(
         () -> {
           player.stop();
@@ -131,7 +235,7 @@ class PlaybackAction implements Player.EventListener, VideoListener {
   private void fail(String name, String message, Object err) {
     if (ended) return;
     if (flutterResult != null) {
-      Log.d(logTag, String.format("fail(%s, %s)", name, message));
+      Trace.event(Trace.PLAYBACK_FAIL, id, message);
       flutterResult.error(name, message, err);
       flutterResult = null;
     } else {
@@ -144,7 +248,7 @@ class PlaybackAction implements Player.EventListener, VideoListener {
   }
 
   private StreamInfo getStreamInfo() {
-    Log.d(logTag, "getStreamInfo()");
+    Trace.event(Trace.PLAYBACK_CALL, id, "getStreamInfo");
     try {
       return StreamInfo.getInfo(NewPipe.getService(entry.sourceName), entry.sourceUrl);
     } catch (IOException err) {
@@ -165,7 +269,10 @@ class PlaybackAction implements Player.EventListener, VideoListener {
     if (streamInfo == null) {
       return null;
     }
-    return getCombinedMediaSource();
+    timings.markExtracted();
+    final MediaSource mediaSource = getCombinedMediaSource();
+    timings.markSourceCreated();
+    return mediaSource;
   }
 
   public int getCurrentSeek() {
@@ -175,83 +282,78 @@ class PlaybackAction implements Player.EventListener, VideoListener {
     return (int) (now - mediaStartTime);
   }
 
-  private AudioStream getPreferredAudioStream(StreamInfo info) {
-    AudioStream bestStream = null;
+  /** The audio streams to try, best first. */
+  private List<AudioStream> getAudioStreamCandidates(StreamInfo info) {
     for (AudioStream stream : info.getAudioStreams()) {
-      Log.d(
-          logTag,
-          String.format(
-              "  audio: %s %s - %d",
-              stream.getFormat().getName(),
-              stream.getFormat().getMimeType(),
-              stream.getAverageBitrate()));
-
-      if (bestStream == null) {
-        bestStream = stream;
-      } else if (stream.getAverageBitrate() > bestStream.getAverageBitrate()) {
-        bestStream = stream;
-      }
+      Trace.record(
+          Trace.AUDIO_CANDIDATE, id, stream.getAverageBitrate(), 0, stream.getFormat().getMimeType());
     }
 
-    if (bestStream != null) {
-      Log.d(
-          logTag,
-          String.format("best: %s at %s", bestStream.getFormat().getName(), bestStream.getUrl()));
+    final List<AudioStream> candidates =
+        dataSaver >= DataUsage.SAVER_REDUCED
+            ? StreamSelection.getCheapestAudioStreamCandidates(info.getAudioStreams())
+            : StreamSelection.getAudioStreamCandidates(info.getAudioStreams());
+
+    if (!candidates.isEmpty()) {
+      Trace.event(Trace.STREAM_SELECTED, id, candidates.get(0).getUrl());
     } else {
-      Log.d(logTag, "!! no audio streams");
+      Trace.event(Trace.STREAM_MISSING, id, "audio");
     }
 
-    return bestStream;
+    return candidates;
   }
 
-  private VideoStream getPreferredVideoStream(StreamInfo info) {
-    VideoStream bestStream = null;
+  /** The video streams to try, best first. */
+  private List<VideoStream> getVideoStreamCandidates(StreamInfo info) {
     for (VideoStream stream : info.getVideoStreams()) {
-      Log.d(
-          logTag,
-          String.format(
-              "  video: %s %s - %s",
-              stream.getFormat().getName(),
-              stream.getFormat().getMimeType(),
-              stream.getResolution()));
-
-      if (bestStream == null) {
-        bestStream = stream;
-      }
-      if (stream.getResolution().equals(entry.preferredResolution)) {
-        bestStream = stream;
-      }
+      Trace.event(Trace.VIDEO_CANDIDATE, id, stream.getResolution());
     }
 
-    if (bestStream != null) {
-      Log.d(
-          logTag,
-          String.format("best: %s at %s", bestStream.getFormat().getName(), bestStream.getUrl()));
+    final String resolution =
+        dataSaver >= DataUsage.SAVER_REDUCED
+            ? StreamSelection.getLowestResolution(info.getVideoStreams())
+            : entry.preferredResolution;
+    final List<VideoStream> candidates =
+        StreamSelection.getVideoStreamCandidates(info.getVideoStreams(), resolution);
+
+    if (!candidates.isEmpty()) {
+      Trace.event(Trace.STREAM_SELECTED, id, candidates.get(0).getUrl());
     } else {
-      Log.d(logTag, "!! no video streams");
+      Trace.event(Trace.STREAM_MISSING, id, "video");
     }
 
-    return bestStream;
+    return candidates;
+  }
+
+  private static List<HedgedDataSource.Candidate> getCandidates(List<? extends Stream> streams) {
+    final List<HedgedDataSource.Candidate> candidates = new ArrayList<>();
+    for (Stream stream : streams) {
+      final MediaFormat format = stream.getFormat();
+      candidates.add(
+          new HedgedDataSource.Candidate(
+              Uri.parse(stream.getUrl()), format != null ? format.getMimeType() : null));
+    }
+    return candidates;
   }
 
   private MediaSource getCombinedMediaSource() {
-    final VideoStream videoStream = getPreferredVideoStream(streamInfo);
-    AudioStream audioStream = null;
+    final List<VideoStream> videoStreams = getVideoStreamCandidates(streamInfo);
+    final VideoStream videoStream = videoStreams.isEmpty() ? null : videoStreams.get(0);
+    List<AudioStream> audioStreams = Collections.emptyList();
 
     if (videoStream == null
         || videoStream.isVideoOnly()
         || entry.playbackType == PlaybackType.AUDIO_ONLY) {
-      audioStream = getPreferredAudioStream(streamInfo);
+      audioStreams = getAudioStreamCandidates(streamInfo);
     }
 
-    if (videoStream == null && audioStream == null) {
+    if (videoStream == null && audioStreams.isEmpty()) {
       return null;
     }
 
     final MediaSource videoSource =
-        videoStream != null ? getMediaSource(Uri.parse(videoStream.getUrl())) : null;
-    final MediaSource audioSource =
-        audioStream != null ? getMediaSource(Uri.parse(audioStream.getUrl())) : null;
+        videoStream != null ? getMediaSource(videoStreams) : null;
+    final MediaSource audioSource = !audioStreams.isEmpty() ? getMediaSource(audioStreams) : null;
 
     MediaSource mediaSource = videoSource != null ? videoSource : audioSource;
     if (entry.playbackType == PlaybackType.AUDIO_ONLY) {
@@ -263,7 +365,9 @@ class PlaybackAction implements Player.EventListener, VideoListener {
     return mediaSource;
   }
 
-  private MediaSource getMediaSource(Uri uri) {
+  /** A source for the first candidate, falling back to the others if it is slow or fails. */
+  private MediaSource getMediaSource(List<? extends Stream> streams) {
+    final Uri uri = Uri.parse(streams.get(0).getUrl());
     switch (Util.inferContentType(uri)) {
       case C.TYPE_SS:
         return new SsMediaSource.Factory(
@@ -276,7 +380,13 @@ class PlaybackAction implements Player.EventListener, VideoListener {
       case C.TYPE_HLS:
         return new HlsMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
       case C.TYPE_OTHER:
-        return new ProgressiveMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+        // Progressive streams are single files, so any equivalent file can stand in. Racing them
+        // downloads the start twice, so that is left out when saving data.
+        final int maxInFlight =
+            dataSaver >= DataUsage.SAVER_REDUCED ? 1 : HedgedDataSource.MAX_IN_FLIGHT;
+        return new ProgressiveMediaSource.Factory(
+                new HedgedDataSource.Factory(dataSourceFactory, getCandidates(streams), maxInFlight))
+            .createMediaSource(uri);
     }
     return null;
   }
@@ -284,61 +394,56 @@ class PlaybackAction implements Player.EventListener, VideoListener {
   /* Player.EventListener */
   @Override
   public void onLoadingChanged(boolean isLoading) {
-    if (isLoading) {
-      Log.d(logTag, "onLoadingChanged: loading");
-    } else {
-      Log.d(logTag, "onLoadingChanged: not loading");
-    }
+    Trace.event(Trace.PLAYER_LOADING, id, isLoading ? 1 : 0);
   }
 
   @Override
   public void onPlayerStateChanged(boolean playWhenReady, int readyState) {
-    Log.d(
-        logTag,
-        String.format(
-            "onPlayerStateChanged playWhenReady=%b readyState=%d", playWhenReady, readyState));
+    Trace.event(Trace.PLAYER_STATE, id, playWhenReady ? 1 : 0, readyState);
 
     if (readyState == Player.STATE_READY) {
+      if (!timings.isReady()) {
+        timings.markReady();
+        Trace.event(Trace.PLAYER_READY, id, timings);
+      }
+
+      // The player is ready again after every rebuffer, but Dart only waits for the first time.
+      if (ended || flutterResult == null) {
+        return;
+      }
+
       PlaybackSettings playbackSettings;
       if (entry.playbackType == PlaybackType.BOTH) {
         playbackSettings =
             new PlaybackSettings(
-                textureEntry != null ? textureEntry.id() : null,
+                surface != null ? videoSurface.getTextureId() : null,
                 (double) videoWidth / (double) videoHeight);
       } else {
         playbackSettings = new PlaybackSettings();
       }
 
-      if (!ended) {
-        if (flutterResult != null) {
-          Log.d(logTag, "success()");
-          flutterResult.success(playbackSettings.toMap());
-          flutterResult = null;
-        } else {
-          try {
-            throw new RuntimeException(
-                "onPlayerStateChanged was called, but flutterResult has gone away");
-          } catch (Exception e) {
-            e.printStackTrace();
-          }
-        }
-      }
+      Trace.event(Trace.PLAYBACK_CALL, id, "success");
+      flutterResult.success(playbackSettings.toMap());
+      flutterResult = null;
     }
   }
 
   @Override
   public void onPositionDiscontinuity(int reason) {
-    Log.d(logTag, String.format("onPositionDiscontinuity reason=%d", reason));
+    Trace.event(Trace.PLAYER_DISCONTINUITY, id, reason);
   }
 
   @Override
   public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
-    Log.d(logTag, "onPlaybackParametersChanged");
+    Trace.event(Trace.PLAYER_EVENT, id, "onPlaybackParametersChanged");
   }
 
   @Override
   public void onTimelineChanged(Timeline timeline, Object manifest, int reason) {
-    Log.d(logTag, String.format("onTimelineChanged reason=%d", reason));
+    Trace.event(Trace.PLAYER_TIMELINE, id, reason);
+    if (reason == Player.TIMELINE_CHANGE_REASON_PREPARED) {
+      timings.markPrepared();
+    }
   }
 
   @Override
@@ -352,17 +457,17 @@ class PlaybackAction implements Player.EventListener, VideoListener {
 
   @Override
   public void onSeekProcessed() {
-    Log.d(logTag, "onSeekProcessed");
+    Trace.event(Trace.PLAYER_EVENT, id, "onSeekProcessed");
   }
 
   @Override
   public void onRepeatModeChanged(int mode) {
-    Log.d(logTag, String.format("onRepeatModeChanged enabled=%d", mode));
+    Trace.event(Trace.PLAYER_EVENT, id, "onRepeatModeChanged");
   }
 
   @Override
   public void onShuffleModeEnabledChanged(boolean enabled) {
-    Log.d(logTag, String.format("onShuffleModeEnabledChanged enabled=%b", enabled));
+    Trace.event(Trace.PLAYER_EVENT, id, "onShuffleModeEnabledChanged");
   }
 
   /* VideoListener */
@@ -373,6 +478,9 @@ class PlaybackAction implements Player.EventListener, VideoListener {
   public void onVideoSizeChanged(int width, int height, int rotation, float pixelRatio) {
     videoWidth = width;
     videoHeight = height;
+    if (surface != null) {
+      videoSurface.setSize(width, height);
+    }
   }
 
   public static class Entry {
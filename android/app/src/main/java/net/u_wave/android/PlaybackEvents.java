@@ -0,0 +1,156 @@
+package net.u_wave.android;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.Player;
+import io.flutter.plugin.common.EventChannel.EventSink;
+import io.flutter.plugin.common.EventChannel.StreamHandler;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pushes the player's position, buffered position and state to Dart. Events are sent when the
+ * state changes, and on a timer only while the position is actually moving: every second while
+ * the UI is visible, and rarely in the background. A paused, buffering or idle player causes no
+ * wakeups.
+ */
+class PlaybackEvents
+    implements StreamHandler, Player.EventListener, ForegroundTracker.Listener {
+  private static final long FOREGROUND_INTERVAL_MS = 1000;
+  private static final long BACKGROUND_INTERVAL_MS = 15000;
+
+  private final Handler mainThread = new Handler(Looper.getMainLooper());
+  private final Runnable tick = this::onTick;
+  private final ForegroundTracker foregroundTracker;
+  private EventSink sink;
+  private PlaybackAction playback;
+  private Player player;
+
+  PlaybackEvents(ForegroundTracker foregroundTracker) {
+    this.foregroundTracker = foregroundTracker;
+  }
+
+  /** Report on different playback, or on none. Must be called on the main thread. */
+  void setPlayback(PlaybackAction playback) {
+    final Player newPlayer = playback != null ? playback.getPlayer() : null;
+    if (player != newPlayer) {
+      if (player != null) {
+        player.removeListener(this);
+      }
+      if (newPlayer != null) {
+        newPlayer.addListener(this);
+      }
+    }
+    this.playback = playback;
+    this.player = newPlayer;
+    emit();
+  }
+
+  /** Stop listening and reporting. */
+  void close() {
+    setPlayback(null);
+    onCancel(null);
+  }
+
+  private boolean isAdvancing() {
+    return player != null
+        && player.getPlayWhenReady()
+        && player.getPlaybackState() == Player.STATE_READY;
+  }
+
+  private void onTick() {
+    emit();
+  }
+
+  /** Send the current state, and schedule the next update if the position is moving. */
+  private void emit() {
+    mainThread.removeCallbacks(tick);
+    if (sink == null) {
+      return;
+    }
+
+    sink.success(toMap());
+    if (isAdvancing()) {
+      mainThread.postDelayed(
+          tick,
+          foregroundTracker.isForeground() ? FOREGROUND_INTERVAL_MS : BACKGROUND_INTERVAL_MS);
+    }
+  }
+
+  private Map<String, Object> toMap() {
+    final Map<String, Object> map = new HashMap<>();
+    if (player == null) {
+      map.put("state", "none");
+      return map;
+    }
+
+    map.put("state", getStateName(player.getPlaybackState()));
+    map.put("playing", isAdvancing());
+    // False once the video was dropped, eg. to save memory.
+    map.put("video", playback.hasVideo());
+    map.put("position", player.getCurrentPosition());
+    map.put("bufferedPosition", player.getBufferedPosition());
+    return map;
+  }
+
+  private static String getStateName(int state) {
+    switch (state) {
+      case Player.STATE_BUFFERING:
+        return "buffering";
+      case Player.STATE_READY:
+        return "ready";
+      case Player.STATE_ENDED:
+        return "ended";
+      case Player.STATE_IDLE:
+      default:
+        return "idle";
+    }
+  }
+
+  /* StreamHandler */
+  @Override
+  public void onListen(Object arguments, EventSink events) {
+    sink = events;
+    foregroundTracker.addListener(this);
+    emit();
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    foregroundTracker.removeListener(this);
+    mainThread.removeCallbacks(tick);
+    sink = null;
+  }
+
+  /* ForegroundTracker.Listener */
+  @Override
+  public void onForegroundChanged(boolean foreground) {
+    // Reschedule at the new cadence, with a fresh position when coming back.
+    emit();
+  }
+
+  /* Player.EventListener */
+  @Override
+  public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+    emit();
+  }
+
+  @Override
+  public void onPositionDiscontinuity(int reason) {
+    emit();
+  }
+
+  @Override
+  public void onLoadingChanged(boolean isLoading) {
+    // The buffered position only changes while loading, so report where it ended up.
+    if (!isLoading) emit();
+  }
+
+  @Override
+  public void onPlayerError(ExoPlaybackException err) {
+    if (sink != null) {
+      sink.error("ExoPlaybackException", err.getMessage(), null);
+    }
+  }
+}
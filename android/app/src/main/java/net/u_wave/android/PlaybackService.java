@@ -0,0 +1,601 @@
+package net.u_wave.android;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
+import androidx.core.app.NotificationCompat;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.ext.mediasession.MediaSessionConnector;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+import io.flutter.plugin.common.MethodChannel.Result;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.u_wave.client.SendVoteMessage;
+import net.u_wave.client.RoomSnapshotStore;
+import net.u_wave.client.Socket;
+import net.u_wave.client.SocketStats;
+import net.u_wave.client.UwaveClient;
+import net.u_wave.client.UwaveServer;
+
+/**
+ * Owns the player session and the socket connection, so that listening can continue when the
+ * Flutter UI is gone. The plugins bind to this service while they are attached, and it runs in the
+ * foreground while something is playing.
+ */
+public class PlaybackService extends Service {
+  private static final String TAG = "PlaybackService";
+  static final String NOTIFICATION_CHANNEL = "u-wave.net/nowPlaying";
+  private static final long SOCKET_COUNT_INTERVAL_MS = 60_000;
+
+  /** Told about notification actions after the service has handled them. */
+  interface NotificationActionListener {
+    void onNotificationAction(String action);
+  }
+
+  /** Told when playback starts, changes, or stops. */
+  interface PlaybackListener {
+    void onPlaybackChanged(PlaybackAction playback);
+  }
+
+  private final LocalBinder binder = new LocalBinder();
+  private RelayListener socketListener;
+  // Package-private so tests can route media requests to a local server.
+  DataSource.Factory dataSourceFactory;
+  private MediaSessionCompat mediaSession;
+  private MediaSessionConnector sessionConnector;
+  private MediaMetadataCompat metadata;
+  private PlaybackAction currentPlayback;
+  // Extracts and prepares streams off the main thread, one track at a time.
+  private final ExecutorService playbackStarter =
+      Executors.newSingleThreadExecutor((runnable) -> new Thread(runnable, "PlaybackStarter"));
+  // The surface of the last video track, kept until video stops altogether.
+  private VideoSurface videoSurface;
+  private Handler mainThread;
+  private UwaveClient client;
+  // Socket bytes of `client` that have been counted in DataUsage.
+  private long countedSocketBytes;
+  private final Runnable countSocketBytes = this::countSocketBytes;
+  private Outbox outbox;
+  // The server the outbox holds messages for.
+  private String outboxApiUrl;
+  private Notification notification;
+  private NotificationActionListener notificationActionListener;
+  private final List<PlaybackListener> playbackListeners = new ArrayList<>();
+  private final MemoryPressure.Handler shrinkBuffers =
+      (level) -> currentPlayback != null ? currentPlayback.shrinkBuffers() : null;
+  private final MemoryPressure.Handler dropVideo = (level) -> dropVideoInBackground();
+  private boolean muted = false;
+  private final BroadcastReceiver actionReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          onNotificationAction(intent.getAction());
+        }
+      };
+  private boolean started = false;
+  private boolean foreground = false;
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    HttpClients.init(this);
+    mainThread = new Handler(getMainLooper());
+    outbox = new Outbox(mainThread);
+    dataSourceFactory =
+        new DefaultHttpDataSourceFactory(
+            Util.getUserAgent(this, "android.u-wave.net"),
+            DataUsage.getInstance().getTransferListener(DataUsage.Category.MEDIA));
+    createNotificationChannel();
+    createMediaSession();
+
+    final IntentFilter filter = new IntentFilter();
+    filter.addAction(NotificationPlugin.ACTION_UPVOTE);
+    filter.addAction(NotificationPlugin.ACTION_DOWNVOTE);
+    filter.addAction(NotificationPlugin.ACTION_MUTE_UNMUTE);
+    filter.addAction(NotificationPlugin.ACTION_DISCONNECT);
+    registerReceiver(actionReceiver, filter);
+
+    final MemoryPressure memoryPressure = MemoryPressure.getInstance();
+    memoryPressure.register(MemoryPressure.SHRINK_BUFFERS, shrinkBuffers);
+    memoryPressure.register(MemoryPressure.DROP_VIDEO, dropVideo);
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return binder;
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    return START_NOT_STICKY;
+  }
+
+  @Override
+  public void onDestroy() {
+    stopPlayback();
+    disconnect();
+    sessionConnector.setPlayer(null);
+    mediaSession.release();
+    unregisterReceiver(actionReceiver);
+    MemoryPressure.getInstance().unregister(shrinkBuffers);
+    MemoryPressure.getInstance().unregister(dropVideo);
+    playbackStarter.shutdownNow();
+    super.onDestroy();
+  }
+
+  /** Keep the service alive after the plugins unbind. */
+  private void ensureStarted() {
+    if (!started) {
+      startService(new Intent(this, PlaybackService.class));
+      started = true;
+    }
+  }
+
+  /**
+   * Stop the service once there is nothing left for it to do in the background. Without an
+   * activity, nothing needs the Flutter engine any more either.
+   */
+  private void stopIfIdle() {
+    if (started && currentPlayback == null && client == null) {
+      stopSelf();
+      started = false;
+      // Posted, because this can be reached from a platform message the engine is handling.
+      if (getApplication() instanceof UwaveApplication) {
+        mainThread.post(((UwaveApplication) getApplication())::releaseEngineIfUnused);
+      }
+    }
+  }
+
+  private void createNotificationChannel() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      final NotificationChannel channel =
+          new NotificationChannel(
+              NOTIFICATION_CHANNEL, "Now playing", NotificationManager.IMPORTANCE_LOW);
+      final NotificationManager manager =
+          (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+      manager.createNotificationChannel(channel);
+    }
+  }
+
+  /**
+   * The media session publishes the player's state, position and speed, so the system can show
+   * and extrapolate progress without us pushing updates. Playback follows the room, so it offers
+   * no transport controls.
+   */
+  private void createMediaSession() {
+    mediaSession = new MediaSessionCompat(this, TAG);
+    sessionConnector = new MediaSessionConnector(mediaSession);
+    sessionConnector.setEnabledPlaybackActions(0);
+    sessionConnector.setMediaMetadataProvider((player) -> metadata);
+  }
+
+  public MediaSessionCompat.Token getSessionToken() {
+    return mediaSession.getSessionToken();
+  }
+
+  /** Describe the current track to the media session. Pass a null title to clear it. */
+  public void setNowPlaying(String artist, String title, long durationMs) {
+    if (title == null) {
+      metadata = null;
+    } else {
+      metadata =
+          new MediaMetadataCompat.Builder()
+              .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
+              .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+              .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, durationMs)
+              .build();
+    }
+    mediaSession.setMetadata(metadata);
+  }
+
+  /** Show artwork for the current track, eg. on the lock screen. */
+  public void setArtwork(Bitmap artwork) {
+    if (metadata == null) {
+      return;
+    }
+    metadata =
+        new MediaMetadataCompat.Builder(metadata)
+            .putBitmap(MediaMetadataCompat.METADATA_KEY_ART, artwork)
+            .build();
+    mediaSession.setMetadata(metadata);
+  }
+
+  private Notification getForegroundNotification() {
+    if (notification != null) {
+      return notification;
+    }
+    return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+        .setSmallIcon(R.mipmap.ic_launcher)
+        .setContentTitle("üWave")
+        .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+        .build();
+  }
+
+  private void startForeground() {
+    if (!foreground) {
+      startForeground(NotificationPlugin.NOTIFY_NOW_PLAYING, getForegroundNotification());
+      foreground = true;
+    }
+  }
+
+  private void stopForeground() {
+    if (foreground) {
+      stopForeground(true);
+      foreground = false;
+    }
+  }
+
+  /** Use the now playing notification for the foreground service. */
+  public void setNotification(Notification notification) {
+    this.notification = notification;
+  }
+
+  /* Notification actions */
+
+  public void setNotificationActionListener(NotificationActionListener listener) {
+    notificationActionListener = listener;
+  }
+
+  /**
+   * Notification buttons are handled here, so they work straight away even when the Flutter UI
+   * is suspended or gone.
+   */
+  private void onNotificationAction(String action) {
+    Log.d(TAG, String.format("onNotificationAction(%s)", action));
+    switch (action) {
+      case NotificationPlugin.ACTION_UPVOTE:
+        sendVote(1);
+        break;
+      case NotificationPlugin.ACTION_DOWNVOTE:
+        sendVote(-1);
+        break;
+      case NotificationPlugin.ACTION_MUTE_UNMUTE:
+        setMuted(!muted);
+        break;
+      case NotificationPlugin.ACTION_DISCONNECT:
+        stopPlayback();
+        disconnect();
+        break;
+      default:
+        return;
+    }
+
+    if (notificationActionListener != null) {
+      notificationActionListener.onNotificationAction(action);
+    }
+  }
+
+  private void sendVote(int direction) {
+    send(new SendVoteMessage(direction).toJson());
+  }
+
+  public boolean isMuted() {
+    return muted;
+  }
+
+  public void setMuted(boolean muted) {
+    this.muted = muted;
+    if (currentPlayback != null) {
+      applyVolume(currentPlayback.getPlayer());
+    }
+  }
+
+  private void applyVolume(Player player) {
+    final Player.AudioComponent audio = player.getAudioComponent();
+    if (audio != null) {
+      audio.setVolume(muted ? 0f : 1f);
+    }
+  }
+
+  /* Playback */
+
+  public PlaybackAction getCurrentPlayback() {
+    return currentPlayback;
+  }
+
+  /** The listener is told about the current playback straight away. */
+  public void addPlaybackListener(PlaybackListener listener) {
+    playbackListeners.add(listener);
+    listener.onPlaybackChanged(currentPlayback);
+  }
+
+  public void removePlaybackListener(PlaybackListener listener) {
+    playbackListeners.remove(listener);
+  }
+
+  private void notifyPlaybackChanged(PlaybackAction playback) {
+    for (PlaybackListener listener : new ArrayList<>(playbackListeners)) {
+      listener.onPlaybackChanged(playback);
+    }
+  }
+
+  /** Nobody sees the video while the UI is in the background, so it is the first thing to go. */
+  private String dropVideoInBackground() {
+    if (currentPlayback == null || ForegroundTracker.getInstance().isForeground()) {
+      return null;
+    }
+    if (!currentPlayback.dropVideo()) {
+      return null;
+    }
+    notifyPlaybackChanged(currentPlayback);
+    releaseVideoSurface();
+    return "video texture and decoder";
+  }
+
+  /**
+   * Start playing an entry. Video is only played if a video surface is given, ie. when the Flutter
+   * UI is visible. Consecutive video tracks reuse the surface.
+   */
+  public void play(PlaybackAction.Entry entry, VideoSurface surface, Result result) {
+    cancelPlayback();
+    ensureStarted();
+
+    final PlaybackAction action =
+        new PlaybackAction(this, surface, result, dataSourceFactory, entry);
+    currentPlayback = action;
+    if (action.hasVideo()) {
+      if (videoSurface != surface) releaseVideoSurface();
+      videoSurface = surface;
+    } else {
+      releaseVideoSurface();
+    }
+    applyVolume(action.getPlayer());
+    sessionConnector.setPlayer(action.getPlayer());
+    notifyPlaybackChanged(action);
+    mediaSession.setActive(true);
+    startForeground();
+
+    playbackStarter.execute(action::start);
+  }
+
+  /**
+   * Switch the current track between audio only and video. Video needs a surface, like in play().
+   * The streams are extracted again on the starter thread, because that blocks on the network.
+   * Returns false if nothing is playing, or if video was asked for without a surface.
+   */
+  public boolean setPlaybackType(byte playbackType, VideoSurface surface) {
+    final PlaybackAction action = currentPlayback;
+    if (action == null || !action.setPlaybackType(playbackType, surface)) {
+      return false;
+    }
+    final VideoSurface used = action.getVideoSurface();
+    if (videoSurface != used) {
+      releaseVideoSurface();
+      videoSurface = used;
+    }
+    notifyPlaybackChanged(action);
+    playbackStarter.execute(action::start);
+    return true;
+  }
+
+  public void stopPlayback() {
+    cancelPlayback();
+    releaseVideoSurface();
+    mediaSession.setActive(false);
+    stopForeground();
+    stopIfIdle();
+  }
+
+  private void cancelPlayback() {
+    if (currentPlayback != null) {
+      sessionConnector.setPlayer(null);
+      notifyPlaybackChanged(null);
+      currentPlayback.cancel();
+      currentPlayback = null;
+    }
+  }
+
+  /** Release the video surface once the player that used it has let go of it. */
+  private void releaseVideoSurface() {
+    if (videoSurface != null) {
+      final VideoSurface released = videoSurface;
+      videoSurface = null;
+      // PlaybackAction.end() clears the player's surface in a main thread callback too. A video
+      // track that started in the meantime keeps using the surface.
+      mainThread.post(
+          () -> {
+            if (videoSurface != released) released.release();
+          });
+    }
+  }
+
+  /* Socket */
+
+  public UwaveClient getClient() {
+    return client;
+  }
+
+  /** Connect to a server. Raw socket events are relayed to the given listener, if any. */
+  public UwaveClient connect(String apiUrl, String socketUrl, Socket.Listener listener) {
+    closeClient();
+    ensureStarted();
+    // Messages that did not make it out before a reconnect are sent on the new connection, but
+    // not to a different server.
+    if (!apiUrl.equals(outboxApiUrl)) {
+      outbox.clear();
+      outboxApiUrl = apiUrl;
+    }
+
+    final UwaveServer server;
+    try {
+      server = new UwaveServer(new URL(apiUrl), new URL(toHttpUrl(socketUrl)));
+    } catch (MalformedURLException err) {
+      throw new IllegalArgumentException("Expected a URL", err);
+    }
+
+    // Each connection gets its own relay, so a previous socket that is still closing can't
+    // deliver events to the new listener.
+    socketListener = new RelayListener();
+    socketListener.setDelegate(listener);
+    client =
+        new UwaveClient(
+            HttpClients.getShared(), server, socketListener, getSnapshotStore(this, apiUrl));
+    countedSocketBytes = 0;
+    mainThread.postDelayed(countSocketBytes, SOCKET_COUNT_INTERVAL_MS);
+    return client;
+  }
+
+  /** Where the last known state of a server's room is kept between sessions. */
+  static RoomSnapshotStore getSnapshotStore(Context context, String apiUrl) {
+    return RoomSnapshotStore.forServer(new File(context.getCacheDir(), "rooms"), apiUrl);
+  }
+
+  public void disconnect() {
+    closeClient();
+    outbox.clear();
+    outboxApiUrl = null;
+    stopIfIdle();
+  }
+
+  /**
+   * Send a message once the socket is open and authenticated. Messages sent while reconnecting are
+   * kept, and rapid votes are sent only once.
+   */
+  public void send(String message) {
+    outbox.add(message);
+  }
+
+  /** Authenticate the current connection. Commands wait for this before they are sent. */
+  public void sendToken(String token) {
+    outbox.addToken(token);
+  }
+
+  private void closeClient() {
+    outbox.close();
+    if (socketListener != null) {
+      socketListener.setDelegate(null);
+      socketListener = null;
+    }
+    if (client != null) {
+      Log.d(TAG, "disconnect()");
+      countSocketBytes();
+      mainThread.removeCallbacks(countSocketBytes);
+      client.close();
+      client = null;
+    }
+  }
+
+  /**
+   * Count socket traffic since the last time. This runs every so often rather than per frame, so
+   * bytes are attributed to the network that was active at the time of counting. The socket only
+   * estimates its frame sizes, see {@link SocketStats}.
+   */
+  private void countSocketBytes() {
+    if (client == null) return;
+    final SocketStats stats = client.getSocket().getStats();
+    final long total =
+        stats.getEstimatedWireBytesIn().get() + stats.getEstimatedWireBytesOut().get();
+    DataUsage.getInstance().add(DataUsage.Category.SOCKET, total - countedSocketBytes);
+    countedSocketBytes = total;
+    mainThread.removeCallbacks(countSocketBytes);
+    mainThread.postDelayed(countSocketBytes, SOCKET_COUNT_INTERVAL_MS);
+  }
+
+  /** Stop relaying socket events to a listener that is going away, but stay connected. */
+  public void detachListener(Socket.Listener listener) {
+    if (socketListener != null) {
+      socketListener.detach(listener);
+    }
+  }
+
+  public void attachListener(Socket.Listener listener) {
+    if (socketListener != null) {
+      socketListener.setDelegate(listener);
+    }
+  }
+
+  // java.net.URL does not know the ws: and wss: schemes, but OkHttp treats them as http: and https:.
+  private static String toHttpUrl(String url) {
+    if (url.regionMatches(true, 0, "ws:", 0, 3)) {
+      return "http:" + url.substring(3);
+    } else if (url.regionMatches(true, 0, "wss:", 0, 4)) {
+      return "https:" + url.substring(4);
+    }
+    return url;
+  }
+
+  public class LocalBinder extends Binder {
+    PlaybackService getService() {
+      return PlaybackService.this;
+    }
+  }
+
+  /**
+   * Forwards socket events to whichever plugin is currently attached, and tells the outbox whether
+   * it can send.
+   */
+  private class RelayListener implements Socket.Listener {
+    private volatile Socket.Listener delegate;
+
+    void setDelegate(Socket.Listener delegate) {
+      this.delegate = delegate;
+    }
+
+    void detach(Socket.Listener listener) {
+      if (delegate == listener) {
+        delegate = null;
+      }
+    }
+
+    private void onSocketChanged(boolean open) {
+      mainThread.post(
+          () -> {
+            // Only the current connection's events count.
+            if (socketListener != this || client == null) return;
+            if (open) {
+              final Socket socket = client.getSocket();
+              outbox.open(socket::sendText);
+            } else {
+              outbox.close();
+            }
+          });
+    }
+
+    @Override
+    public void onOpen() {
+      onSocketChanged(true);
+      final Socket.Listener listener = delegate;
+      if (listener != null) listener.onOpen();
+    }
+
+    @Override
+    public void onText(String text) {
+      final Socket.Listener listener = delegate;
+      if (listener != null) listener.onText(text);
+    }
+
+    @Override
+    public void onClosed(int code, String reason) {
+      onSocketChanged(false);
+      final Socket.Listener listener = delegate;
+      if (listener != null) listener.onClosed(code, reason);
+    }
+
+    @Override
+    public void onFailure(Throwable err) {
+      onSocketChanged(false);
+      final Socket.Listener listener = delegate;
+      if (listener != null) listener.onFailure(err);
+    }
+  }
+}
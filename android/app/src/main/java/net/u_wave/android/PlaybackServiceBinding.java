@@ -0,0 +1,69 @@
+package net.u_wave.android;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import java.util.LinkedList;
+
+/** Binds a plugin to the PlaybackService, queueing calls until the service is connected. */
+class PlaybackServiceBinding implements ServiceConnection {
+  interface Callback {
+    void run(PlaybackService service);
+  }
+
+  private final Context context;
+  private final LinkedList<Callback> pending = new LinkedList<>();
+  private PlaybackService service;
+  private boolean bound = false;
+
+  PlaybackServiceBinding(Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /** The service, or null if it is not connected yet. */
+  PlaybackService getService() {
+    return service;
+  }
+
+  void bind() {
+    if (!bound) {
+      bound =
+          context.bindService(
+              new Intent(context, PlaybackService.class), this, Context.BIND_AUTO_CREATE);
+    }
+  }
+
+  void unbind() {
+    if (bound) {
+      context.unbindService(this);
+      bound = false;
+    }
+    service = null;
+    pending.clear();
+  }
+
+  /** Run the callback on the main thread once the service is connected. */
+  void run(Callback callback) {
+    if (service != null) {
+      callback.run(service);
+    } else {
+      pending.add(callback);
+      bind();
+    }
+  }
+
+  @Override
+  public void onServiceConnected(ComponentName name, IBinder binder) {
+    service = ((PlaybackService.LocalBinder) binder).getService();
+    while (!pending.isEmpty()) {
+      pending.pop().run(service);
+    }
+  }
+
+  @Override
+  public void onServiceDisconnected(ComponentName name) {
+    service = null;
+  }
+}
@@ -0,0 +1,72 @@
+package net.u_wave.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When each phase of starting playback finished, in {@link System#nanoTime()}. Each mark is only
+ * recorded the first time, so restarting an entry with a different playback type does not reset
+ * them.
+ */
+public class PlaybackTimings {
+  private long started;
+  private long extracted;
+  private long sourceCreated;
+  private long prepared;
+  private long ready;
+
+  private static long mark(long current) {
+    return current != 0 ? current : System.nanoTime();
+  }
+
+  synchronized void markStarted() {
+    started = mark(started);
+  }
+
+  synchronized void markExtracted() {
+    extracted = mark(extracted);
+  }
+
+  synchronized void markSourceCreated() {
+    sourceCreated = mark(sourceCreated);
+  }
+
+  synchronized void markPrepared() {
+    prepared = mark(prepared);
+  }
+
+  synchronized void markReady() {
+    ready = mark(ready);
+  }
+
+  public synchronized boolean isReady() {
+    return ready != 0;
+  }
+
+  private static long millis(long from, long to) {
+    return from != 0 && to != 0 ? (to - from) / 1_000_000 : -1;
+  }
+
+  /** Duration of each phase in milliseconds, or -1 for phases that did not finish. */
+  public synchronized Map<String, Long> toMap() {
+    final Map<String, Long> map = new HashMap<>();
+    map.put("extraction", millis(started, extracted));
+    map.put("sourceCreation", millis(extracted, sourceCreated));
+    map.put("prepare", millis(sourceCreated, prepared));
+    map.put("ready", millis(prepared, ready));
+    map.put("total", millis(started, ready));
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    final Map<String, Long> map = toMap();
+    return String.format(
+        "extraction=%dms sourceCreation=%dms prepare=%dms ready=%dms total=%dms",
+        map.get("extraction"),
+        map.get("sourceCreation"),
+        map.get("prepare"),
+        map.get("ready"),
+        map.get("total"));
+  }
+}
@@ -0,0 +1,101 @@
+package net.u_wave.android;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+
+/**
+ * The default load control, except that its buffer can be shrunk while playing when memory runs
+ * low. ExoPlayer calls this on its playback thread.
+ */
+class PlayerLoadControl implements LoadControl {
+  // Buffer at most this far ahead when memory is low, instead of the default 50 seconds.
+  static final long CONSTRAINED_MAX_BUFFER_US = 15 * C.MICROS_PER_SECOND;
+  // How much memory the allocator keeps around when memory is low.
+  private static final int CONSTRAINED_TARGET_BUFFER_BYTES = 2 * 1024 * 1024;
+
+  private final DefaultAllocator allocator =
+      new DefaultAllocator(/* trimOnReset= */ true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
+  private final DefaultLoadControl delegate =
+      new DefaultLoadControl.Builder().setAllocator(allocator).createDefaultLoadControl();
+  private volatile boolean constrained = false;
+
+  /**
+   * Stop buffering far ahead, and free the allocations that are not holding media. Returns false
+   * if the buffer was already shrunk.
+   */
+  boolean constrain() {
+    if (constrained) {
+      return false;
+    }
+    constrained = true;
+    // Lowering the target trims the allocator's pool of free segments.
+    allocator.setTargetBufferSize(CONSTRAINED_TARGET_BUFFER_BYTES);
+    return true;
+  }
+
+  /** Bytes currently holding buffered media. */
+  int getBufferedBytes() {
+    return allocator.getTotalBytesAllocated();
+  }
+
+  @Override
+  public void onPrepared() {
+    delegate.onPrepared();
+  }
+
+  @Override
+  public void onTracksSelected(
+      Renderer[] renderers, TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+    delegate.onTracksSelected(renderers, trackGroups, trackSelections);
+    if (constrained) {
+      // The default load control resets the target for the new tracks.
+      allocator.setTargetBufferSize(CONSTRAINED_TARGET_BUFFER_BYTES);
+    }
+  }
+
+  @Override
+  public void onStopped() {
+    delegate.onStopped();
+  }
+
+  @Override
+  public void onReleased() {
+    delegate.onReleased();
+  }
+
+  @Override
+  public Allocator getAllocator() {
+    return allocator;
+  }
+
+  @Override
+  public long getBackBufferDurationUs() {
+    // Already 0 by default: nothing behind the playback position is kept.
+    return delegate.getBackBufferDurationUs();
+  }
+
+  @Override
+  public boolean retainBackBufferFromKeyframe() {
+    return delegate.retainBackBufferFromKeyframe();
+  }
+
+  @Override
+  public boolean shouldContinueLoading(long bufferedDurationUs, float playbackSpeed) {
+    if (constrained && bufferedDurationUs >= CONSTRAINED_MAX_BUFFER_US) {
+      return false;
+    }
+    return delegate.shouldContinueLoading(bufferedDurationUs, playbackSpeed);
+  }
+
+  @Override
+  public boolean shouldStartPlayback(
+      long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+    return delegate.shouldStartPlayback(bufferedDurationUs, playbackSpeed, rebuffering);
+  }
+}
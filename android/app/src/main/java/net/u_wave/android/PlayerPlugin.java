@@ -1,54 +1,103 @@
 package net.u_wave.android;
 
 import android.content.Context;
-import android.util.Log;
-import com.google.android.exoplayer2.upstream.DefaultHttpDataSourceFactory;
-import com.google.android.exoplayer2.util.Util;
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.embedding.engine.plugins.activity.ActivityAware;
+import io.flutter.embedding.engine.plugins.activity.ActivityPluginBinding;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
-import io.flutter.plugin.common.PluginRegistry.Registrar;
 import java.util.Map;
 import org.schabi.newpipe.extractor.NewPipe;
 import org.schabi.newpipe.extractor.localization.Localization;
 
-public class PlayerPlugin implements MethodCallHandler {
+/**
+ * Lives as long as the engine, so activity recreation does not touch the player. Video is only
+ * played while an activity shows the Flutter UI.
+ */
+public class PlayerPlugin implements FlutterPlugin, ActivityAware, MethodCallHandler {
   private static final String CHANNEL_NAME = "u-wave.net/player";
-
-  /** Plugin registration. */
-  public static void registerWith(Registrar registrar) {
-    final MethodChannel channel = new MethodChannel(registrar.messenger(), CHANNEL_NAME);
+  private static final String EVENT_CHANNEL_NAME = "u-wave.net/player-events";
+
+  private MethodChannel channel;
+  private EventChannel eventChannel;
+  private PlaybackEvents events;
+  private PlaybackService.PlaybackListener playbackListener;
+  private VideoSurface videoSurface;
+  private PlaybackServiceBinding service;
+  private ThumbnailCache thumbnails;
+  private boolean hasActivity = false;
+
+  /* FlutterPlugin */
+  @Override
+  public void onAttachedToEngine(FlutterPluginBinding binding) {
+    final Context context = binding.getApplicationContext();
+    final FlutterEngine engine = binding.getFlutterEngine();
+    HttpClients.init(context);
     // Currently the app only supports English
-    NewPipe.init(new OkHttpDownloader(new okhttp3.OkHttpClient.Builder().build()), new Localization("en", "GB"));
-    final PlayerPlugin plugin = new PlayerPlugin(registrar);
-    channel.setMethodCallHandler(plugin);
+    NewPipe.init(
+        new OkHttpDownloader(HttpClients.getShared(), DataUsage.Category.EXTRACTION),
+        new Localization("en", "GB"));
+
+    videoSurface = new VideoSurface(engine.getRenderer());
+    thumbnails = ThumbnailCache.getInstance(context);
+    service = new PlaybackServiceBinding(context);
+    service.bind();
+
+    events = new PlaybackEvents(ForegroundTracker.getInstance());
+    playbackListener = events::setPlayback;
+    service.run((playbackService) -> playbackService.addPlaybackListener(playbackListener));
+
+    channel = new MethodChannel(engine.getDartExecutor(), CHANNEL_NAME);
+    channel.setMethodCallHandler(this);
+    eventChannel = new EventChannel(engine.getDartExecutor(), EVENT_CHANNEL_NAME);
+    eventChannel.setStreamHandler(events);
+  }
+
+  /** Detach from the playback service. Playback continues in the background. */
+  @Override
+  public void onDetachedFromEngine(FlutterPluginBinding binding) {
+    channel.setMethodCallHandler(null);
+    eventChannel.setStreamHandler(null);
+    final PlaybackService playbackService = service.getService();
+    if (playbackService != null) {
+      playbackService.removePlaybackListener(playbackListener);
+    }
+    events.close();
+    service.unbind();
   }
 
-  private final DefaultHttpDataSourceFactory dataSourceFactory;
-  private final Registrar registrar;
-  private PlaybackAction currentPlayback;
+  /* ActivityAware */
+  @Override
+  public void onAttachedToActivity(ActivityPluginBinding binding) {
+    hasActivity = true;
+  }
 
-  private PlayerPlugin(Registrar registrar) {
-    this.registrar = registrar;
+  @Override
+  public void onDetachedFromActivityForConfigChanges() {
+    // The activity comes straight back, so keep playing as is.
+  }
 
-    Context context = registrar.context();
-    dataSourceFactory =
-        new DefaultHttpDataSourceFactory(Util.getUserAgent(context, "android.u-wave.net"));
+  @Override
+  public void onReattachedToActivityForConfigChanges(ActivityPluginBinding binding) {
+    hasActivity = true;
   }
 
-  private void runInNewThread(Runnable callback) {
-    new Thread(callback).start();
+  @Override
+  public void onDetachedFromActivity() {
+    hasActivity = false;
   }
 
   private void onPlay(Map<String, String> data, final Result result) {
-    if (currentPlayback != null) {
-      currentPlayback.cancel();
-      currentPlayback = null;
-    }
-
     if (data == null) {
-      result.success(null);
+      service.run(
+          (playbackService) -> {
+            playbackService.stopPlayback();
+            result.success(null);
+          });
       return;
     }
 
@@ -68,16 +117,21 @@ public class PlayerPlugin implements MethodCallHandler {
 
     final PlaybackAction.Entry entry =
         new PlaybackAction.Entry(sourceName, sourceUrl, seek, playbackType);
-    final PlaybackAction action = new PlaybackAction(registrar, result, dataSourceFactory, entry);
 
-    currentPlayback = action;
-
-    runInNewThread(
-        () -> {
-          action.start();
+    service.run(
+        (playbackService) -> {
+          playbackService.play(entry, getVisibleVideoSurface(), result);
         });
   }
 
+  /**
+   * Video is only decoded while someone can see it. A stopped activity stays attached, so being
+   * attached is not enough.
+   */
+  private VideoSurface getVisibleVideoSurface() {
+    return hasActivity && ForegroundTracker.getInstance().isForeground() ? videoSurface : null;
+  }
+
   private void onSetPlaybackType(Integer playbackType, Result result) {
     if (playbackType == null) {
       result.error("MissingParameter", "Missing parameter \"playbackType\"", null);
@@ -86,16 +140,45 @@ public class PlayerPlugin implements MethodCallHandler {
 
     final byte playbackTypeId = playbackType.byteValue();
 
-    if (currentPlayback != null) {
-      currentPlayback.getEntry().setPlaybackType(playbackTypeId);
-      currentPlayback.start();
-      Log.d(
-          String.format("PlaybackAction[%s]", currentPlayback.getEntry().sourceUrl),
-          String.format("getCurrentSeek(): %d", currentPlayback.getCurrentSeek()));
-      result.success(null);
-    } else {
-      result.error("NoPlayback", "Can't change playback type because nothing is playing.", null);
+    service.run(
+        (playbackService) -> {
+          if (playbackService.getCurrentPlayback() == null) {
+            result.error(
+                "NoPlayback", "Can't change playback type because nothing is playing.", null);
+          } else if (playbackService.setPlaybackType(playbackTypeId, getVisibleVideoSurface())) {
+            result.success(null);
+          } else {
+            result.error("NoVideoSurface", "Can't play video while the app is not visible.", null);
+          }
+        });
+  }
+
+  private void onThumbnail(Map<String, Object> args, Result result) {
+    final String url = args == null ? null : (String) args.get("url");
+    final Integer size = args == null ? null : (Integer) args.get("size");
+    if (url == null) {
+      result.error("MissingParameter", "Missing parameter \"url\"", null);
+      return;
+    }
+    if (size == null) {
+      result.error("MissingParameter", "Missing parameter \"size\"", null);
+      return;
     }
+    if (size <= 0) {
+      result.error("InvalidParameter", "Parameter \"size\" must be positive", null);
+      return;
+    }
+
+    thumbnails.loadBytes(
+        url,
+        size,
+        (bytes) -> {
+          if (bytes == null) {
+            result.error("ThumbnailError", String.format("Could not load thumbnail %s", url), null);
+          } else {
+            result.success(bytes);
+          }
+        });
   }
 
   /* MethodCallHandler */
@@ -109,6 +192,23 @@ public class PlayerPlugin implements MethodCallHandler {
       case "setPlaybackType":
         onSetPlaybackType((Integer) call.arguments, result);
         break;
+      case "thumbnail":
+        onThumbnail((Map<String, Object>) call.arguments, result);
+        break;
+      case "traces":
+        result.success(Trace.dump());
+        break;
+      case "dataUsage":
+        result.success(DataUsage.getInstance().toMap());
+        break;
+      case "setDataBudget":
+        if (!(call.arguments instanceof Number)) {
+          result.error("MissingParameter", "Expected the budget in bytes", null);
+          return;
+        }
+        DataUsage.getInstance().setBudget(((Number) call.arguments).longValue());
+        result.success(null);
+        break;
       default:
         result.notImplemented();
         break;
@@ -0,0 +1,117 @@
+package net.u_wave.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.VideoStream;
+
+/** Picks the streams to play from the candidates NewPipe extracted. */
+public final class StreamSelection {
+  private StreamSelection() {}
+
+  /** The audio stream with the highest average bitrate, or null if there are none. */
+  public static AudioStream getPreferredAudioStream(List<AudioStream> streams) {
+    AudioStream bestStream = null;
+    for (AudioStream stream : streams) {
+      if (bestStream == null) {
+        bestStream = stream;
+      } else if (stream.getAverageBitrate() > bestStream.getAverageBitrate()) {
+        bestStream = stream;
+      }
+    }
+    return bestStream;
+  }
+
+  /**
+   * The last video stream in the preferred resolution, or the first stream if none match. Returns
+   * null if there are no video streams.
+   */
+  public static VideoStream getPreferredVideoStream(
+      List<VideoStream> streams, String preferredResolution) {
+    VideoStream bestStream = null;
+    for (VideoStream stream : streams) {
+      if (bestStream == null) {
+        bestStream = stream;
+      }
+      if (stream.getResolution().equals(preferredResolution)) {
+        bestStream = stream;
+      }
+    }
+    return bestStream;
+  }
+
+  /** All audio streams, the preferred one first and the rest by descending bitrate. */
+  public static List<AudioStream> getAudioStreamCandidates(List<AudioStream> streams) {
+    final List<AudioStream> candidates = new ArrayList<>(streams);
+    final AudioStream preferred = getPreferredAudioStream(streams);
+    Collections.sort(
+        candidates,
+        (a, b) -> {
+          if (a == b) return 0;
+          if (a == preferred || b == preferred) return a == preferred ? -1 : 1;
+          return Integer.compare(b.getAverageBitrate(), a.getAverageBitrate());
+        });
+    return candidates;
+  }
+
+  /** All audio streams, by ascending bitrate, for when data is scarce. */
+  public static List<AudioStream> getCheapestAudioStreamCandidates(List<AudioStream> streams) {
+    final List<AudioStream> candidates = new ArrayList<>(streams);
+    Collections.sort(
+        candidates, (a, b) -> Integer.compare(a.getAverageBitrate(), b.getAverageBitrate()));
+    return candidates;
+  }
+
+  /** The lowest resolution among the video streams, eg. "144p", or null if there are none. */
+  public static String getLowestResolution(List<VideoStream> streams) {
+    String lowest = null;
+    int lowestLines = Integer.MAX_VALUE;
+    for (VideoStream stream : streams) {
+      final int lines = parseLines(stream.getResolution());
+      if (lines < lowestLines) {
+        lowest = stream.getResolution();
+        lowestLines = lines;
+      }
+    }
+    return lowest;
+  }
+
+  // "720p60" is 720 lines.
+  private static int parseLines(String resolution) {
+    int end = 0;
+    while (end < resolution.length() && Character.isDigit(resolution.charAt(end))) {
+      end++;
+    }
+    return end > 0 ? Integer.parseInt(resolution.substring(0, end)) : Integer.MAX_VALUE - 1;
+  }
+
+  /**
+   * The video streams that can stand in for the preferred one: the preferred stream first, then
+   * the others in the same resolution, then the rest in their original order. Only streams that
+   * are video-only, or not, like the preferred one are included, since they are played
+   * differently.
+   */
+  public static List<VideoStream> getVideoStreamCandidates(
+      List<VideoStream> streams, String preferredResolution) {
+    final List<VideoStream> candidates = new ArrayList<>();
+    final VideoStream preferred = getPreferredVideoStream(streams, preferredResolution);
+    if (preferred == null) {
+      return candidates;
+    }
+    candidates.add(preferred);
+    for (VideoStream stream : streams) {
+      if (stream != preferred
+          && stream.isVideoOnly() == preferred.isVideoOnly()
+          && stream.getResolution().equals(preferred.getResolution())) {
+        candidates.add(stream);
+      }
+    }
+    for (VideoStream stream : streams) {
+      if (stream.isVideoOnly() == preferred.isVideoOnly() && !candidates.contains(stream)) {
+        candidates.add(stream);
+      }
+    }
+    return candidates;
+  }
+}
@@ -0,0 +1,182 @@
+package net.u_wave.android;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Fetches thumbnails through the shared OkHttpClient, whose disk cache keeps the original image,
+ * and decodes them subsampled to the size they are shown at. Decoded bitmaps are kept in a memory
+ * LRU bounded by byte size, so advancing to a track we have seen before costs nothing.
+ */
+class ThumbnailCache {
+  private static final String TAG = "ThumbnailCache";
+
+  interface Callback {
+    /** Called on the main thread. The bitmap is null if the thumbnail could not be loaded. */
+    void onThumbnail(Bitmap bitmap);
+  }
+
+  interface BytesCallback {
+    /** Called on the main thread. The bytes are null if the thumbnail could not be loaded. */
+    void onBytes(byte[] bytes);
+  }
+
+  private static ThumbnailCache instance;
+
+  static synchronized ThumbnailCache getInstance(Context context) {
+    if (instance == null) {
+      HttpClients.init(context);
+      instance = new ThumbnailCache();
+    }
+    return instance;
+  }
+
+  private final LruCache<String, Bitmap> memory;
+  // Callbacks waiting for each key, so concurrent requests share a single fetch and decode.
+  private final Map<String, List<Callback>> pending = new HashMap<>();
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  private final MemoryPressure.Handler trim = (level) -> trim();
+
+  private ThumbnailCache() {
+    // At most an eighth of the heap. 8MB still fits a couple hundred notification thumbnails.
+    final int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, 8 * 1024 * 1024);
+    memory =
+        new LruCache<String, Bitmap>(maxBytes) {
+          @Override
+          protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+          }
+        };
+    MemoryPressure.getInstance().register(MemoryPressure.TRIM_CACHES, trim);
+  }
+
+  /** Drop all decoded thumbnails. They are refetched from the disk cache if needed again. */
+  private String trim() {
+    final int count = memory.snapshot().size();
+    if (count == 0) {
+      return null;
+    }
+    final int bytes = memory.size();
+    memory.evictAll();
+    return String.format(Locale.ROOT, "%d thumbnails (%d KB)", count, bytes / 1024);
+  }
+
+  private static String getKey(String url, int size) {
+    return size + ":" + url;
+  }
+
+  /** A thumbnail that has already been decoded at this size, or null. */
+  Bitmap getCached(String url, int size) {
+    return memory.get(getKey(url, size));
+  }
+
+  /** Load a thumbnail so that its smallest side is at least `size` pixels. */
+  void load(String url, int size, Callback callback) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Thumbnail size must be positive, got " + size);
+    }
+    final String key = getKey(url, size);
+    final Bitmap cached = memory.get(key);
+    if (cached != null) {
+      callback.onThumbnail(cached);
+      return;
+    }
+
+    List<Callback> callbacks = pending.get(key);
+    if (callbacks != null) {
+      callbacks.add(callback);
+      return;
+    }
+    callbacks = new ArrayList<>();
+    callbacks.add(callback);
+    pending.put(key, callbacks);
+
+    executor.execute(
+        () -> {
+          final Bitmap bitmap = fetch(url, size);
+          mainHandler.post(
+              () -> {
+                if (bitmap != null) memory.put(key, bitmap);
+                for (Callback waiting : pending.remove(key)) {
+                  waiting.onThumbnail(bitmap);
+                }
+              });
+        });
+  }
+
+  /** Load a thumbnail encoded as a JPEG, for Flutter's Image.memory. */
+  void loadBytes(String url, int size, BytesCallback callback) {
+    load(
+        url,
+        size,
+        (bitmap) -> {
+          if (bitmap == null) {
+            callback.onBytes(null);
+            return;
+          }
+          executor.execute(
+              () -> {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+                final byte[] bytes = out.toByteArray();
+                mainHandler.post(() -> callback.onBytes(bytes));
+              });
+        });
+  }
+
+  private Bitmap fetch(String url, int size) {
+    final Request request = new Request.Builder().url(url).build();
+    try (Response response = HttpClients.getShared().newCall(request).execute()) {
+      final ResponseBody body = response.body();
+      if (!response.isSuccessful() || body == null) {
+        Log.w(TAG, String.format("Could not fetch %s: HTTP %d", url, response.code()));
+        return null;
+      }
+      return decode(body.bytes(), size);
+    } catch (IOException | IllegalArgumentException err) {
+      Log.w(TAG, String.format("Could not fetch %s", url), err);
+      return null;
+    }
+  }
+
+  private static Bitmap decode(byte[] data, int size) {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+
+    // The decoder only reads every nth pixel, so the full size image is never in memory.
+    int sampleSize = 1;
+    final int smallestSide = Math.min(options.outWidth, options.outHeight);
+    while (smallestSide / (sampleSize * 2) >= size) {
+      sampleSize *= 2;
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    // Thumbnails are JPEGs without transparency, so this halves their memory use.
+    options.inPreferredConfig = Bitmap.Config.RGB_565;
+    return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+  }
+}
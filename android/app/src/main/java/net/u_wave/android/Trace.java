@@ -0,0 +1,175 @@
+package net.u_wave.android;
+
+import android.util.Log;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Recent events from the socket and the player, for diagnosing problems after the fact. Recording
+ * an event stores its type, the time and its arguments into preallocated arrays, and nothing is
+ * formatted until the ring is dumped, so this is cheap enough to leave on in release builds.
+ * Debug builds also mirror every event to logcat.
+ */
+final class Trace {
+  private static final String TAG = "Trace";
+  // Must be a power of two.
+  private static final int CAPACITY = 1024;
+  private static final boolean LOGCAT = BuildConfig.DEBUG;
+
+  // Event types. Arguments are `source`, `a`, `b` and `detail`, and each type's format picks the
+  // ones it uses by position.
+  static final int SOCKET_OPEN = 0;
+  static final int SOCKET_MESSAGE = 1;
+  static final int SOCKET_CLOSED = 2;
+  static final int SOCKET_FAILURE = 3;
+  static final int PLAYBACK_CALL = 4;
+  static final int PLAYBACK_FAIL = 5;
+  static final int AUDIO_CANDIDATE = 6;
+  static final int VIDEO_CANDIDATE = 7;
+  static final int STREAM_SELECTED = 8;
+  static final int STREAM_MISSING = 9;
+  static final int PLAYER_LOADING = 10;
+  static final int PLAYER_STATE = 11;
+  static final int PLAYER_READY = 12;
+  static final int PLAYER_DISCONTINUITY = 13;
+  static final int PLAYER_TIMELINE = 14;
+  static final int PLAYER_EVENT = 15;
+  static final int HEDGE_STARTED = 16;
+  static final int HEDGE_WON = 17;
+
+  private static final String[] FORMATS = {
+    "socket: open",
+    "socket: message, %2$d chars",
+    "socket: closed, %2$d %4$s",
+    "socket: failure, %4$s",
+    "playback[%1$s]: %4$s()",
+    "playback[%1$s]: failed, %4$s",
+    "playback[%1$s]:   audio: %4$s - %2$d",
+    "playback[%1$s]:   video: %4$s",
+    "playback[%1$s]: best: %4$s",
+    "playback[%1$s]: !! no %4$s streams",
+    "playback[%1$s]: loading=%2$d",
+    "playback[%1$s]: playWhenReady=%2$d readyState=%3$d",
+    "playback[%1$s]: ready: %4$s",
+    "playback[%1$s]: position discontinuity, reason=%2$d",
+    "playback[%1$s]: timeline changed, reason=%2$d",
+    "playback[%1$s]: %4$s",
+    "stream: candidate is slow, also trying candidate %2$d",
+    "stream: candidate %2$d won",
+  };
+
+  private static final int[] LEVELS = {
+    Log.INFO, Log.VERBOSE, Log.INFO, Log.WARN,
+    Log.DEBUG, Log.WARN, Log.VERBOSE, Log.VERBOSE, Log.DEBUG, Log.WARN,
+    Log.VERBOSE, Log.DEBUG, Log.INFO, Log.DEBUG, Log.DEBUG, Log.VERBOSE,
+    Log.INFO, Log.INFO,
+  };
+
+  private static final long[] times = new long[CAPACITY];
+  private static final int[] types = new int[CAPACITY];
+  private static final Object[] sources = new Object[CAPACITY];
+  private static final long[] as = new long[CAPACITY];
+  private static final long[] bs = new long[CAPACITY];
+  private static final Object[] details = new Object[CAPACITY];
+  // Total number of events recorded; the next one goes into `count % CAPACITY`.
+  private static long count = 0;
+
+  // Events below this level, as in android.util.Log, are not recorded.
+  private static volatile int minLevel = Log.VERBOSE;
+
+  private Trace() {}
+
+  static void setLevel(int level) {
+    minLevel = level;
+  }
+
+  static void event(int type) {
+    record(type, null, 0, 0, null);
+  }
+
+  static void event(int type, long a) {
+    record(type, null, a, 0, null);
+  }
+
+  static void event(int type, Object source, Object detail) {
+    record(type, source, 0, 0, detail);
+  }
+
+  static void event(int type, Object source, long a) {
+    record(type, source, a, 0, null);
+  }
+
+  static void event(int type, Object source, long a, long b) {
+    record(type, source, a, b, null);
+  }
+
+  /**
+   * Record an event. `source` and `detail` are kept by reference and only turned into strings when
+   * dumping, so pass existing objects rather than building strings for them.
+   */
+  static void record(int type, Object source, long a, long b, Object detail) {
+    if (LEVELS[type] < minLevel) {
+      return;
+    }
+
+    final long time = System.currentTimeMillis();
+    synchronized (Trace.class) {
+      final int i = (int) (count & (CAPACITY - 1));
+      times[i] = time;
+      types[i] = type;
+      sources[i] = source;
+      as[i] = a;
+      bs[i] = b;
+      details[i] = detail;
+      count++;
+    }
+
+    if (LOGCAT) {
+      Log.println(LEVELS[type], TAG, format(type, source, a, b, detail));
+    }
+  }
+
+  private static String format(int type, Object source, long a, long b, Object detail) {
+    return String.format(Locale.ROOT, FORMATS[type], source, a, b, detail);
+  }
+
+  /** The recorded events, oldest first, formatted one per line. */
+  static List<String> dump() {
+    // Copy under the lock and format outside of it, so recording is not held up for long.
+    final long[] times, as, bs;
+    final int[] types;
+    final Object[] sources, details;
+    final int size;
+    synchronized (Trace.class) {
+      size = (int) Math.min(count, CAPACITY);
+      times = new long[size];
+      types = new int[size];
+      sources = new Object[size];
+      as = new long[size];
+      bs = new long[size];
+      details = new Object[size];
+      for (int n = 0; n < size; n++) {
+        final int i = (int) ((count - size + n) & (CAPACITY - 1));
+        times[n] = Trace.times[i];
+        types[n] = Trace.types[i];
+        sources[n] = Trace.sources[i];
+        as[n] = Trace.as[i];
+        bs[n] = Trace.bs[i];
+        details[n] = Trace.details[i];
+      }
+    }
+
+    final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.ROOT);
+    final List<String> lines = new ArrayList<>(size);
+    for (int n = 0; n < size; n++) {
+      lines.add(
+          timeFormat.format(new Date(times[n]))
+              + " "
+              + format(types[n], sources[n], as[n], bs[n], details[n]));
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,63 @@
+package net.u_wave.android
+
+import android.app.Application
+import android.content.ComponentCallbacks2
+import io.flutter.embedding.engine.FlutterEngine
+import io.flutter.embedding.engine.FlutterEngineCache
+import io.flutter.embedding.engine.dart.DartExecutor
+import io.flutter.plugins.GeneratedPluginRegistrant
+
+/**
+ * Starts the Flutter engine with the process instead of with the activity, so the Dart code is
+ * already running when the UI comes up, and the engine and its plugins survive the activity being
+ * recreated. Without an activity, the engine is released when memory runs out or the playback
+ * service stops, and started again by the next activity.
+ */
+class UwaveApplication : Application() {
+  companion object {
+    const val ENGINE_ID = "main"
+  }
+
+  override fun onCreate() {
+    super.onCreate()
+    HttpClients.init(this)
+    ForegroundTracker.init(this)
+    MemoryPressure.init(this)
+
+    getEngine()
+  }
+
+  // The cached engine, started again if it was released.
+  fun getEngine(): FlutterEngine {
+    FlutterEngineCache.getInstance().get(ENGINE_ID)?.let { return it }
+
+    val engine = FlutterEngine(this)
+    GeneratedPluginRegistrant.registerWith(engine)
+    engine.plugins.add(PlayerPlugin())
+    engine.plugins.add(NotificationPlugin())
+    engine.plugins.add(WebSocketPlugin())
+    engine.plugins.add(DirectoryPlugin())
+
+    // Plugins are registered first, so they are there for the first platform messages.
+    engine.dartExecutor.executeDartEntrypoint(DartExecutor.DartEntrypoint.createDefault())
+    FlutterEngineCache.getInstance().put(ENGINE_ID, engine)
+    return engine
+  }
+
+  // Release the engine if no activity uses it. Playback and the socket live in PlaybackService,
+  // and keep going without it.
+  fun releaseEngineIfUnused() {
+    if (ForegroundTracker.getInstance().hasActivity()) return
+    val engine = FlutterEngineCache.getInstance().get(ENGINE_ID) ?: return
+    FlutterEngineCache.getInstance().remove(ENGINE_ID)
+    // Detaches the plugins, which unbind from the service.
+    engine.destroy()
+  }
+
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+      releaseEngineIfUnused()
+    }
+  }
+}
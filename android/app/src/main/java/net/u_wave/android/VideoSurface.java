@@ -0,0 +1,59 @@
+package net.u_wave.android;
+
+import android.view.Surface;
+import io.flutter.view.TextureRegistry;
+import io.flutter.view.TextureRegistry.SurfaceTextureEntry;
+
+/**
+ * The Flutter texture that video is rendered to. One texture is kept across consecutive video
+ * tracks, so advancing does not allocate a new GPU texture or change the Texture widget's id, and
+ * it is only released once video stops altogether. Only used on the main thread.
+ */
+class VideoSurface {
+  private final TextureRegistry textures;
+  private SurfaceTextureEntry textureEntry;
+  private Surface surface;
+  private int width;
+  private int height;
+
+  VideoSurface(TextureRegistry textures) {
+    this.textures = textures;
+  }
+
+  /** The surface to render to, creating the texture if there is none. */
+  Surface acquire() {
+    if (surface == null) {
+      textureEntry = textures.createSurfaceTexture();
+      surface = new Surface(textureEntry.surfaceTexture());
+      width = 0;
+      height = 0;
+    }
+    return surface;
+  }
+
+  long getTextureId() {
+    return textureEntry.id();
+  }
+
+  /** Size the texture's buffer for a video, if its aspect ratio differs from the previous one. */
+  void setSize(int width, int height) {
+    if (textureEntry == null || width <= 0 || height <= 0) {
+      return;
+    }
+    if ((long) width * this.height == (long) height * this.width) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+    textureEntry.surfaceTexture().setDefaultBufferSize(width, height);
+  }
+
+  void release() {
+    if (surface != null) {
+      surface.release();
+      surface = null;
+      textureEntry.release();
+      textureEntry = null;
+    }
+  }
+}
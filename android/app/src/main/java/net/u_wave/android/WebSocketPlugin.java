@@ -1,6 +1,11 @@
 package net.u_wave.android;
 
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.BinaryMessenger;
 import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.EventChannel.EventSink;
 import io.flutter.plugin.common.EventChannel.StreamHandler;
@@ -8,39 +13,83 @@ import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
-import io.flutter.plugin.common.PluginRegistry.Registrar;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.drafts.Draft_6455;
-import org.java_websocket.framing.CloseFrame;
-import org.java_websocket.handshake.ServerHandshake;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.u_wave.client.BoothEntry;
+import net.u_wave.client.ChatMessage;
+import net.u_wave.client.NowState;
+import net.u_wave.client.RoomDiff;
+import net.u_wave.client.RoomSnapshot;
+import net.u_wave.client.RoomState;
+import net.u_wave.client.SavedRoomSnapshot;
+import net.u_wave.client.SignInResult;
+import net.u_wave.client.Socket;
+import net.u_wave.client.SocketStats;
+import net.u_wave.client.UwaveApiException;
+import net.u_wave.client.UwaveClient;
+import net.u_wave.client.User;
+import net.u_wave.client.Voters;
+import org.json.JSONObject;
 
-public class WebSocketPlugin implements StreamHandler, MethodCallHandler {
+public class WebSocketPlugin
+    implements FlutterPlugin, StreamHandler, MethodCallHandler, Socket.Listener {
   private static final String METHOD_CHANNEL_NAME = "u-wave.net/websocket";
   private static final String EVENT_CHANNEL_NAME = "u-wave.net/websocket-events";
 
   private static final String TAG = "WebSocketPlugin";
 
-  private static final String KEEPALIVE = "-";
   private static final String OPEN_MESSAGE = "+open";
   private static final String CLOSE_MESSAGE = "+close";
 
-  /** Plugin registration. */
-  public static void registerWith(Registrar registrar) {
-    final MethodChannel methodChannel =
-        new MethodChannel(registrar.messenger(), METHOD_CHANNEL_NAME);
-    final EventChannel eventChannel = new EventChannel(registrar.messenger(), EVENT_CHANNEL_NAME);
-    final WebSocketPlugin plugin = new WebSocketPlugin();
-    methodChannel.setMethodCallHandler(plugin);
-    eventChannel.setStreamHandler(plugin);
-  }
-
-  private WebSocketClient client;
+  private final Handler mainThread = new Handler(Looper.getMainLooper());
+  private ExecutorService snapshotReader;
+  private Context context;
+  private PlaybackServiceBinding service;
+  private MethodChannel methodChannel;
+  private EventChannel eventChannel;
   private EventSink sink;
   private final LinkedList<String> queuedMessages = new LinkedList<>();
 
+  /* FlutterPlugin */
+  @Override
+  public void onAttachedToEngine(FlutterPluginBinding binding) {
+    final BinaryMessenger messenger = binding.getFlutterEngine().getDartExecutor();
+    context = binding.getApplicationContext();
+    snapshotReader = Executors.newSingleThreadExecutor();
+    service = new PlaybackServiceBinding(context);
+    methodChannel = new MethodChannel(messenger, METHOD_CHANNEL_NAME);
+    eventChannel = new EventChannel(messenger, EVENT_CHANNEL_NAME);
+    methodChannel.setMethodCallHandler(this);
+    eventChannel.setStreamHandler(this);
+  }
+
+  /** The engine is going away: stop relaying messages, but keep the connection in the service. */
+  @Override
+  public void onDetachedFromEngine(FlutterPluginBinding binding) {
+    methodChannel.setMethodCallHandler(null);
+    eventChannel.setStreamHandler(null);
+    final PlaybackService playbackService = service.getService();
+    if (playbackService != null) {
+      playbackService.detachListener(this);
+    }
+    service.unbind();
+    // A read that is still running finishes, and its result goes nowhere.
+    snapshotReader.shutdown();
+    sink = null;
+    queuedMessages.clear();
+  }
+
+  private UwaveClient getClient() {
+    final PlaybackService playbackService = service.getService();
+    return playbackService != null ? playbackService.getClient() : null;
+  }
+
   private void pushMessage(String message) {
     if (sink != null) {
       sink.success(message);
@@ -49,86 +98,308 @@ public class WebSocketPlugin implements StreamHandler, MethodCallHandler {
     }
   }
 
-  public void onOpen(ServerHandshake handshake) {
-    Log.d(TAG, "onOpen()");
-    if (sink == null) {
-      // Shouldn't happen but don't crash if it does I guess
-      return;
-    }
+  /* Socket.Listener, called on an OkHttp thread */
+  @Override
+  public void onOpen() {
+    Trace.event(Trace.SOCKET_OPEN);
+    mainThread.post(
+        () -> {
+          if (sink == null) {
+            // Shouldn't happen but don't crash if it does I guess
+            return;
+          }
 
-    sink.success(OPEN_MESSAGE);
+          sink.success(OPEN_MESSAGE);
+        });
   }
 
-  public void onMessage(String message) {
-    Log.d(TAG, String.format("onMessage(%s)", message));
-    if (message.equals("-")) {
-      return;
-    }
+  @Override
+  public void onText(String message) {
+    Trace.event(Trace.SOCKET_MESSAGE, message.length());
+    mainThread.post(() -> pushMessage(message));
+  }
+
+  @Override
+  public void onClosed(int code, String reason) {
+    Trace.record(Trace.SOCKET_CLOSED, null, code, 0, reason);
+    mainThread.post(
+        () -> {
+          if (sink == null) {
+            // Closed by the Dart code calling onCancel(), nothing to do here
+            return;
+          }
 
-    pushMessage(message);
+          sink.success(CLOSE_MESSAGE);
+
+          // TODO auto reconnect if necessary
+          sink.endOfStream();
+          sink = null;
+        });
   }
 
-  public void onClose(int code, String reason, boolean remote) {
-    Log.d(TAG, String.format("onClose(%d, %s, %b)", code, reason, remote));
-    if (sink == null) {
-      // Closed by the Dart code calling onCancel(), nothing to do here
-      return;
+  @Override
+  public void onFailure(Throwable err) {
+    Trace.record(Trace.SOCKET_FAILURE, null, 0, 0, err);
+    mainThread.post(
+        () -> {
+          if (sink == null) {
+            return;
+          }
+
+          sink.error(err.getClass().getName(), err.getMessage(), null);
+        });
+  }
+
+  private void onConnect(Options options) {
+    while (queuedMessages.size() > 0) {
+      pushMessage(queuedMessages.pop());
     }
 
-    sink.success(CLOSE_MESSAGE);
+    service.run(
+        (playbackService) -> {
+          playbackService.connect(options.apiUrl, options.url, this);
+        });
+  }
 
-    // TODO auto reconnect if necessary
-    sink.endOfStream();
-    sink = null;
+  private void onSend(String message) {
+    service.run((playbackService) -> playbackService.send(message));
   }
 
-  public void onError(Exception err) {
-    Log.d(TAG, String.format("onError(%s)", err.getMessage()));
-    sink.error(err.getClass().getName(), err.getMessage(), null);
+  private void onSendToken(String token) {
+    service.run((playbackService) -> playbackService.sendToken(token));
   }
 
-  private void onConnect(URI url) {
+  private void onClose() {
+    service.run(PlaybackService::disconnect);
+  }
+
+  private Map<String, Object> getStats() {
+    final Map<String, Object> map = new HashMap<>();
+    final UwaveClient client = getClient();
     if (client != null) {
-      client.close(CloseFrame.GOING_AWAY);
-      client = null;
+      final SocketStats stats = client.getSocket().getStats();
+      map.put("estimatedWireBytesIn", stats.getEstimatedWireBytesIn().get());
+      map.put("estimatedWireBytesOut", stats.getEstimatedWireBytesOut().get());
+      map.put("payloadBytesIn", stats.getPayloadBytesIn().get());
+      map.put("payloadBytesOut", stats.getPayloadBytesOut().get());
     }
+    return map;
+  }
 
-    while (queuedMessages.size() > 0) {
-      pushMessage(queuedMessages.pop());
+  /**
+   * Read the snapshot of a server's room from the last session off the main thread. It is sent to
+   * Dart as JSON in the shape of the REST now-state, plus the chat tail and the time it was saved
+   * at, so it can go through the same parsing as the real thing.
+   */
+  private void readSnapshot(String apiUrl, Result result) {
+    snapshotReader.execute(
+        () -> {
+          SavedRoomSnapshot saved = null;
+          try {
+            saved = PlaybackService.getSnapshotStore(context, apiUrl).read();
+          } catch (IOException err) {
+            Log.w(TAG, "Could not read room snapshot", err);
+          }
+          final String json = saved != null ? new JSONObject(snapshotToMap(saved)).toString() : null;
+          mainThread.post(() -> result.success(json));
+        });
+  }
+
+  /**
+   * Read the live room state of the current connection off the main thread. With a `since`
+   * revision, only the changes after it are sent, see {@link RoomState#diff}. The parts have the
+   * same shapes as in the saved snapshot. Sends null when there is no connection.
+   */
+  private void readRoom(Long since, Result result) {
+    final UwaveClient client = getClient();
+    if (client == null) {
+      result.success(null);
+      return;
     }
+    final RoomState state = client.getState();
+    snapshotReader.execute(
+        () -> {
+          final Map<String, Object> map =
+              since != null ? diffToMap(state.diff(since)) : roomToMap(state.snapshot());
+          final String json = new JSONObject(map).toString();
+          mainThread.post(() -> result.success(json));
+        });
+  }
 
-    client =
-        new WebSocketClient(url, new Draft_6455()) {
-          @Override
-          public void onOpen(ServerHandshake handshake) {
-            WebSocketPlugin.this.onOpen(handshake);
-          }
+  private interface ClientCall {
+    void run(UwaveClient client);
+  }
 
-          @Override
-          public void onMessage(String message) {
-            WebSocketPlugin.this.onMessage(message);
+  /** Make an API call on the client of the current connection, once the service is bound. */
+  private void callClient(Result result, ClientCall call) {
+    service.run(
+        (playbackService) -> {
+          final UwaveClient client = playbackService.getClient();
+          if (client == null) {
+            result.error("NotConnected", "Not connected to a server", null);
+            return;
           }
+          call.run(client);
+        });
+  }
 
-          @Override
-          public void onClose(int code, String reason, boolean remote) {
-            WebSocketPlugin.this.onClose(code, reason, remote);
-          }
+  /**
+   * Sends the outcome of an API call back to Dart on the main thread. Failed requests are sent as
+   * an "ApiError" with the HTTP status, and everything else as a "RequestFailed".
+   */
+  private abstract class Reply<T> implements UwaveClient.Callback<T> {
+    private final Result result;
 
-          @Override
-          public void onError(Exception err) {
-            WebSocketPlugin.this.onError(err);
-          }
-        };
+    Reply(Result result) {
+      this.result = result;
+    }
+
+    /** Called on a background thread, so the conversion does not hold up the UI. */
+    abstract Object toResult(T value);
+
+    @Override
+    public void onSuccess(T value) {
+      final Object reply = toResult(value);
+      mainThread.post(() -> result.success(reply));
+    }
+
+    @Override
+    public void onFailure(Exception err) {
+      if (err instanceof UwaveApiException) {
+        final int status = ((UwaveApiException) err).getStatus();
+        mainThread.post(() -> result.error("ApiError", err.getMessage(), status));
+      } else {
+        mainThread.post(() -> result.error("RequestFailed", err.getMessage(), null));
+      }
+    }
+  }
 
-    client.connect();
+  private static Map<String, Object> nowToMap(NowState now) {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("motd", now.getMotd());
+    map.put("users", usersToList(now.getUsers()));
+    if (now.getUser() != null) {
+      map.put("user", userToMap(now.getUser()));
+    }
+    if (now.getBooth() != null) {
+      map.put("booth", boothToMap(now.getBooth()));
+    }
+    map.put("waitlist", now.getWaitlist());
+    map.put("waitlistLocked", now.getWaitlistLocked());
+    map.put("time", now.getTime());
+    map.put("socketToken", now.getSocketToken());
+    return map;
   }
 
-  private void onSend(String message) {
-    client.send(message);
+  private static Map<String, Object> signInToMap(SignInResult signIn) {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("jwt", signIn.getJwt());
+    map.put("user", userToMap(signIn.getUser()));
+    return map;
   }
 
-  private void onClose() {
-    client.close();
+  private static Map<String, Object> snapshotToMap(SavedRoomSnapshot saved) {
+    final Map<String, Object> map = roomToMap(saved.getSnapshot());
+    map.put("savedAt", saved.getSavedAt());
+    return map;
+  }
+
+  private static Map<String, Object> roomToMap(RoomSnapshot snapshot) {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("revision", snapshot.getRevision());
+    if (snapshot.getBooth() != null) {
+      map.put("booth", boothToMap(snapshot.getBooth()));
+    }
+    map.put("users", usersToList(snapshot.getUsers()));
+    map.put("waitlist", snapshot.getWaitlist());
+    map.put("waitlistLocked", snapshot.getWaitlistLocked());
+    map.put("votes", votersToMap(snapshot.getVoters()));
+    map.put("chat", chatToList(snapshot.getChat()));
+    return map;
+  }
+
+  // Parts that did not change are left out.
+  private static Map<String, Object> diffToMap(RoomDiff diff) {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("revision", diff.getRevision());
+    map.put("full", diff.getFull());
+    map.put("boothChanged", diff.getBoothChanged());
+    if (diff.getBooth() != null) {
+      map.put("booth", boothToMap(diff.getBooth()));
+    }
+    map.put("users", usersToList(diff.getUsers()));
+    map.put("removedUsers", diff.getRemovedUsers());
+    if (diff.getWaitlist() != null) {
+      map.put("waitlist", diff.getWaitlist());
+      map.put("waitlistLocked", diff.getWaitlistLocked());
+    }
+    if (diff.getVoters() != null) {
+      map.put("votes", votersToMap(diff.getVoters()));
+    }
+    map.put("chat", chatToList(diff.getChat()));
+    map.put("chatReset", diff.getChatReset());
+    return map;
+  }
+
+  private static Map<String, Object> boothToMap(BoothEntry booth) {
+    final Map<String, Object> media = new HashMap<>();
+    media.put("_id", booth.getMedia().getMedia().getId());
+    media.put("sourceType", booth.getMedia().getMedia().getSourceType());
+    media.put("sourceID", booth.getMedia().getMedia().getSourceID());
+    media.put("artist", booth.getMedia().getMedia().getArtist());
+    media.put("title", booth.getMedia().getMedia().getTitle());
+    media.put("duration", booth.getMedia().getMedia().getDuration());
+    media.put("thumbnail", booth.getMedia().getMedia().getThumbnail());
+    final Map<String, Object> boothMedia = new HashMap<>();
+    boothMedia.put("media", media);
+    boothMedia.put("artist", booth.getMedia().getArtist());
+    boothMedia.put("title", booth.getMedia().getTitle());
+    boothMedia.put("start", booth.getMedia().getStart());
+    boothMedia.put("end", booth.getMedia().getEnd());
+    final Map<String, Object> boothMap = new HashMap<>();
+    boothMap.put("_id", booth.getHistoryID());
+    boothMap.put("user", booth.getUserID());
+    boothMap.put("media", boothMedia);
+    boothMap.put("playedAt", booth.getPlayedAt());
+    return boothMap;
+  }
+
+  private static List<Map<String, Object>> usersToList(List<User> users) {
+    final List<Map<String, Object>> list = new ArrayList<>();
+    for (User user : users) {
+      list.add(userToMap(user));
+    }
+    return list;
+  }
+
+  private static Map<String, Object> userToMap(User user) {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("_id", user.getUserID());
+    map.put("username", user.getUsername());
+    map.put("avatar", user.getAvatar());
+    map.put("roles", user.getRoles());
+    return map;
+  }
+
+  private static Map<String, Object> votersToMap(Voters voters) {
+    final Map<String, Object> map = new HashMap<>();
+    map.put("upvotes", voters.getUpvotes());
+    map.put("downvotes", voters.getDownvotes());
+    map.put("favorites", voters.getFavorites());
+    return map;
+  }
+
+  private static List<Map<String, Object>> chatToList(List<ChatMessage> chat) {
+    final List<Map<String, Object>> list = new ArrayList<>();
+    for (ChatMessage message : chat) {
+      final Map<String, Object> messageMap = new HashMap<>();
+      messageMap.put("id", message.getId());
+      messageMap.put("userID", message.getUserID());
+      messageMap.put("message", message.getMessage());
+      messageMap.put("timestamp", message.getTimestamp());
+      list.add(messageMap);
+    }
+    return list;
   }
 
   /* MethodCallHandler */
@@ -144,10 +415,89 @@ public class WebSocketPlugin implements StreamHandler, MethodCallHandler {
           throw new IllegalArgumentException("Expected a String");
         }
         break;
+      case "sendToken":
+        if (call.arguments instanceof String) {
+          onSendToken((String) call.arguments);
+          result.success(null);
+        } else {
+          throw new IllegalArgumentException("Expected a String");
+        }
+        break;
       case "close":
         onClose();
         result.success(null);
         break;
+      case "stats":
+        result.success(getStats());
+        break;
+      case "snapshot":
+        final String apiUrl = call.argument("apiUrl");
+        if (apiUrl == null) {
+          result.error("MissingParameter", "Missing parameter \"apiUrl\"", null);
+          return;
+        }
+        readSnapshot(apiUrl, result);
+        break;
+      case "room":
+        readRoom(null, result);
+        break;
+      case "roomDiff":
+        final Number since = call.argument("since");
+        if (since == null) {
+          result.error("MissingParameter", "Missing parameter \"since\"", null);
+          return;
+        }
+        readRoom(since.longValue(), result);
+        break;
+      case "now":
+        final String token = call.argument("token");
+        callClient(
+            result,
+            (client) -> {
+              if (token != null) {
+                client.setAuthToken(token);
+              }
+              client.refresh(
+                  new Reply<NowState>(result) {
+                    @Override
+                    Object toResult(NowState now) {
+                      return new JSONObject(nowToMap(now)).toString();
+                    }
+                  });
+            });
+        break;
+      case "signIn":
+        final String email = call.argument("email");
+        final String password = call.argument("password");
+        if (email == null || password == null) {
+          result.error("MissingParameter", "Missing parameter \"email\" or \"password\"", null);
+          return;
+        }
+        callClient(
+            result,
+            (client) ->
+                client.signIn(
+                    email,
+                    password,
+                    new Reply<SignInResult>(result) {
+                      @Override
+                      Object toResult(SignInResult signIn) {
+                        return new JSONObject(signInToMap(signIn)).toString();
+                      }
+                    }));
+        break;
+      case "socketToken":
+        callClient(
+            result,
+            (client) ->
+                client.socketToken(
+                    new Reply<String>(result) {
+                      @Override
+                      Object toResult(String socketToken) {
+                        return socketToken;
+                      }
+                    }));
+        break;
       default:
         result.notImplemented();
     }
@@ -158,27 +508,44 @@ public class WebSocketPlugin implements StreamHandler, MethodCallHandler {
   @SuppressWarnings("unchecked")
   public void onListen(Object arguments, EventSink events) {
     Log.d(TAG, String.format("onConnect(%s)", arguments));
-    if (arguments instanceof String) {
-      sink = events;
-
-      URI url;
-      try {
-        url = new URI((String) arguments);
-      } catch (URISyntaxException err) {
-        throw new IllegalArgumentException("Expected a URI", err);
-      }
-
-      onConnect(url);
-    } else {
-      throw new IllegalArgumentException("Expected a String");
+    if (!(arguments instanceof Map)) {
+      throw new IllegalArgumentException("Expected a Map");
     }
+
+    final Options options = Options.fromMap((Map<String, Object>) arguments);
+    sink = events;
+    onConnect(options);
   }
 
   @Override
   public void onCancel(Object arguments) {
-    client.close();
-    client = null;
+    service.run(PlaybackService::disconnect);
     sink = null;
     queuedMessages.clear();
   }
+
+  /** Connection options passed from Dart when listening to the event channel. */
+  private static class Options {
+    public final String url;
+    public final String apiUrl;
+
+    Options(String url, String apiUrl) {
+      this.url = url;
+      this.apiUrl = apiUrl;
+    }
+
+    static Options fromMap(Map<String, Object> map) {
+      final Object url = map.get("url");
+      if (!(url instanceof String)) {
+        throw new IllegalArgumentException("Missing parameter \"url\"");
+      }
+
+      final Object apiUrl = map.get("apiUrl");
+      if (!(apiUrl instanceof String)) {
+        throw new IllegalArgumentException("Missing parameter \"apiUrl\"");
+      }
+
+      return new Options((String) url, (String) apiUrl);
+    }
+  }
 }
@@ -0,0 +1,36 @@
+package net.u_wave.client
+
+import java.io.IOException
+import kotlinx.serialization.*
+import kotlinx.serialization.json.*
+
+// The API adds fields over time; only decode what we model.
+internal val apiJson = Json(JsonConfiguration.Default.copy(strictMode = false))
+
+class UwaveApiException(val status: Int, message: String) : IOException(message)
+
+@Serializable
+data class NowState(
+  val motd: String? = null,
+  val users: List<User> = emptyList(),
+  val user: User? = null,
+  val booth: BoothEntry? = null,
+  val waitlist: List<String> = emptyList(),
+  val waitlistLocked: Boolean = false,
+  val time: Long = 0,
+  val socketToken: String? = null
+)
+
+@Serializable
+internal data class SignInMeta(val jwt: String)
+
+@Serializable
+internal data class SignInResponse(val meta: SignInMeta, val data: User)
+
+data class SignInResult(val jwt: String, val user: User)
+
+@Serializable
+internal data class SocketToken(val socketToken: String)
+
+@Serializable
+internal data class SocketTokenResponse(val data: SocketToken)
@@ -0,0 +1,207 @@
+package net.u_wave.client
+
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+
+// A snapshot read back from disk, with the (local) time it was written at.
+data class SavedRoomSnapshot(
+  val savedAt: Long,
+  val snapshot: RoomSnapshot
+)
+
+// Keeps the last known state of one room on disk, so the next start can show it before the server
+// has answered. The format is a small versioned binary layout rather than JSON: it is read on the
+// startup path, where parsing a few hundred users and chat messages through kotlinx.serialization
+// costs more than mapping the file and pulling fields out of it.
+class RoomSnapshotStore(val file: File) {
+  companion object {
+    private const val MAGIC = 0x55575253 // "UWRS"
+    // Version 2 keeps who voted, rather than only the counts.
+    private const val VERSION = 2
+    // Only the end of the chat is kept; older messages are not worth the startup time.
+    const val CHAT_TAIL = 50
+
+    // One file per server, named after a hash of its API URL.
+    @JvmStatic
+    fun forServer(directory: File, apiUrl: String): RoomSnapshotStore {
+      val digest = MessageDigest.getInstance("SHA-1").digest(apiUrl.toByteArray())
+      val name = digest.joinToString("") { "%02x".format(it) }
+      return RoomSnapshotStore(File(directory, "$name.room"))
+    }
+  }
+
+  // Write the snapshot to a temporary file and move it into place, so a reader never sees a
+  // partially written snapshot.
+  @Synchronized
+  @Throws(IOException::class)
+  fun write(snapshot: RoomSnapshot, savedAt: Long = System.currentTimeMillis()) {
+    val bytes = ByteArrayOutputStream()
+    DataOutputStream(bytes).use { out ->
+      out.writeInt(MAGIC)
+      out.writeInt(VERSION)
+      out.writeLong(savedAt)
+      out.writeLong(snapshot.revision)
+
+      val booth = snapshot.booth
+      out.writeBoolean(booth != null)
+      if (booth != null) writeBooth(out, booth)
+
+      out.writeInt(snapshot.users.size)
+      for (user in snapshot.users) writeUser(out, user)
+
+      out.writeInt(snapshot.waitlist.size)
+      for (id in snapshot.waitlist) writeString(out, id)
+      out.writeBoolean(snapshot.waitlistLocked)
+
+      writeStrings(out, snapshot.voters.upvotes)
+      writeStrings(out, snapshot.voters.downvotes)
+      writeStrings(out, snapshot.voters.favorites)
+
+      val chat = snapshot.chat.takeLast(CHAT_TAIL)
+      out.writeInt(chat.size)
+      for (message in chat) {
+        writeString(out, message.id)
+        writeString(out, message.userID)
+        writeString(out, message.message)
+        out.writeLong(message.timestamp)
+      }
+    }
+
+    file.parentFile?.mkdirs()
+    val temp = File(file.path + ".tmp")
+    FileOutputStream(temp).use { it.write(bytes.toByteArray()) }
+    if (!temp.renameTo(file)) {
+      temp.delete()
+      throw IOException("Could not move snapshot into place at $file")
+    }
+  }
+
+  // Read the snapshot, or null if there is none or it is from an incompatible version.
+  @Throws(IOException::class)
+  fun read(): SavedRoomSnapshot? {
+    if (!file.exists()) return null
+
+    val buffer = RandomAccessFile(file, "r").use {
+      it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+    }
+    return try {
+      decode(buffer)
+    } catch (err: BufferUnderflowException) {
+      null
+    } catch (err: IllegalArgumentException) {
+      // A negative count, from a file that was not written by us.
+      null
+    }
+  }
+
+  private fun decode(input: ByteBuffer): SavedRoomSnapshot? {
+    if (input.int != MAGIC || input.int != VERSION) return null
+    val savedAt = input.long
+    val revision = input.long
+    val booth = if (readBoolean(input)) readBooth(input) else null
+    val users = List(input.int) { readUser(input) }
+    val waitlist = List(input.int) { readString(input) }
+    val waitlistLocked = readBoolean(input)
+    val voters = Voters(readStrings(input), readStrings(input), readStrings(input))
+    val chat = List(input.int) {
+      ChatMessage(readString(input), readString(input), readString(input), input.long)
+    }
+    return SavedRoomSnapshot(savedAt, RoomSnapshot(revision, booth, users, waitlist, waitlistLocked, voters, chat))
+  }
+
+  private fun writeBooth(out: DataOutputStream, booth: BoothEntry) {
+    writeString(out, booth.historyID)
+    writeString(out, booth.userID)
+    out.writeLong(booth.playedAt)
+    val media = booth.media
+    writeString(out, media.artist)
+    writeString(out, media.title)
+    out.writeInt(media.start)
+    out.writeInt(media.end)
+    writeString(out, media.media.id)
+    writeString(out, media.media.sourceType)
+    writeString(out, media.media.sourceID)
+    writeString(out, media.media.artist)
+    writeString(out, media.media.title)
+    out.writeInt(media.media.duration)
+    writeNullableString(out, media.media.thumbnail)
+  }
+
+  private fun readBooth(input: ByteBuffer): BoothEntry {
+    val historyID = readString(input)
+    val userID = readString(input)
+    val playedAt = input.long
+    val artist = readString(input)
+    val title = readString(input)
+    val start = input.int
+    val end = input.int
+    val media = Media(
+      id = readString(input),
+      sourceType = readString(input),
+      sourceID = readString(input),
+      artist = readString(input),
+      title = readString(input),
+      duration = input.int,
+      thumbnail = readNullableString(input)
+    )
+    return BoothEntry(historyID, userID, BoothMedia(media, artist, title, start, end), playedAt)
+  }
+
+  private fun writeUser(out: DataOutputStream, user: User) {
+    writeString(out, user.userID)
+    writeString(out, user.username)
+    writeNullableString(out, user.avatar)
+    out.writeInt(user.roles.size)
+    for (role in user.roles) writeString(out, role)
+  }
+
+  private fun readUser(input: ByteBuffer): User {
+    val userID = readString(input)
+    val username = readString(input)
+    val avatar = readNullableString(input)
+    val roles = ArrayList<String>()
+    repeat(input.int) { roles.add(readString(input)) }
+    return User(userID, avatar, username, roles)
+  }
+
+  private fun writeStrings(out: DataOutputStream, values: Collection<String>) {
+    out.writeInt(values.size)
+    for (value in values) writeString(out, value)
+  }
+
+  private fun readStrings(input: ByteBuffer): Set<String> = List(input.int) { readString(input) }.toSet()
+
+  private fun writeNullableString(out: DataOutputStream, value: String?) {
+    out.writeBoolean(value != null)
+    if (value != null) writeString(out, value)
+  }
+
+  private fun readNullableString(input: ByteBuffer): String? =
+    if (readBoolean(input)) readString(input) else null
+
+  private fun readBoolean(input: ByteBuffer) = input.get() != 0.toByte()
+
+  // Length-prefixed UTF-8. DataOutputStream.writeUTF would mangle emoji into surrogate pairs and
+  // can't hold long chat messages.
+  private fun writeString(out: DataOutputStream, value: String) {
+    val bytes = value.toByteArray(Charsets.UTF_8)
+    out.writeInt(bytes.size)
+    out.write(bytes)
+  }
+
+  private fun readString(input: ByteBuffer): String {
+    val length = input.int
+    if (length < 0 || length > input.remaining()) throw BufferUnderflowException()
+    val bytes = ByteArray(length)
+    input.get(bytes)
+    return String(bytes, Charsets.UTF_8)
+  }
+}
@@ -0,0 +1,303 @@
+package net.u_wave.client
+
+// Fixed-capacity ring buffer of chat messages. Once full, each new message overwrites the oldest.
+class ChatHistory(val capacity: Int) {
+  private val messages = arrayOfNulls<ChatMessage>(capacity)
+  private val revisions = LongArray(capacity)
+  // Index of the slot the next message is written to.
+  private var next = 0
+  private var size = 0
+
+  fun add(message: ChatMessage, revision: Long = 0) {
+    messages[next] = message
+    revisions[next] = revision
+    next = (next + 1) % capacity
+    if (size < capacity) size++
+  }
+
+  fun clear() {
+    messages.fill(null)
+    next = 0
+    size = 0
+  }
+
+  // Remove matching messages in place. Returns true if anything was removed.
+  fun removeIf(predicate: (ChatMessage) -> Boolean): Boolean {
+    var removed = false
+    for (i in 0 until capacity) {
+      val message = messages[i]
+      if (message != null && predicate(message)) {
+        messages[i] = null
+        removed = true
+      }
+    }
+    return removed
+  }
+
+  // Messages added after the given revision, oldest first.
+  fun since(revision: Long): List<ChatMessage> {
+    val result = ArrayList<ChatMessage>()
+    val start = (next - size + capacity) % capacity
+    for (offset in 0 until size) {
+      val i = (start + offset) % capacity
+      val message = messages[i]
+      if (message != null && revisions[i] > revision) {
+        result.add(message)
+      }
+    }
+    return result
+  }
+
+  // The messages, oldest first.
+  fun toList(): List<ChatMessage> = since(Long.MIN_VALUE)
+}
+
+data class VoteTally(
+  val upvotes: Int,
+  val downvotes: Int,
+  val favorites: Int
+)
+
+// Who voted on the current track, by user ID.
+data class Voters(
+  val upvotes: Set<String> = emptySet(),
+  val downvotes: Set<String> = emptySet(),
+  val favorites: Set<String> = emptySet()
+) {
+  fun tally() = VoteTally(upvotes.size, downvotes.size, favorites.size)
+}
+
+// Changes since a previous revision. Fields that did not change are null or empty. If `full` is
+// set, the requested revision was too old to diff against, and the caller should take a snapshot.
+data class RoomDiff(
+  val revision: Long,
+  val full: Boolean = false,
+  val booth: BoothEntry? = null,
+  val boothChanged: Boolean = false,
+  val users: List<User> = emptyList(),
+  val removedUsers: List<String> = emptyList(),
+  val waitlist: List<String>? = null,
+  val waitlistLocked: Boolean? = null,
+  val voters: Voters? = null,
+  val chat: List<ChatMessage> = emptyList(),
+  val chatReset: Boolean = false
+)
+
+data class RoomSnapshot(
+  val revision: Long,
+  val booth: BoothEntry?,
+  val users: List<User>,
+  val waitlist: List<String>,
+  val waitlistLocked: Boolean,
+  val voters: Voters,
+  val chat: List<ChatMessage>
+) {
+  val votes: VoteTally
+    get() = voters.tally()
+}
+
+// Room state kept up to date by applying socket messages as they come in. Every load and every
+// applied message bumps `revision`, and each part of the state remembers the revision it last
+// changed at, so diff(revision) only has to return what changed since the caller last looked.
+// Applying a message only touches the part of the state it is about, and chat is kept in a ring
+// buffer, so memory stays flat however long the room is open.
+class RoomState(chatCapacity: Int = DEFAULT_CHAT_CAPACITY) {
+  companion object {
+    const val DEFAULT_CHAT_CAPACITY = 256
+    // Number of departed users remembered for diffs.
+    const val MAX_REMOVED_USERS = 256
+  }
+
+  var revision = 0L
+    private set
+
+  private var booth: BoothEntry? = null
+  private var boothRevision = 0L
+
+  private val users = HashMap<String, User>()
+  private val userRevisions = HashMap<String, Long>()
+  private val removedUsers = LinkedHashMap<String, Long>()
+  // Diffs from before this revision may miss removed users.
+  private var removedUsersSince = 0L
+
+  private var waitlist = emptyArray<String>()
+  private var waitlistLocked = false
+  private var waitlistRevision = 0L
+
+  private val upvotes = HashSet<String>()
+  private val downvotes = HashSet<String>()
+  private val favorites = HashSet<String>()
+  private var votesRevision = 0L
+
+  private val chat = ChatHistory(chatCapacity)
+  private var chatResetRevision = 0L
+
+  // Replace the whole state, eg. from a REST now-state response. That has no chat, so `keepChat`
+  // can be set to hold on to the messages we already have instead. It has no votes either, so the
+  // tally is kept as long as the same track is playing.
+  @Synchronized
+  fun load(
+    booth: BoothEntry?,
+    users: Collection<User>,
+    waitlist: List<String>,
+    waitlistLocked: Boolean,
+    keepChat: Boolean = false
+  ) {
+    revision++
+    if (booth?.historyID != this.booth?.historyID) {
+      clearVotes()
+    }
+    this.booth = booth
+    boothRevision = revision
+    this.users.clear()
+    userRevisions.clear()
+    for (user in users) {
+      this.users[user.userID] = user
+      userRevisions[user.userID] = revision
+    }
+    removedUsers.clear()
+    removedUsersSince = revision
+    this.waitlist = waitlist.toTypedArray()
+    this.waitlistLocked = waitlistLocked
+    waitlistRevision = revision
+    if (!keepChat) {
+      chat.clear()
+      chatResetRevision = revision
+    }
+  }
+
+  // Start from a snapshot saved by an earlier session, until the server has told us better.
+  @Synchronized
+  fun restore(snapshot: RoomSnapshot) {
+    load(snapshot.booth, snapshot.users, snapshot.waitlist, snapshot.waitlistLocked)
+    clearVotes()
+    upvotes.addAll(snapshot.voters.upvotes)
+    downvotes.addAll(snapshot.voters.downvotes)
+    favorites.addAll(snapshot.voters.favorites)
+    for (message in snapshot.chat) {
+      chat.add(message, revision)
+    }
+  }
+
+  @Synchronized
+  fun apply(message: ReceiveMessage) {
+    revision++
+    when (message) {
+      is AdvanceMessage -> {
+        booth = message.entry
+        boothRevision = revision
+        clearVotes()
+      }
+      is UserJoinMessage -> putUser(message.user)
+      is UserLeaveMessage -> removeUser(message.userID)
+      is UserNameChangeMessage -> users[message.userID]?.let {
+        it.username = message.username
+        userRevisions[it.userID] = revision
+      }
+      is VoteMessage -> vote(message.userID, message.value)
+      is FavoriteMessage -> if (favorites.add(message.userID)) votesRevision = revision
+      is ChatMessage -> chat.add(message, revision)
+      is ChatDeleteAllMessage -> {
+        chat.clear()
+        chatResetRevision = revision
+      }
+      is ChatDeleteOneMessage ->
+        if (chat.removeIf { it.id == message.id }) chatResetRevision = revision
+      is ChatDeleteUserMessage ->
+        if (chat.removeIf { it.userID == message.userID }) chatResetRevision = revision
+      is WaitlistJoinMessage -> setWaitlist(message.waitlist)
+      is WaitlistLeaveMessage -> setWaitlist(message.waitlist)
+      is WaitlistAddMessage -> setWaitlist(message.waitlist)
+      is WaitlistRemoveMessage -> setWaitlist(message.waitlist)
+      is WaitlistUpdateMessage -> setWaitlist(message.waitlist)
+      is WaitlistClearMessage -> setWaitlist(emptyList())
+      is WaitlistLockMessage -> {
+        waitlistLocked = message.locked
+        waitlistRevision = revision
+      }
+      is PlaylistCycleMessage -> {}
+    }
+  }
+
+  @Synchronized
+  fun snapshot(): RoomSnapshot = RoomSnapshot(
+    revision = revision,
+    booth = booth,
+    users = users.values.map { it.copy() },
+    waitlist = waitlist.toList(),
+    waitlistLocked = waitlistLocked,
+    voters = voters(),
+    chat = chat.toList()
+  )
+
+  @Synchronized
+  fun diff(since: Long): RoomDiff {
+    if (since < removedUsersSince) {
+      return RoomDiff(revision = revision, full = true)
+    }
+
+    val changedUsers = ArrayList<User>()
+    for ((id, userRevision) in userRevisions) {
+      if (userRevision > since) users[id]?.let { changedUsers.add(it.copy()) }
+    }
+    val departedUsers = ArrayList<String>()
+    for ((id, removedRevision) in removedUsers) {
+      if (removedRevision > since) departedUsers.add(id)
+    }
+    val chatReset = chatResetRevision > since
+
+    return RoomDiff(
+      revision = revision,
+      booth = if (boothRevision > since) booth else null,
+      boothChanged = boothRevision > since,
+      users = changedUsers,
+      removedUsers = departedUsers,
+      waitlist = if (waitlistRevision > since) waitlist.toList() else null,
+      waitlistLocked = if (waitlistRevision > since) waitlistLocked else null,
+      voters = if (votesRevision > since) voters() else null,
+      chat = if (chatReset) chat.toList() else chat.since(since),
+      chatReset = chatReset
+    )
+  }
+
+  private fun putUser(user: User) {
+    users[user.userID] = user
+    userRevisions[user.userID] = revision
+    removedUsers.remove(user.userID)
+  }
+
+  private fun removeUser(id: String) {
+    if (users.remove(id) == null) return
+    userRevisions.remove(id)
+    removedUsers[id] = revision
+    if (removedUsers.size > MAX_REMOVED_USERS) {
+      val oldest = removedUsers.entries.iterator()
+      removedUsersSince = oldest.next().value
+      oldest.remove()
+    }
+  }
+
+  private fun setWaitlist(ids: List<String>) {
+    waitlist = ids.toTypedArray()
+    waitlistRevision = revision
+  }
+
+  // Changing a vote moves it, rather than counting it twice.
+  private fun vote(userID: String, direction: Int) {
+    val changed = when (direction) {
+      1 -> downvotes.remove(userID) or upvotes.add(userID)
+      -1 -> upvotes.remove(userID) or downvotes.add(userID)
+      else -> upvotes.remove(userID) or downvotes.remove(userID)
+    }
+    if (changed) votesRevision = revision
+  }
+
+  private fun clearVotes() {
+    upvotes.clear()
+    downvotes.clear()
+    favorites.clear()
+    votesRevision = revision
+  }
+
+  private fun voters() = Voters(upvotes.toSet(), downvotes.toSet(), favorites.toSet())
+}
@@ -0,0 +1,204 @@
+package net.u_wave.client
+
+import java.io.Closeable
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.resumeWithException
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.CacheControl
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonException
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.json
+
+// Something learned while refreshing the server directory.
+sealed class DirectoryEvent {
+  // The announced servers, as the announce server describes them. `cached` is set for the list
+  // from the HTTP cache, which comes before the network has answered.
+  data class Servers(val servers: List<JsonObject>, val cached: Boolean) : DirectoryEvent()
+
+  // How one server's API answered a request for its current state.
+  data class Probe(
+    val publicKey: String,
+    val online: Boolean,
+    val latencyMs: Long = 0,
+    val users: Int = 0,
+    val booth: BoothEntry? = null
+  ) : DirectoryEvent()
+
+  fun toJson(): JsonObject = when (this) {
+    is Servers -> json {
+      "type" to "servers"
+      "cached" to cached
+      "servers" to JsonArray(servers)
+    }
+    is Probe -> json {
+      "type" to "probe"
+      "publicKey" to publicKey
+      "online" to online
+      "latency" to latencyMs
+      "users" to users
+      // The same shape as the `booth` in announcements.
+      "booth" to (booth?.let {
+        json {
+          "media" to json {
+            "artist" to it.media.artist
+            "title" to it.media.title
+            "thumbnail" to it.media.media.thumbnail
+          }
+        }
+      } ?: JsonNull)
+    }
+  }
+}
+
+// Lists the servers known to an announce server, and checks which of them are up and what they
+// are playing. The list is served from the HTTP cache first and then revalidated, and servers are
+// probed a few at a time, so one slow server only holds up its own result.
+class ServerDirectory(private val client: OkHttpClient) : Closeable {
+  companion object {
+    const val DEFAULT_ANNOUNCE_URL = "https://announce.u-wave.net"
+    const val MAX_CONCURRENT_PROBES = 4
+    const val PROBE_TIMEOUT_MS = 5000L
+  }
+
+  // For callers that are not coroutines.
+  interface Listener {
+    fun onEvent(event: DirectoryEvent)
+    fun onError(err: Throwable)
+    fun onDone()
+  }
+
+  private val probeClient = client.newBuilder()
+    .callTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+    .build()
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+  // The cached list if there is one, then the fresh list, then one probe per server as they
+  // finish. If the announce server can't be reached, the servers from the cached list are probed.
+  @UseExperimental(ExperimentalCoroutinesApi::class)
+  fun refresh(announceUrl: String = DEFAULT_ANNOUNCE_URL): Flow<DirectoryEvent> = channelFlow {
+    val cached = fetchServers(announceUrl, CacheControl.FORCE_CACHE)
+    if (cached != null) send(DirectoryEvent.Servers(cached, cached = true))
+
+    val fresh = try {
+      fetchServers(announceUrl, CacheControl.Builder().noCache().build())
+    } catch (err: IOException) {
+      if (cached == null) throw err
+      null
+    }
+    if (fresh != null) send(DirectoryEvent.Servers(fresh, cached = false))
+
+    val semaphore = Semaphore(MAX_CONCURRENT_PROBES)
+    for (server in fresh ?: cached ?: emptyList()) {
+      val publicKey = server.string("publicKey") ?: continue
+      val apiUrl = server.string("apiUrl") ?: continue
+      launch {
+        semaphore.withPermit { send(probe(publicKey, apiUrl)) }
+      }
+    }
+  }
+
+  fun refresh(announceUrl: String, listener: Listener): Closeable {
+    val job = scope.launch {
+      try {
+        refresh(announceUrl).collect { listener.onEvent(it) }
+        listener.onDone()
+      } catch (err: CancellationException) {
+        throw err
+      } catch (err: Exception) {
+        listener.onError(err)
+      }
+    }
+    return Closeable { job.cancel() }
+  }
+
+  override fun close() {
+    scope.cancel()
+  }
+
+  // The announced servers, or null if `cacheControl` only allows the cache and nothing is cached.
+  private suspend fun fetchServers(announceUrl: String, cacheControl: CacheControl): List<JsonObject>? {
+    val request = Request.Builder()
+      .url(announceUrl)
+      .header("Accept", "application/json")
+      .cacheControl(cacheControl)
+      .build()
+    return client.newCall(request).await().use { response ->
+      if (response.code() == 504 && cacheControl.onlyIfCached()) return null
+      val body = response.body()?.string() ?: ""
+      if (!response.isSuccessful) {
+        throw UwaveApiException(response.code(), "$announceUrl returned ${response.code()}")
+      }
+      try {
+        val servers = (apiJson.parseJson(body) as? JsonObject)?.get("servers") as? JsonArray
+        servers?.content?.filterIsInstance<JsonObject>() ?: emptyList()
+      } catch (err: JsonException) {
+        throw IOException("Could not parse the server list from $announceUrl", err)
+      }
+    }
+  }
+
+  private suspend fun probe(publicKey: String, apiUrl: String): DirectoryEvent.Probe {
+    val url = HttpUrl.parse(apiUrl)?.newBuilder()?.addPathSegment("now")?.build()
+      ?: return DirectoryEvent.Probe(publicKey, online = false)
+    val request = Request.Builder()
+      .url(url)
+      .header("Accept", "application/json")
+      .cacheControl(CacheControl.FORCE_NETWORK)
+      .build()
+
+    val started = System.nanoTime()
+    return try {
+      probeClient.newCall(request).await().use { response ->
+        if (!response.isSuccessful) return DirectoryEvent.Probe(publicKey, online = false)
+        val now = apiJson.parse(NowState.serializer(), response.body()?.string() ?: "")
+        val latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+        DirectoryEvent.Probe(publicKey, online = true, latencyMs = latencyMs, users = now.users.size, booth = now.booth)
+      }
+    } catch (err: IOException) {
+      DirectoryEvent.Probe(publicKey, online = false)
+    } catch (err: SerializationException) {
+      // Something answers, but it's not a üWave API.
+      DirectoryEvent.Probe(publicKey, online = false)
+    }
+  }
+}
+
+private fun JsonObject.string(key: String): String? = (get(key) as? JsonPrimitive)?.contentOrNull
+
+// Enqueue the call instead of blocking a thread on it, and cancel it along with the coroutine.
+@UseExperimental(ExperimentalCoroutinesApi::class)
+private suspend fun Call.await(): Response = suspendCancellableCoroutine { continuation ->
+  continuation.invokeOnCancellation { cancel() }
+  enqueue(object : Callback {
+    override fun onResponse(call: Call, response: Response) {
+      continuation.resume(response) { response.close() }
+    }
+
+    override fun onFailure(call: Call, e: IOException) {
+      if (!continuation.isCancelled) continuation.resumeWithException(e)
+    }
+  })
+}
@@ -1,11 +1,15 @@
 package net.u_wave.client
 
 import java.net.URL
+import java.util.concurrent.atomic.AtomicLong
 import kotlinx.serialization.*
+import kotlinx.serialization.internal.ArrayListSerializer
+import kotlinx.serialization.internal.SerialClassDescImpl
+import kotlinx.serialization.internal.StringSerializer
 import kotlinx.serialization.json.*
-import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.consumeAsFlow
 import okhttp3.Request
 import okhttp3.Response
 import okhttp3.WebSocket
@@ -24,11 +28,11 @@ sealed class SendMessage(val command: String) {
 
 // Notification messages from the server
 @Serializable sealed class ReceiveMessage()
-@Serializable data class ChatMessage(val id: String, val userID: String, val message: String, val timestamp: Int): ReceiveMessage()
+@Serializable data class ChatMessage(val id: String, val userID: String, val message: String, val timestamp: Long): ReceiveMessage()
 @Serializable class ChatDeleteAllMessage() : ReceiveMessage()
 @Serializable data class ChatDeleteOneMessage(@SerialName("_id") val id: String) : ReceiveMessage()
 @Serializable data class ChatDeleteUserMessage(val userID: String) : ReceiveMessage()
-// @Serializable data class UserJoinMessage(val user: User)
+@Serializable data class UserJoinMessage(val user: User): ReceiveMessage()
 @Serializable data class UserLeaveMessage(val userID: String): ReceiveMessage()
 @Serializable data class UserNameChangeMessage(val userID: String, val username: String) : ReceiveMessage()
 @Serializable data class VoteMessage(@SerialName("_id") val userID: String, val value: Int): ReceiveMessage()
@@ -41,58 +45,320 @@ sealed class SendMessage(val command: String) {
 @Serializable data class WaitlistUpdateMessage(val waitlist: ArrayList<String>): ReceiveMessage()
 @Serializable data class WaitlistLockMessage(val locked: Boolean): ReceiveMessage()
 @Serializable class WaitlistClearMessage() : ReceiveMessage()
+@Serializable data class AdvanceMessage(val entry: BoothEntry?): ReceiveMessage()
 
-private fun parseReceivedMessage(rawMessage: JsonObject): ReceiveMessage? =
-  when (rawMessage.getAs<JsonLiteral>("command").content) {
-    "chatMessage" -> json.fromJson<ChatMessage>(ChatMessage.serializer(), rawMessage.getAs<JsonObject>("data"))
-    "chatDelete" -> ChatDeleteAllMessage()
-    "chatDeleteByID" -> json.fromJson<ChatDeleteOneMessage>(ChatDeleteOneMessage.serializer(), rawMessage.getAs<JsonObject>("data"))
-    "chatDeleteByUser" -> json.fromJson<ChatDeleteUserMessage>(ChatDeleteUserMessage.serializer(), rawMessage.getAs<JsonObject>("data"))
-    "vote" -> json.fromJson<VoteMessage>(VoteMessage.serializer(), rawMessage.getAs<JsonObject>("data"))
-    "favorite" -> json.fromJson<FavoriteMessage>(FavoriteMessage.serializer(), rawMessage.getAs<JsonObject>("data"))
-    "playlistCycle" -> json.fromJson<PlaylistCycleMessage>(PlaylistCycleMessage.serializer(), rawMessage.getAs<JsonObject>("data"))
-    "leave" -> json.fromJson<UserLeaveMessage>(UserLeaveMessage.serializer(), rawMessage.getAs<JsonObject>("data"))
-    else -> null
-  }
-
-class Socket(socketFactory: WebSocket.Factory, val url: URL): WebSocketListener() {
-  private var ws = Request.Builder()
+// Incoming messages may carry fields we don't model, like `moderatorID`.
+private val receiveJson = Json(JsonConfiguration.Default.copy(strictMode = false))
+
+// Decodes the `data` of one command. `ifNull` supplies the message for commands whose data is
+// null or absent.
+internal class CommandDeserializer(
+  val deserializer: DeserializationStrategy<out ReceiveMessage>,
+  private val ifNull: (() -> ReceiveMessage)? = null
+) : DeserializationStrategy<ReceiveMessage?> {
+  override val descriptor: SerialDescriptor = deserializer.descriptor
+
+  override fun deserialize(decoder: Decoder): ReceiveMessage? {
+    if (!decoder.decodeNotNullMark()) {
+      decoder.decodeNull()
+      return ifAbsent()
+    }
+    return deserializer.deserialize(decoder)
+  }
+
+  override fun patch(decoder: Decoder, old: ReceiveMessage?): ReceiveMessage? =
+    throw UpdateNotSupportedException(descriptor.name)
+
+  fun ifAbsent(): ReceiveMessage? = ifNull?.invoke()
+}
+
+// Adapts the commands whose data is not an object.
+private class ValueDeserializer<T, M : ReceiveMessage>(
+  private val deserializer: DeserializationStrategy<T>,
+  private val create: (T) -> M
+) : DeserializationStrategy<M> {
+  override val descriptor: SerialDescriptor = deserializer.descriptor
+
+  override fun deserialize(decoder: Decoder): M = create(deserializer.deserialize(decoder))
+
+  override fun patch(decoder: Decoder, old: M): M = throw UpdateNotSupportedException(descriptor.name)
+}
+
+// Every command we model, by name. Visible to tests, so they can check that each one is covered.
+internal val commands: Map<String, CommandDeserializer> = hashMapOf(
+  "chatMessage" to CommandDeserializer(ChatMessage.serializer()),
+  "chatDelete" to CommandDeserializer(ChatDeleteAllMessage.serializer()) { ChatDeleteAllMessage() },
+  "chatDeleteByID" to CommandDeserializer(ChatDeleteOneMessage.serializer()),
+  "chatDeleteByUser" to CommandDeserializer(ChatDeleteUserMessage.serializer()),
+  "join" to CommandDeserializer(ValueDeserializer(User.serializer()) { UserJoinMessage(it) }),
+  "leave" to CommandDeserializer(ValueDeserializer(StringSerializer) { UserLeaveMessage(it) }),
+  "nameChange" to CommandDeserializer(UserNameChangeMessage.serializer()),
+  "vote" to CommandDeserializer(VoteMessage.serializer()),
+  "favorite" to CommandDeserializer(FavoriteMessage.serializer()),
+  "playlistCycle" to CommandDeserializer(PlaylistCycleMessage.serializer()),
+  "waitlistJoin" to CommandDeserializer(WaitlistJoinMessage.serializer()),
+  "waitlistLeave" to CommandDeserializer(WaitlistLeaveMessage.serializer()),
+  "waitlistAdd" to CommandDeserializer(WaitlistAddMessage.serializer()),
+  "waitlistRemove" to CommandDeserializer(WaitlistRemoveMessage.serializer()),
+  "waitlistUpdate" to CommandDeserializer(
+    ValueDeserializer(ArrayListSerializer(StringSerializer)) { WaitlistUpdateMessage(ArrayList(it)) }),
+  "waitlistLock" to CommandDeserializer(WaitlistLockMessage.serializer()),
+  "waitlistClear" to CommandDeserializer(WaitlistClearMessage.serializer()) { WaitlistClearMessage() },
+  "advance" to CommandDeserializer(ValueDeserializer(BoothEntry.serializer()) { AdvanceMessage(it) }) {
+    AdvanceMessage(null)
+  }
+)
+
+// Decodes a `{"command": ..., "data": ...}` envelope straight into the ReceiveMessage for the
+// command. The server always sends `command` first; if it doesn't, `data` is buffered as a tree.
+private object ReceiveMessageDeserializer : DeserializationStrategy<ReceiveMessage?> {
+  override val descriptor: SerialDescriptor = SerialClassDescImpl("ReceiveMessage").apply {
+    addElement("command")
+    addElement("data", isOptional = true)
+  }
+
+  override fun deserialize(decoder: Decoder): ReceiveMessage? {
+    val input = decoder.beginStructure(descriptor)
+    var command: CommandDeserializer? = null
+    var message: ReceiveMessage? = null
+    var hasData = false
+    var earlyData: JsonElement? = null
+    loop@ while (true) {
+      when (val index = input.decodeElementIndex(descriptor)) {
+        CompositeDecoder.READ_DONE -> break@loop
+        0 -> command = commands[input.decodeStringElement(descriptor, 0)]
+        1 -> {
+          hasData = true
+          val deserializer = command
+          if (deserializer != null) {
+            message = input.decodeSerializableElement(descriptor, 1, deserializer)
+          } else {
+            earlyData = input.decodeSerializableElement(descriptor, 1, JsonElementSerializer)
+          }
+        }
+        else -> throw UnknownFieldException(index)
+      }
+    }
+    input.endStructure(descriptor)
+
+    val deserializer = command ?: return null
+    val data = earlyData
+    return when {
+      // Tree decoders can't check the root for null, so do that here.
+      data is JsonNull -> deserializer.ifAbsent()
+      data != null -> receiveJson.fromJson(deserializer.deserializer, data)
+      hasData -> message
+      else -> deserializer.ifAbsent()
+    }
+  }
+
+  override fun patch(decoder: Decoder, old: ReceiveMessage?): ReceiveMessage? =
+    throw UpdateNotSupportedException(descriptor.name)
+}
+
+// Find the command name in a raw message without parsing it. Only a `command` key that opens the
+// top-level object is trusted, which is how the server sends it: further in, the same text could be
+// a chat message or a user name. Returns null if the command is not first, and for messages that
+// are not commands, like the socket token.
+fun peekCommand(text: String): String? {
+  var i = skipWhitespace(text, 0)
+  if (!text.startsWith("{", i)) return null
+  i = skipWhitespace(text, i + 1)
+  if (!text.startsWith("\"command\"", i)) return null
+  i = skipWhitespace(text, i + 9)
+  if (!text.startsWith(":", i)) return null
+  i = skipWhitespace(text, i + 1)
+  if (!text.startsWith("\"", i)) return null
+  val end = text.indexOf('"', i + 1)
+  if (end == -1) return null
+  val name = text.substring(i + 1, end)
+  // Escaped names are left to the parser.
+  return if ('\\' in name) null else name
+}
+
+private fun skipWhitespace(text: String, start: Int): Int {
+  var i = start
+  while (i < text.length && text[i].isWhitespace()) i++
+  return i
+}
+
+// Parse a raw socket message in a single pass. Returns null for commands we don't model, without
+// parsing them at all when the command comes first. Objects where it doesn't are parsed in full.
+fun parseReceivedMessage(text: String): ReceiveMessage? {
+  val command = peekCommand(text)
+  if (command != null) {
+    if (!commands.containsKey(command)) return null
+  } else if (!text.startsWith("{", skipWhitespace(text, 0))) {
+    return null
+  }
+  return receiveJson.parse(ReceiveMessageDeserializer, text)
+}
+
+// Byte counters for a socket. OkHttp does not expose frames, so the wire bytes are an estimate:
+// the payload plus the RFC 6455 frame header it needs, without TLS, TCP or the HTTP upgrade.
+class SocketStats {
+  val estimatedWireBytesIn = AtomicLong()
+  val estimatedWireBytesOut = AtomicLong()
+  val payloadBytesIn = AtomicLong()
+  val payloadBytesOut = AtomicLong()
+
+  internal fun received(text: String) {
+    val size = utf8Length(text)
+    payloadBytesIn.addAndGet(size)
+    estimatedWireBytesIn.addAndGet(size + frameHeaderLength(size, masked = false))
+  }
+
+  internal fun sent(text: String) {
+    val size = utf8Length(text)
+    payloadBytesOut.addAndGet(size)
+    estimatedWireBytesOut.addAndGet(size + frameHeaderLength(size, masked = true))
+  }
+}
+
+private fun frameHeaderLength(size: Long, masked: Boolean): Long {
+  val length = when {
+    size <= 125 -> 2L
+    size <= 0xFFFF -> 4L
+    else -> 10L
+  }
+  return if (masked) length + 4 else length
+}
+
+private fun utf8Length(text: String): Long {
+  var length = 0L
+  var i = 0
+  while (i < text.length) {
+    val c = text[i]
+    length += when {
+      c.toInt() < 0x80 -> 1
+      c.toInt() < 0x800 -> 2
+      Character.isHighSurrogate(c) -> { i++; 4 }
+      else -> 3
+    }
+    i++
+  }
+  return length
+}
+
+// What to do with a parsed message when the consumer of Socket.messages is too far behind.
+enum class BufferOverflow {
+  // Drop the oldest buffered message to make room for the new one.
+  DROP_OLDEST,
+  // Drop the new message.
+  DROP_LATEST
+}
+
+// `onParsed` sees every parsed message on the reader thread, before the listener does and before it
+// is buffered for `messages`, where it may be dropped. It is for consumers that must not miss a message, like the room state,
+// and must be quick and never block.
+class Socket @JvmOverloads constructor(
+  socketFactory: WebSocket.Factory,
+  val url: URL,
+  private val listener: Listener? = null,
+  private val bufferCapacity: Int = DEFAULT_BUFFER_CAPACITY,
+  private val onBufferOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST,
+  private val onParsed: ((ReceiveMessage) -> Unit)? = null
+): WebSocketListener() {
+  companion object {
+    const val DEFAULT_BUFFER_CAPACITY = 64
+  }
+
+  // Receives connection events and every raw text message, for consumers that do their own parsing.
+  interface Listener {
+    fun onOpen()
+    fun onText(text: String)
+    fun onClosed(code: Int, reason: String)
+    fun onFailure(err: Throwable)
+  }
+
+  // Only created once somebody asks for parsed messages, so raw consumers don't pay for parsing.
+  private var messageChannel: Channel<ReceiveMessage>? = null
+  private var authToken: String? = null
+  val stats = SocketStats()
+  // Number of parsed messages dropped because the buffer was full. `onParsed` still saw them.
+  val droppedMessages = AtomicLong()
+
+  private val ws = Request.Builder()
     .url(url)
     .build()
     .let { request -> socketFactory.newWebSocket(request, this) }
-  private val messageChannel = Channel<ReceiveMessage>()
-  private var authToken: String? = null
 
-  val messages: ReceiveChannel<ReceiveMessage>
-    get() = this.messageChannel
+  // Parsed messages from the server. This flow can only be collected once; use
+  // UwaveClient.messages to share it between several consumers.
+  val messages: Flow<ReceiveMessage>
+    @Synchronized get() = (messageChannel ?: Channel<ReceiveMessage>(bufferCapacity).also { messageChannel = it })
+      .consumeAsFlow()
 
   fun authenticate(authToken: String) {
     this.authToken = authToken
-    ws.send(authToken)
+    sendText(authToken)
   }
 
   // Send a message to the server.
   fun send(message: SendMessage) {
-    ws.send(message.toJson())
+    sendText(message.toJson())
+  }
+
+  // Send a raw text message to the server.
+  fun sendText(text: String): Boolean {
+    stats.sent(text)
+    return ws.send(text)
   }
 
+  fun close(code: Int = 1000, reason: String? = null) {
+    ws.close(code, reason)
+  }
+
+  // Called on the OkHttp reader thread, so this must never suspend: a blocked reader stops
+  // reading pings and further frames.
   private fun emit(message: ReceiveMessage) {
-    val channel = this.messageChannel
-    runBlocking {
-      channel.send(message)
+    val channel = this.messageChannel ?: return
+    while (!channel.offer(message)) {
+      when (onBufferOverflow) {
+        BufferOverflow.DROP_LATEST -> {
+          droppedMessages.incrementAndGet()
+          return
+        }
+        // The consumer may have taken the oldest message in the mean time, so only count what
+        // was actually dropped.
+        BufferOverflow.DROP_OLDEST -> if (channel.poll() != null) droppedMessages.incrementAndGet()
+      }
     }
   }
 
   // WebSocketListener
 
-  override fun onOpen(ws: WebSocket, response: Response) {}
+  override fun onOpen(ws: WebSocket, response: Response) {
+    listener?.onOpen()
+  }
   override fun onMessage(ws: WebSocket, text: String) {
+    stats.received(text)
     if (text == "-") return
-    val rawMessage = Json.plain.parseJson(text).jsonObject
-    val message = parseReceivedMessage(rawMessage)
 
+    val message = if (messageChannel != null || onParsed != null) {
+      try {
+        parseReceivedMessage(text)
+      } catch (err: Exception) {
+        // A malformed message should not take the whole socket down.
+        null
+      }
+    } else {
+      null
+    }
+
+    message?.let { onParsed?.invoke(it) }
+    listener?.onText(text)
     message?.let { emit(it) }
   }
-  override fun onClosing(ws: WebSocket, code: Int, reason: String) {}
-  override fun onClosed(ws: WebSocket, code: Int, reason: String) {}
+  override fun onClosing(ws: WebSocket, code: Int, reason: String) {
+    ws.close(code, null)
+  }
+  override fun onClosed(ws: WebSocket, code: Int, reason: String) {
+    messageChannel?.close()
+    listener?.onClosed(code, reason)
+  }
+  override fun onFailure(ws: WebSocket, err: Throwable, response: Response?) {
+    messageChannel?.close(err)
+    listener?.onFailure(err)
+  }
 }
@@ -1,33 +1,297 @@
 package net.u_wave.client
 
+import java.io.IOException
 import java.net.URL
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+import okhttp3.HttpUrl
+import okhttp3.MediaType
 import okhttp3.OkHttpClient
-import kotlinx.coroutines.GlobalScope
+import okhttp3.Request
+import okhttp3.RequestBody
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.channels.broadcast
-import kotlinx.coroutines.channels.consumeEach
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.channels.BroadcastChannel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.collect
+import kotlinx.serialization.DeserializationStrategy
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.json.json
 
 data class UwaveServer(
   val apiUrl: URL,
   val socketUrl: URL
 )
 
+@Serializable
 data class User(
-  val userID: String,
-  var avatar: String,
+  @SerialName("_id") val userID: String,
+  var avatar: String? = null,
   var username: String,
-  var roles: ArrayList<String>
+  var roles: ArrayList<String> = arrayListOf()
+)
+
+@Serializable
+data class Media(
+  @SerialName("_id") val id: String,
+  val sourceType: String,
+  val sourceID: String,
+  val artist: String = "",
+  val title: String = "",
+  val duration: Int = 0,
+  val thumbnail: String? = null
+)
+
+@Serializable
+data class BoothMedia(
+  val media: Media,
+  val artist: String,
+  val title: String,
+  val start: Int = 0,
+  val end: Int = 0
+)
+
+@Serializable
+data class BoothEntry(
+  val historyID: String,
+  val userID: String,
+  val media: BoothMedia,
+  val playedAt: Long
 )
 
-class UwaveClient(val client: OkHttpClient, val server: UwaveServer) {
-  val socket = Socket(client, server.socketUrl)
-  val messages = socket.messages.broadcast()
+// `client` is used for REST calls, and with the read timeout disabled for the socket. Give it a
+// Cache to have responses revalidated with If-None-Match instead of downloaded again.
+//
+// With a `snapshotStore`, `state` starts out as the snapshot from the last session, is reconciled
+// with the server in the background, and is written back shortly after it changes.
+class UwaveClient @JvmOverloads constructor(
+  val client: OkHttpClient,
+  val server: UwaveServer,
+  listener: Socket.Listener? = null,
+  private val snapshotStore: RoomSnapshotStore? = null
+) {
+  companion object {
+    // Messages buffered for each subscriber of `messages`, so one slow subscriber does not hold
+    // back the others until its own buffer is full.
+    const val SUBSCRIBER_BUFFER_CAPACITY = 32
+    // Changes are collected for this long before the snapshot is written, so busy chat does not
+    // turn into a write per message.
+    const val SNAPSHOT_SAVE_DELAY_MS = 2000L
+
+    private val JSON = MediaType.get("application/json")
+  }
+
+  interface Callback<T> {
+    fun onSuccess(result: T)
+    fun onFailure(err: Exception)
+  }
+
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+  @UseExperimental(ExperimentalCoroutinesApi::class)
+  private val broadcast = BroadcastChannel<ReceiveMessage>(Socket.DEFAULT_BUFFER_CAPACITY)
+
+  private val apiUrl: HttpUrl = HttpUrl.get(server.apiUrl.toString())
+
+  // The room state, updated on the socket's reader thread by every message, so it never misses one
+  // when subscribers to `messages` fall behind. Messages that come in while the snapshot is being
+  // restored wait in `restoringMessages` and are applied on top of it. Everything the reader thread
+  // touches is set up before the socket is created below.
+  val state = RoomState()
+  private val restoreLock = Any()
+  private var restoringMessages: ArrayList<ReceiveMessage>? =
+    if (snapshotStore != null) ArrayList() else null
+  private val snapshotSavePending = AtomicBoolean(false)
+
+  private val socketClient = client.newBuilder()
+    .readTimeout(0, TimeUnit.MILLISECONDS)
+    .build()
+  val socket = Socket(socketClient, server.socketUrl, listener, onParsed = { applyMessage(it) })
+
+  // JWT for the signed in user, sent with every API request.
+  @Volatile var authToken: String? = null
+
+  // Hot stream of messages from the server, shared by all subscribers. A subscriber that falls too
+  // far behind misses messages; `state` does not.
+  val messages: Flow<ReceiveMessage>
+    @UseExperimental(ExperimentalCoroutinesApi::class, FlowPreview::class)
+    get() = broadcast.asFlow().buffer(SUBSCRIBER_BUFFER_CAPACITY)
 
   init {
-    GlobalScope.launch {
-      messages.openSubscription().consumeEach {
-        print(it)
+    scope.launch { broadcastMessages() }
+    if (snapshotStore != null) {
+      scope.launch { restoreSnapshot(snapshotStore) }
+    }
+  }
+
+  @UseExperimental(ExperimentalCoroutinesApi::class)
+  private suspend fun broadcastMessages() {
+    try {
+      socket.messages.collect { broadcast.send(it) }
+      broadcast.close()
+    } catch (err: Exception) {
+      broadcast.close(err)
+    }
+  }
+
+  private fun applyMessage(message: ReceiveMessage) {
+    synchronized(restoreLock) {
+      val pending = restoringMessages
+      if (pending != null) {
+        pending.add(message)
+        return
+      }
+      state.apply(message)
+    }
+    scheduleSnapshotSave()
+  }
+
+  private suspend fun restoreSnapshot(store: RoomSnapshotStore) {
+    var saved: SavedRoomSnapshot? = null
+    try {
+      saved = withContext(Dispatchers.IO) {
+        try {
+          store.read()
+        } catch (err: IOException) {
+          null
+        }
+      }
+    } finally {
+      // Whatever happened to the snapshot, messages must not queue up forever.
+      synchronized(restoreLock) {
+        saved?.let { state.restore(it.snapshot) }
+        restoringMessages?.forEach { state.apply(it) }
+        restoringMessages = null
+      }
+    }
+    scope.launch {
+      try {
+        refresh(keepChat = true)
+      } catch (err: IOException) {
+        // The socket keeps the restored state up to date from here, it's just missing anything
+        // that happened while we were away.
+      } catch (err: SerializationException) {
+        // Same as above.
       }
     }
   }
+
+  private fun scheduleSnapshotSave() {
+    val store = snapshotStore ?: return
+    if (!snapshotSavePending.compareAndSet(false, true)) return
+    scope.launch {
+      delay(SNAPSHOT_SAVE_DELAY_MS)
+      snapshotSavePending.set(false)
+      val snapshot = state.snapshot()
+      withContext(Dispatchers.IO) { saveSnapshot(store, snapshot) }
+    }
+  }
+
+  private fun saveSnapshot(store: RoomSnapshotStore, snapshot: RoomSnapshot) {
+    try {
+      store.write(snapshot)
+    } catch (err: IOException) {
+      // The previous snapshot stays in place, which is only a bit more out of date.
+    }
+  }
+
+  private fun url(path: String): HttpUrl.Builder =
+    apiUrl.newBuilder().addPathSegments(path)
+
+  private suspend fun <T> request(request: Request, deserializer: DeserializationStrategy<T>): T =
+    withContext(Dispatchers.IO) {
+      val builder = request.newBuilder().header("Accept", "application/json")
+      authToken?.let { builder.header("Authorization", "JWT $it") }
+
+      client.newCall(builder.build()).execute().use { response ->
+        if (!response.isSuccessful) {
+          throw UwaveApiException(response.code(), "${request.url()} returned ${response.code()}")
+        }
+        // kotlinx.serialization 0.14 only parses strings, so the body is read in full first.
+        apiJson.parse(deserializer, response.body()?.string() ?: "")
+      }
+    }
+
+  private suspend fun <T> get(url: HttpUrl, deserializer: DeserializationStrategy<T>): T =
+    request(Request.Builder().url(url).build(), deserializer)
+
+  // Fetch the current room state.
+  suspend fun now(): NowState = get(url("now").build(), NowState.serializer())
+
+  // Fetch the current room state and replace the contents of `state` with it.
+  suspend fun refresh(keepChat: Boolean = false): NowState {
+    val now = now()
+    state.load(now.booth, now.users, now.waitlist, now.waitlistLocked, keepChat)
+    scheduleSnapshotSave()
+    return now
+  }
+
+  suspend fun signIn(email: String, password: String): SignInResult {
+    val body = json {
+      "email" to email
+      "password" to password
+    }
+    val request = Request.Builder()
+      .url(url("auth/login").build())
+      .post(RequestBody.create(JSON, body.toString()))
+      .build()
+    val response = request(request, SignInResponse.serializer())
+    authToken = response.meta.jwt
+    return SignInResult(response.meta.jwt, response.data)
+  }
+
+  // Fetch a token that signs the socket in as the current user.
+  suspend fun socketToken(): String =
+    get(url("auth/socket").build(), SocketTokenResponse.serializer()).data.socketToken
+
+  // Run an API call for a caller that can not suspend, like the platform channel. `callback` is
+  // called on a background thread, also when the client is closed before the call finishes.
+  private fun <T> call(callback: Callback<T>, block: suspend () -> T) {
+    val job = scope.launch {
+      val result = try {
+        block()
+      } catch (err: IOException) {
+        callback.onFailure(err)
+        return@launch
+      } catch (err: SerializationException) {
+        callback.onFailure(err)
+        return@launch
+      }
+      callback.onSuccess(result)
+    }
+    job.invokeOnCompletion { err ->
+      if (err is CancellationException) callback.onFailure(err)
+    }
+  }
+
+  fun refresh(callback: Callback<NowState>) = call(callback) { refresh(keepChat = true) }
+
+  fun signIn(email: String, password: String, callback: Callback<SignInResult>) =
+    call(callback) { signIn(email, password) }
+
+  fun socketToken(callback: Callback<String>) = call(callback) { socketToken() }
+
+  @UseExperimental(ExperimentalCoroutinesApi::class)
+  fun close() {
+    // Write out changes that are still waiting, as the scope won't be around to do it.
+    if (snapshotStore != null && snapshotSavePending.getAndSet(false)) {
+      val snapshot = state.snapshot()
+      thread(name = "RoomSnapshotStore") { saveSnapshot(snapshotStore, snapshot) }
+    }
+    socket.close()
+    broadcast.close()
+    scope.cancel()
+  }
 }
@@ -0,0 +1,291 @@
+package net.u_wave.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.HttpDataSource;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+// android.net.Uri is a stub in JVM tests, so candidates are told apart by the order their sources
+// are created in, and by the factory's winner.
+public class HedgedDataSourceTest {
+  private static final long TIMEOUT_S = 5;
+
+  /** Delivers its content once `ready` is released, or fails with `error`. */
+  private static class FakeDataSource implements DataSource {
+    final byte[] content;
+    final IOException error;
+    final CountDownLatch ready = new CountDownLatch(1);
+    final CountDownLatch opening = new CountDownLatch(1);
+    final CountDownLatch closed = new CountDownLatch(1);
+    // Whether open() keeps waiting when its thread is interrupted, like a blocking socket read.
+    boolean ignoresInterrupts = false;
+    volatile DataSpec dataSpec;
+    private int position;
+
+    FakeDataSource(String content, IOException error) {
+      this.content = content.getBytes();
+      this.error = error;
+    }
+
+    static FakeDataSource ready(String content) {
+      final FakeDataSource source = new FakeDataSource(content, null);
+      source.ready.countDown();
+      return source;
+    }
+
+    static FakeDataSource stalled(String content) {
+      return new FakeDataSource(content, null);
+    }
+
+    @SuppressWarnings("deprecation")
+    static FakeDataSource failing(int responseCode) {
+      final FakeDataSource source =
+          new FakeDataSource(
+              "",
+              new HttpDataSource.InvalidResponseCodeException(
+                  responseCode, Collections.<String, List<String>>emptyMap(), null));
+      source.ready.countDown();
+      return source;
+    }
+
+    @Override
+    public void addTransferListener(TransferListener transferListener) {}
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      this.dataSpec = dataSpec;
+      opening.countDown();
+      while (true) {
+        try {
+          ready.await();
+          break;
+        } catch (InterruptedException err) {
+          if (!ignoresInterrupts) throw new InterruptedIOException();
+        }
+      }
+      if (error != null) throw error;
+      position = (int) dataSpec.absoluteStreamPosition;
+      return content.length - position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) {
+      if (position >= content.length) return C.RESULT_END_OF_INPUT;
+      final int count = Math.min(readLength, content.length - position);
+      System.arraycopy(content, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public Uri getUri() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+
+    boolean isClosed() throws InterruptedException {
+      return closed.await(TIMEOUT_S, TimeUnit.SECONDS);
+    }
+  }
+
+  /** Hands out the given sources in the order they are asked for. */
+  private static class FakeFactory implements DataSource.Factory {
+    private final List<FakeDataSource> sources;
+    private int created = 0;
+
+    FakeFactory(FakeDataSource... sources) {
+      this.sources = Arrays.asList(sources);
+    }
+
+    @Override
+    public synchronized DataSource createDataSource() {
+      if (created == sources.size()) throw new AssertionError("Unexpected data source");
+      return sources.get(created++);
+    }
+
+    synchronized int getCreated() {
+      return created;
+    }
+  }
+
+  private static HedgedDataSource.Factory hedged(
+      FakeFactory upstream, int maxInFlight, String... mimeTypes) {
+    final List<HedgedDataSource.Candidate> candidates = new ArrayList<>();
+    for (int i = 0; i < mimeTypes.length; i++) {
+      candidates.add(
+          new HedgedDataSource.Candidate(Uri.parse("https://example.com/" + i), mimeTypes[i]));
+    }
+    return new HedgedDataSource.Factory(upstream, candidates, maxInFlight);
+  }
+
+  private static DataSpec spec(long position) {
+    return new DataSpec(Uri.parse("https://example.com/"), position, C.LENGTH_UNSET, null);
+  }
+
+  private static String readAll(DataSource dataSource) throws IOException {
+    final StringBuilder builder = new StringBuilder();
+    final byte[] buffer = new byte[4];
+    int count;
+    while ((count = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+      builder.append(new String(buffer, 0, count));
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void usesTheFirstCandidateWhenItIsFast() throws IOException {
+    final FakeFactory upstream = new FakeFactory(FakeDataSource.ready("first"));
+    final HedgedDataSource.Factory factory = hedged(upstream, 2, "video/mp4", "video/mp4");
+    final DataSource dataSource = factory.createDataSource();
+
+    assertEquals(5, dataSource.open(spec(0)));
+    assertEquals("first", readAll(dataSource));
+    assertEquals(1, upstream.getCreated());
+    assertEquals(0, factory.getWinner());
+  }
+
+  @Test
+  public void hedgesAfterTheDelay() throws Exception {
+    final FakeDataSource slow = FakeDataSource.stalled("slow");
+    final FakeFactory upstream = new FakeFactory(slow, FakeDataSource.ready("fast"));
+    final HedgedDataSource.Factory factory = hedged(upstream, 2, "video/mp4", "video/mp4");
+    final DataSource dataSource = factory.createDataSource();
+
+    final long start = System.nanoTime();
+    dataSource.open(spec(0));
+    final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertTrue(elapsedMs >= HedgedDataSource.HEDGE_DELAY_MS);
+    assertEquals("fast", readAll(dataSource));
+    assertEquals(1, factory.getWinner());
+    // The loser was still opening, and is stopped.
+    assertTrue(slow.isClosed());
+  }
+
+  @Test
+  public void closesALoserThatOpensLate() throws Exception {
+    final FakeDataSource slow = FakeDataSource.stalled("slow");
+    slow.ignoresInterrupts = true;
+    final FakeFactory upstream = new FakeFactory(slow, FakeDataSource.ready("fast"));
+    final HedgedDataSource.Factory factory = hedged(upstream, 2, "video/mp4", "video/mp4");
+
+    factory.createDataSource().open(spec(0));
+    assertEquals(1, slow.closed.getCount());
+    slow.ready.countDown();
+    assertTrue(slow.isClosed());
+  }
+
+  @Test
+  public void failsOverWithoutWaitingWhenACandidateIsForbidden() throws IOException {
+    final FakeDataSource forbidden = FakeDataSource.failing(403);
+    final FakeFactory upstream = new FakeFactory(forbidden, FakeDataSource.ready("second"));
+    final HedgedDataSource.Factory factory = hedged(upstream, 2, "video/mp4", "video/webm");
+    final DataSource dataSource = factory.createDataSource();
+
+    final long start = System.nanoTime();
+    dataSource.open(spec(0));
+    final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertTrue(elapsedMs < HedgedDataSource.HEDGE_DELAY_MS);
+    assertEquals("second", readAll(dataSource));
+    assertEquals(1, factory.getWinner());
+  }
+
+  @Test
+  public void reusesTheWinnerWhenSeeking() throws IOException {
+    final FakeDataSource seeked = FakeDataSource.ready("fast");
+    final FakeFactory upstream =
+        new FakeFactory(FakeDataSource.stalled("slow"), FakeDataSource.ready("fast"), seeked);
+    final HedgedDataSource.Factory factory = hedged(upstream, 2, "video/mp4", "video/mp4");
+    final DataSource first = factory.createDataSource();
+    first.open(spec(0));
+    first.close();
+
+    final DataSource second = factory.createDataSource();
+    assertEquals(2, second.open(spec(2)));
+    assertEquals("st", readAll(second));
+    // Only the winner is opened again, without a race.
+    assertEquals(3, upstream.getCreated());
+    assertEquals(2, seeked.dataSpec.absoluteStreamPosition);
+    assertEquals(1, factory.getWinner());
+  }
+
+  @Test
+  public void failsOverOnlyToTheWinnersType() throws IOException {
+    final FakeFactory upstream =
+        new FakeFactory(
+            FakeDataSource.ready("mp4"),
+            FakeDataSource.failing(403),
+            FakeDataSource.ready("also mp4"));
+    final HedgedDataSource.Factory factory =
+        hedged(upstream, 2, "video/mp4", "video/webm", "video/mp4");
+    factory.createDataSource().open(spec(0));
+
+    final DataSource dataSource = factory.createDataSource();
+    dataSource.open(spec(0));
+    assertEquals("also mp4", readAll(dataSource));
+    assertEquals(2, factory.getWinner());
+  }
+
+  @Test
+  public void rethrowsWhenNoCandidateHasTheWinnersType() throws IOException {
+    final FakeDataSource forbidden = FakeDataSource.failing(403);
+    final FakeFactory upstream = new FakeFactory(FakeDataSource.ready("mp4"), forbidden);
+    final HedgedDataSource.Factory factory = hedged(upstream, 2, "video/mp4", "video/webm");
+    factory.createDataSource().open(spec(0));
+
+    try {
+      factory.createDataSource().open(spec(0));
+      fail("Expected the winner's error");
+    } catch (IOException err) {
+      assertSame(forbidden.error, err);
+    }
+    assertEquals(2, upstream.getCreated());
+  }
+
+  @Test
+  public void stopsOpeningWhenInterrupted() throws Exception {
+    final FakeDataSource stalled = FakeDataSource.stalled("stalled");
+    final HedgedDataSource.Factory factory = hedged(new FakeFactory(stalled), 1, "video/mp4");
+    final AtomicReference<Throwable> thrown = new AtomicReference<>();
+    final Thread thread =
+        new Thread(
+            () -> {
+              try {
+                factory.createDataSource().open(spec(0));
+              } catch (Throwable err) {
+                thrown.set(err);
+              }
+            });
+    thread.start();
+
+    assertTrue(stalled.opening.await(TIMEOUT_S, TimeUnit.SECONDS));
+    thread.interrupt();
+    thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_S));
+
+    assertTrue(thrown.get() instanceof InterruptedIOException);
+    assertTrue(stalled.isClosed());
+    assertEquals(-1, factory.getWinner());
+  }
+}
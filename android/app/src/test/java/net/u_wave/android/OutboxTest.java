@@ -0,0 +1,188 @@
+package net.u_wave.android;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboxTest {
+  /** Runs posted callbacks when the test moves the clock past them. */
+  private static class FakeScheduler implements Outbox.Scheduler {
+    long now = 1000;
+    final List<Runnable> runnables = new ArrayList<>();
+    final List<Long> times = new ArrayList<>();
+
+    @Override
+    public long uptimeMillis() {
+      return now;
+    }
+
+    @Override
+    public void postAtTime(Runnable runnable, long uptimeMillis) {
+      runnables.add(runnable);
+      times.add(uptimeMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+      for (int i = runnables.size() - 1; i >= 0; i--) {
+        if (runnables.get(i) == runnable) {
+          runnables.remove(i);
+          times.remove(i);
+        }
+      }
+    }
+
+    void advance(long ms) {
+      now += ms;
+      for (int i = 0; i < runnables.size(); i++) {
+        if (times.get(i) <= now) {
+          final Runnable runnable = runnables.remove(i);
+          times.remove(i);
+          runnable.run();
+          i = -1;
+        }
+      }
+    }
+  }
+
+  private static class FakeSender implements Outbox.Sender {
+    final List<String> sent = new ArrayList<>();
+    boolean open = true;
+
+    @Override
+    public boolean send(String text) {
+      if (!open) return false;
+      sent.add(text);
+      return true;
+    }
+  }
+
+  private static String vote(int direction) {
+    return "{\"command\":\"vote\",\"data\":" + direction + "}";
+  }
+
+  private static String chat(String text) {
+    return "{\"command\":\"sendChat\",\"data\":\"" + text + "\"}";
+  }
+
+  private FakeScheduler scheduler;
+  private FakeSender sender;
+  private Outbox outbox;
+
+  @Before
+  public void setUp() {
+    scheduler = new FakeScheduler();
+    sender = new FakeSender();
+    outbox = new Outbox(scheduler);
+  }
+
+  @Test
+  public void holdsCommandsUntilAuthenticated() {
+    outbox.add(chat("a"));
+    outbox.open(sender);
+    assertEquals(Arrays.asList(), sender.sent);
+
+    outbox.addToken("token");
+    assertEquals(Arrays.asList("token", chat("a")), sender.sent);
+  }
+
+  @Test
+  public void sendsTokensFirst() {
+    outbox.add(chat("a"));
+    outbox.add(chat("b"));
+    outbox.addToken("token");
+    outbox.open(sender);
+    assertEquals(Arrays.asList("token", chat("a"), chat("b")), sender.sent);
+  }
+
+  @Test
+  public void treatsMessagesWithoutACommandAsCommands() {
+    // Only addToken() authenticates, whatever the message looks like.
+    outbox.open(sender);
+    outbox.add("not a command");
+    assertEquals(Arrays.asList(), sender.sent);
+    outbox.addToken("token");
+    assertEquals(Arrays.asList("token", "not a command"), sender.sent);
+  }
+
+  @Test
+  public void coalescesVotesWithinTheWindow() {
+    outbox.open(sender);
+    outbox.addToken("token");
+    outbox.add(vote(1));
+    scheduler.advance(Outbox.COALESCE_WINDOW_MS / 2);
+    outbox.add(vote(-1));
+    assertEquals(Arrays.asList("token"), sender.sent);
+
+    // The window started with the first vote.
+    scheduler.advance(Outbox.COALESCE_WINDOW_MS / 2);
+    assertEquals(Arrays.asList("token", vote(-1)), sender.sent);
+
+    outbox.add(vote(1));
+    scheduler.advance(Outbox.COALESCE_WINDOW_MS);
+    assertEquals(Arrays.asList("token", vote(-1), vote(1)), sender.sent);
+  }
+
+  @Test
+  public void otherCommandsFlushWaitingVotes() {
+    outbox.open(sender);
+    outbox.addToken("token");
+    outbox.add(vote(1));
+    outbox.add(chat("a"));
+    assertEquals(Arrays.asList("token", vote(1), chat("a")), sender.sent);
+  }
+
+  @Test
+  public void keepsCommandsButNotTokensAcrossReconnects() {
+    outbox.addToken("old token");
+    outbox.add(chat("a"));
+    outbox.close();
+
+    outbox.open(sender);
+    assertEquals(Arrays.asList(), sender.sent);
+    outbox.addToken("new token");
+    assertEquals(Arrays.asList("new token", chat("a")), sender.sent);
+  }
+
+  @Test
+  public void keepsMessagesTheSocketDidNotTake() {
+    outbox.open(sender);
+    outbox.addToken("token");
+    sender.open = false;
+    outbox.add(chat("a"));
+    outbox.close();
+
+    final FakeSender next = new FakeSender();
+    outbox.open(next);
+    outbox.addToken("token");
+    assertEquals(Arrays.asList("token", chat("a")), next.sent);
+  }
+
+  @Test
+  public void dropsTheOldestCommandsWhenFull() {
+    outbox.addToken("token");
+    for (int i = 0; i < 105; i++) {
+      outbox.add(chat("m" + i));
+    }
+    outbox.open(sender);
+
+    // The token counts towards the limit, but is never dropped.
+    assertEquals(100, sender.sent.size());
+    assertEquals("token", sender.sent.get(0));
+    assertEquals(chat("m6"), sender.sent.get(1));
+    assertEquals(chat("m104"), sender.sent.get(99));
+  }
+
+  @Test
+  public void clearForgetsEverything() {
+    outbox.add(chat("a"));
+    outbox.clear();
+    outbox.open(sender);
+    outbox.addToken("token");
+    assertEquals(Arrays.asList("token"), sender.sent);
+  }
+}
@@ -0,0 +1,85 @@
+package net.u_wave.client
+
+import java.io.RandomAccessFile
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class RoomSnapshotStoreTest {
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private val snapshot = RoomSnapshot(
+    revision = 42,
+    booth = BoothEntry(
+      historyID = "h1",
+      userID = "u1",
+      media = BoothMedia(
+        Media("m1", "youtube", "dQw4w9WgXcQ", "Artist", "Title", 213, thumbnail = null),
+        "Artist 🎸",
+        "Title (Official Video)",
+        start = 10,
+        end = 200
+      ),
+      playedAt = 1580000118845
+    ),
+    users = listOf(
+      User("u1", "https://example.com/avatar.png", "dj 🎧", arrayListOf("user", "moderator")),
+      User("u2", null, "listener", arrayListOf())
+    ),
+    waitlist = listOf("u2", "u1"),
+    waitlistLocked = true,
+    voters = Voters(setOf("u1", "u3"), setOf("u2"), setOf("u2")),
+    chat = listOf(
+      ChatMessage("c1", "u2", "🔥🔥🔥 this is great", 1580000004092),
+      ChatMessage("c2", "u1", "naïve café, 日本語, and a 👨‍👩‍👧 family", 1580000005000)
+    )
+  )
+
+  private fun store() = RoomSnapshotStore(folder.root.resolve("room"))
+
+  @Test
+  fun readsWhatWasWritten() {
+    val store = store()
+    store.write(snapshot, savedAt = 1234)
+    assertEquals(SavedRoomSnapshot(1234, snapshot), store.read())
+  }
+
+  @Test
+  fun readsNothingBeforeTheFirstWrite() {
+    assertNull(store().read())
+  }
+
+  @Test
+  fun keepsOnlyTheChatTail() {
+    val store = store()
+    val chat = List(RoomSnapshotStore.CHAT_TAIL + 10) { ChatMessage("c$it", "u1", "$it", it.toLong()) }
+    store.write(snapshot.copy(chat = chat))
+    assertEquals(chat.takeLast(RoomSnapshotStore.CHAT_TAIL), store.read()?.snapshot?.chat)
+  }
+
+  @Test
+  fun ignoresOtherVersions() {
+    val store = store()
+    store.write(snapshot)
+    // The version follows the 4 byte magic number.
+    RandomAccessFile(store.file, "rw").use {
+      it.seek(4)
+      it.writeInt(Int.MAX_VALUE)
+    }
+    assertNull(store.read())
+  }
+
+  @Test
+  fun ignoresTruncatedFiles() {
+    val store = store()
+    store.write(snapshot)
+    val length = store.file.length()
+    for (cut in listOf(length - 1, length / 2, 6L, 0L)) {
+      RandomAccessFile(store.file, "rw").use { it.setLength(cut) }
+      assertNull("Truncated to $cut bytes", store.read())
+    }
+  }
+}
@@ -0,0 +1,284 @@
+package net.u_wave.client
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class RoomStateTest {
+  private fun entry(historyID: String) = BoothEntry(
+    historyID = historyID,
+    userID = "dj",
+    media = BoothMedia(Media("m-$historyID", "youtube", "yt-$historyID"), "Artist", "Title"),
+    playedAt = 1580000000000
+  )
+
+  private fun chat(id: String, userID: String = "u1") = ChatMessage(id, userID, "message $id", 1580000000000)
+
+  private fun user(id: String) = User(id, null, "user $id", arrayListOf("user"))
+
+  @Test
+  fun loadAndApplyBumpRevision() {
+    val state = RoomState()
+    assertEquals(0L, state.revision)
+    state.load(entry("h1"), listOf(user("u1")), listOf("u1"), false)
+    assertEquals(1L, state.revision)
+    state.apply(chat("c1"))
+    state.apply(PlaylistCycleMessage("p1"))
+    assertEquals(3L, state.revision)
+    assertEquals(3L, state.snapshot().revision)
+  }
+
+  @Test
+  fun appliesUserMessages() {
+    val state = RoomState()
+    state.load(null, listOf(user("u1")), emptyList(), false)
+    state.apply(UserJoinMessage(user("u2")))
+    state.apply(UserNameChangeMessage("u1", "renamed"))
+    state.apply(UserLeaveMessage("u2"))
+
+    val users = state.snapshot().users
+    assertEquals(listOf("u1"), users.map { it.userID })
+    assertEquals("renamed", users[0].username)
+  }
+
+  @Test
+  fun snapshotIsNotChangedByLaterMessages() {
+    val state = RoomState()
+    state.load(null, listOf(user("u1")), listOf("u1"), false)
+    val snapshot = state.snapshot()
+    state.apply(UserNameChangeMessage("u1", "renamed"))
+    state.apply(WaitlistClearMessage())
+
+    assertEquals("user u1", snapshot.users[0].username)
+    assertEquals(listOf("u1"), snapshot.waitlist)
+  }
+
+  @Test
+  fun appliesWaitlistMessages() {
+    val state = RoomState()
+    state.apply(WaitlistJoinMessage("u1", arrayListOf("u1")))
+    state.apply(WaitlistAddMessage("u2", arrayListOf("u1", "u2")))
+    assertEquals(listOf("u1", "u2"), state.snapshot().waitlist)
+    state.apply(WaitlistUpdateMessage(arrayListOf("u2", "u1")))
+    assertEquals(listOf("u2", "u1"), state.snapshot().waitlist)
+    state.apply(WaitlistLockMessage(true))
+    state.apply(WaitlistClearMessage())
+    assertEquals(emptyList<String>(), state.snapshot().waitlist)
+    assertTrue(state.snapshot().waitlistLocked)
+  }
+
+  @Test
+  fun talliesVotesUntilAdvance() {
+    val state = RoomState()
+    state.apply(AdvanceMessage(entry("h1")))
+    state.apply(VoteMessage("u1", 1))
+    state.apply(VoteMessage("u2", 1))
+    state.apply(VoteMessage("u3", -1))
+    // Changing a vote moves it, rather than counting it twice.
+    state.apply(VoteMessage("u2", -1))
+    state.apply(FavoriteMessage("u1", "h1"))
+    state.apply(FavoriteMessage("u1", "h1"))
+    assertEquals(VoteTally(1, 2, 1), state.snapshot().votes)
+
+    state.apply(AdvanceMessage(entry("h2")))
+    assertEquals(VoteTally(0, 0, 0), state.snapshot().votes)
+    assertEquals("h2", state.snapshot().booth?.historyID)
+  }
+
+  @Test
+  fun keepsChatOnlyWhenAsked() {
+    val state = RoomState()
+    state.apply(chat("c1"))
+    state.load(null, emptyList(), emptyList(), false, keepChat = true)
+    assertEquals(listOf("c1"), state.snapshot().chat.map { it.id })
+    state.load(null, emptyList(), emptyList(), false)
+    assertEquals(emptyList<String>(), state.snapshot().chat.map { it.id })
+  }
+
+  @Test
+  fun appliesChatDeletes() {
+    val state = RoomState()
+    state.apply(chat("c1", "u1"))
+    state.apply(chat("c2", "u2"))
+    state.apply(chat("c3", "u1"))
+    state.apply(chat("c4", "u2"))
+    state.apply(ChatDeleteOneMessage("c2"))
+    assertEquals(listOf("c1", "c3", "c4"), state.snapshot().chat.map { it.id })
+    state.apply(ChatDeleteUserMessage("u1"))
+    assertEquals(listOf("c4"), state.snapshot().chat.map { it.id })
+    state.apply(ChatDeleteAllMessage())
+    assertEquals(emptyList<String>(), state.snapshot().chat)
+  }
+
+  @Test
+  fun chatHistoryOverwritesOldest() {
+    val history = ChatHistory(3)
+    for (i in 1..5) history.add(chat("c$i"))
+    assertEquals(listOf("c3", "c4", "c5"), history.toList().map { it.id })
+  }
+
+  @Test
+  fun chatHistoryKeepsOrderAcrossRemoval() {
+    val history = ChatHistory(3)
+    for (i in 1..4) history.add(chat("c$i"))
+    assertTrue(history.removeIf { it.id == "c3" })
+    assertFalse(history.removeIf { it.id == "c1" })
+    assertEquals(listOf("c2", "c4"), history.toList().map { it.id })
+    history.add(chat("c5"))
+    assertEquals(listOf("c4", "c5"), history.toList().map { it.id })
+  }
+
+  @Test
+  fun chatHistoryStartsOverAfterClear() {
+    val history = ChatHistory(3)
+    for (i in 1..4) history.add(chat("c$i"))
+    history.clear()
+    assertEquals(emptyList<ChatMessage>(), history.toList())
+    history.add(chat("c5"))
+    assertEquals(listOf("c5"), history.toList().map { it.id })
+  }
+
+  @Test
+  fun restoreReplacesState() {
+    val state = RoomState()
+    state.apply(chat("old"))
+    val before = state.revision
+    state.restore(RoomSnapshot(
+      revision = 10,
+      booth = entry("h1"),
+      users = listOf(user("u1")),
+      waitlist = listOf("u1"),
+      waitlistLocked = true,
+      voters = Voters(),
+      chat = listOf(chat("c1"), chat("c2"))
+    ))
+
+    val snapshot = state.snapshot()
+    assertNotEquals(before, state.revision)
+    assertEquals("h1", snapshot.booth?.historyID)
+    assertEquals(listOf("u1"), snapshot.waitlist)
+    assertTrue(snapshot.waitlistLocked)
+    assertEquals(listOf("c1", "c2"), snapshot.chat.map { it.id })
+  }
+
+  @Test
+  fun restoreKeepsVoters() {
+    val state = RoomState()
+    val voters = Voters(setOf("u1", "u2", "u3"), setOf("u4"), setOf("u1", "u2"))
+    state.restore(RoomSnapshot(1, entry("h1"), emptyList(), emptyList(), false, voters, emptyList()))
+    assertEquals(voters, state.snapshot().voters)
+    assertEquals(VoteTally(3, 1, 2), state.snapshot().votes)
+
+    // Votes the snapshot already had are not counted again.
+    state.apply(VoteMessage("u1", 1))
+    state.apply(FavoriteMessage("u1", "h1"))
+    assertEquals(VoteTally(3, 1, 2), state.snapshot().votes)
+    state.apply(VoteMessage("u4", 1))
+    assertEquals(VoteTally(4, 0, 2), state.snapshot().votes)
+
+    state.apply(AdvanceMessage(entry("h2")))
+    assertEquals(VoteTally(0, 0, 0), state.snapshot().votes)
+  }
+
+  @Test
+  fun loadKeepsVotesForTheSameTrack() {
+    val state = RoomState()
+    state.apply(AdvanceMessage(entry("h1")))
+    state.apply(VoteMessage("u1", 1))
+    state.load(entry("h1"), emptyList(), emptyList(), false, keepChat = true)
+    assertEquals(VoteTally(1, 0, 0), state.snapshot().votes)
+    state.load(entry("h2"), emptyList(), emptyList(), false, keepChat = true)
+    assertEquals(VoteTally(0, 0, 0), state.snapshot().votes)
+  }
+
+  @Test
+  fun diffReturnsOnlyWhatChanged() {
+    val state = RoomState()
+    state.load(entry("h1"), listOf(user("u1"), user("u2")), listOf("u1"), false)
+    val since = state.revision
+    state.apply(UserNameChangeMessage("u2", "renamed"))
+    state.apply(chat("c1"))
+    state.apply(VoteMessage("u1", 1))
+
+    val diff = state.diff(since)
+    assertEquals(state.revision, diff.revision)
+    assertFalse(diff.full)
+    assertFalse(diff.boothChanged)
+    assertEquals(listOf("renamed"), diff.users.map { it.username })
+    assertNull(diff.waitlist)
+    assertNull(diff.waitlistLocked)
+    assertEquals(Voters(upvotes = setOf("u1")), diff.voters)
+    assertEquals(listOf("c1"), diff.chat.map { it.id })
+    assertFalse(diff.chatReset)
+
+    assertEquals(RoomDiff(state.revision), state.diff(state.revision))
+  }
+
+  @Test
+  fun diffSkipsVotesThatChangeNothing() {
+    val state = RoomState()
+    state.apply(VoteMessage("u1", 1))
+    state.apply(FavoriteMessage("u1", "h1"))
+    val since = state.revision
+    state.apply(VoteMessage("u1", 1))
+    state.apply(FavoriteMessage("u1", "h1"))
+    assertNull(state.diff(since).voters)
+  }
+
+  @Test
+  fun diffClearsVotesOnAdvance() {
+    val state = RoomState()
+    state.apply(AdvanceMessage(entry("h1")))
+    state.apply(VoteMessage("u1", -1))
+    val since = state.revision
+    state.apply(AdvanceMessage(entry("h2")))
+
+    val diff = state.diff(since)
+    assertTrue(diff.boothChanged)
+    assertEquals("h2", diff.booth?.historyID)
+    assertEquals(Voters(), diff.voters)
+  }
+
+  @Test
+  fun diffReportsDepartedUsers() {
+    val state = RoomState()
+    state.load(null, listOf(user("u1"), user("u2")), emptyList(), false)
+    val since = state.revision
+    state.apply(UserLeaveMessage("u2"))
+    state.apply(UserJoinMessage(user("u3")))
+
+    val diff = state.diff(since)
+    assertEquals(listOf("u2"), diff.removedUsers)
+    assertEquals(listOf("u3"), diff.users.map { it.userID })
+  }
+
+  @Test
+  fun diffResendsChatAfterADelete() {
+    val state = RoomState()
+    state.apply(chat("c1"))
+    state.apply(chat("c2"))
+    val since = state.revision
+    state.apply(ChatDeleteOneMessage("c1"))
+
+    val diff = state.diff(since)
+    assertTrue(diff.chatReset)
+    assertEquals(listOf("c2"), diff.chat.map { it.id })
+  }
+
+  @Test
+  fun diffAsksForASnapshotWhenTooOld() {
+    val state = RoomState()
+    state.apply(chat("c1"))
+    state.load(null, List(RoomState.MAX_REMOVED_USERS + 1) { user("u$it") }, emptyList(), false)
+    assertTrue(state.diff(state.revision - 1).full)
+
+    // Only so many departures are remembered.
+    val since = state.revision
+    for (i in 0..RoomState.MAX_REMOVED_USERS) state.apply(UserLeaveMessage("u$i"))
+    assertTrue(state.diff(since).full)
+    assertFalse(state.diff(state.revision - 1).full)
+  }
+}
@@ -0,0 +1,227 @@
+package net.u_wave.client
+
+import java.net.URL
+import okhttp3.Request
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import okio.ByteString
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class SocketTest {
+  private val entry = BoothEntry(
+    historyID = "5e0000000000000000000001",
+    userID = "5a0000000000000000000009",
+    media = BoothMedia(
+      media = Media(
+        id = "5d0000000000000000000001",
+        sourceType = "youtube",
+        sourceID = "dQw4w9WgXcQ",
+        artist = "Some Artist",
+        title = "Some Title",
+        duration = 213,
+        thumbnail = "https://i.ytimg.com/vi/dQw4w9WgXcQ/hqdefault.jpg"
+      ),
+      artist = "Some Artist",
+      title = "Some Title (Official Video)",
+      start = 0,
+      end = 213
+    ),
+    playedAt = 1580000118845
+  )
+
+  private val waitlist = arrayListOf("5a0000000000000000000001", "5a0000000000000000000002")
+
+  // One message for every command, as the server sends it, and what it should parse to.
+  private val cases: Map<String, Pair<String, ReceiveMessage>> = mapOf(
+    "chatMessage" to Pair(
+      """{"command":"chatMessage","data":{"id":"m1","userID":"u1","message":"hello 👋","timestamp":1580000004092}}""",
+      ChatMessage("m1", "u1", "hello 👋", 1580000004092)),
+    "chatDelete" to Pair(
+      """{"command":"chatDelete","data":{"moderatorID":"u2"}}""",
+      ChatDeleteAllMessage()),
+    "chatDeleteByID" to Pair(
+      """{"command":"chatDeleteByID","data":{"moderatorID":"u2","_id":"m1"}}""",
+      ChatDeleteOneMessage("m1")),
+    "chatDeleteByUser" to Pair(
+      """{"command":"chatDeleteByUser","data":{"moderatorID":"u2","userID":"u1"}}""",
+      ChatDeleteUserMessage("u1")),
+    "join" to Pair(
+      """{"command":"join","data":{"_id":"u1","username":"listener","avatar":null,"roles":["user"]}}""",
+      UserJoinMessage(User("u1", null, "listener", arrayListOf("user")))),
+    "leave" to Pair(
+      """{"command":"leave","data":"u1"}""",
+      UserLeaveMessage("u1")),
+    "nameChange" to Pair(
+      """{"command":"nameChange","data":{"userID":"u1","username":"renamed"}}""",
+      UserNameChangeMessage("u1", "renamed")),
+    "vote" to Pair(
+      """{"command":"vote","data":{"_id":"u1","value":-1}}""",
+      VoteMessage("u1", -1)),
+    "favorite" to Pair(
+      """{"command":"favorite","data":{"userID":"u1","historyID":"h1"}}""",
+      FavoriteMessage("u1", "h1")),
+    "playlistCycle" to Pair(
+      """{"command":"playlistCycle","data":{"userID":"u1","playlistID":"p1"}}""",
+      PlaylistCycleMessage("p1")),
+    "waitlistJoin" to Pair(
+      """{"command":"waitlistJoin","data":{"userID":"u1","waitlist":["5a0000000000000000000001","5a0000000000000000000002"]}}""",
+      WaitlistJoinMessage("u1", waitlist)),
+    "waitlistLeave" to Pair(
+      """{"command":"waitlistLeave","data":{"userID":"u1","waitlist":["5a0000000000000000000001","5a0000000000000000000002"]}}""",
+      WaitlistLeaveMessage("u1", waitlist)),
+    "waitlistAdd" to Pair(
+      """{"command":"waitlistAdd","data":{"userID":"u1","moderatorID":"u2","position":1,"waitlist":["5a0000000000000000000001","5a0000000000000000000002"]}}""",
+      WaitlistAddMessage("u1", waitlist)),
+    "waitlistRemove" to Pair(
+      """{"command":"waitlistRemove","data":{"userID":"u1","moderatorID":"u2","waitlist":["5a0000000000000000000001","5a0000000000000000000002"]}}""",
+      WaitlistRemoveMessage("u1", waitlist)),
+    "waitlistUpdate" to Pair(
+      """{"command":"waitlistUpdate","data":["5a0000000000000000000001","5a0000000000000000000002"]}""",
+      WaitlistUpdateMessage(waitlist)),
+    "waitlistLock" to Pair(
+      """{"command":"waitlistLock","data":{"moderatorID":"u2","locked":true}}""",
+      WaitlistLockMessage(true)),
+    "waitlistClear" to Pair(
+      """{"command":"waitlistClear","data":{"moderatorID":"u2"}}""",
+      WaitlistClearMessage()),
+    "advance" to Pair(
+      """{"command":"advance","data":{"historyID":"5e0000000000000000000001","userID":"5a0000000000000000000009","playlistID":"5c0000000000000000000001","playedAt":1580000118845,"media":{"media":{"_id":"5d0000000000000000000001","sourceType":"youtube","sourceID":"dQw4w9WgXcQ","artist":"Some Artist","title":"Some Title","duration":213,"thumbnail":"https://i.ytimg.com/vi/dQw4w9WgXcQ/hqdefault.jpg"},"artist":"Some Artist","title":"Some Title (Official Video)","start":0,"end":213}}}""",
+      AdvanceMessage(entry))
+  )
+
+  // Classes without data don't implement equals(), so compare those by type.
+  private fun assertParsed(expected: ReceiveMessage, actual: ReceiveMessage?) {
+    when (expected) {
+      is ChatDeleteAllMessage, is WaitlistClearMessage -> assertEquals(expected.javaClass, actual?.javaClass)
+      else -> assertEquals(expected, actual)
+    }
+  }
+
+  @Test
+  fun coversEveryCommand() {
+    assertEquals(commands.keys, cases.keys)
+  }
+
+  @Test
+  fun parsesEveryCommand() {
+    for ((command, case) in cases) {
+      val (text, expected) = case
+      try {
+        assertParsed(expected, parseReceivedMessage(text))
+      } catch (err: Throwable) {
+        throw AssertionError("Could not parse $command", err)
+      }
+    }
+  }
+
+  @Test
+  fun parsesDataBeforeCommand() {
+    for ((command, case) in cases) {
+      val (text, expected) = case
+      // Move `"command":"..."` to the end of the object.
+      val commandField = "\"command\":\"$command\","
+      val reordered = "{" + text.removePrefix("{$commandField").removeSuffix("}") + ",\"command\":\"$command\"}"
+      try {
+        assertParsed(expected, parseReceivedMessage(reordered))
+      } catch (err: Throwable) {
+        throw AssertionError("Could not parse $command with data first", err)
+      }
+    }
+  }
+
+  @Test
+  fun parsesCommandsWithoutData() {
+    assertParsed(ChatDeleteAllMessage(), parseReceivedMessage("""{"command":"chatDelete"}"""))
+    assertParsed(WaitlistClearMessage(), parseReceivedMessage("""{"command":"waitlistClear","data":null}"""))
+    assertEquals(AdvanceMessage(null), parseReceivedMessage("""{"command":"advance","data":null}"""))
+    assertEquals(AdvanceMessage(null), parseReceivedMessage("""{"data":null,"command":"advance"}"""))
+  }
+
+  @Test
+  fun skipsUnknownCommands() {
+    assertNull(parseReceivedMessage("""{"command":"guests","data":12}"""))
+    assertNull(parseReceivedMessage("""{"command":"somethingNew","data":{"nested":[1,2,{"a":"b"}]}}"""))
+  }
+
+  @Test
+  fun skipsMessagesThatAreNotCommands() {
+    assertNull(parseReceivedMessage("-"))
+    assertNull(parseReceivedMessage("0123456789abcdef"))
+  }
+
+  @Test
+  fun peeksCommandName() {
+    assertEquals("vote", peekCommand("""{"command": "vote","data":1}"""))
+    assertEquals("vote", peekCommand(""" { "command" : "vote" }"""))
+    assertNull(peekCommand("""{"data":null}"""))
+    assertNull(peekCommand("-"))
+  }
+
+  @Test
+  fun peeksOnlyALeadingCommandKey() {
+    assertNull(peekCommand("""{"data":null,"command":"advance"}"""))
+    assertNull(peekCommand("""{"data":{"message":"command"},"command":"chatMessage"}"""))
+    assertNull(peekCommand("""{"command":"a\"b"}"""))
+  }
+
+  @Test
+  fun parsesDataFirstMessagesThatMentionCommand() {
+    assertEquals(
+      ChatMessage("m1", "u1", "command", 1580000004092),
+      parseReceivedMessage(
+        """{"data":{"id":"m1","userID":"u1","message":"command","timestamp":1580000004092},"command":"chatMessage"}"""))
+    assertEquals(
+      UserJoinMessage(User("u1", null, "command", arrayListOf("user"))),
+      parseReceivedMessage(
+        """{"data":{"_id":"u1","username":"command","avatar":null,"roles":["user"]},"command":"join"}"""))
+    assertEquals(
+      UserNameChangeMessage("u1", "\"command\""),
+      parseReceivedMessage("""{"data":{"userID":"u1","username":"\"command\""},"command":"nameChange"}"""))
+  }
+
+  @Test
+  fun onParsedSeesMessagesTheBufferDrops() {
+    val parsed = ArrayList<ReceiveMessage>()
+    val socket = Socket(NullWebSocket.factory, URL("http://localhost/"), null, 2, BufferOverflow.DROP_OLDEST) {
+      parsed.add(it)
+    }
+    // Nobody collects, so all but two are dropped from the buffer.
+    socket.messages
+    for (i in 1..10) {
+      socket.onMessage(NullWebSocket, """{"command":"chatMessage","data":{"id":"m$i","userID":"u1","message":"$i","timestamp":0}}""")
+    }
+    socket.onMessage(NullWebSocket, "-")
+
+    assertEquals((1..10).map { "m$it" }, parsed.map { (it as ChatMessage).id })
+    assertEquals(8L, socket.droppedMessages.get())
+  }
+
+  @Test
+  fun onParsedRunsBeforeTheListener() {
+    val events = ArrayList<String>()
+    val listener = object : Socket.Listener {
+      override fun onOpen() {}
+      override fun onText(text: String) { events.add("listener") }
+      override fun onClosed(code: Int, reason: String) {}
+      override fun onFailure(err: Throwable) {}
+    }
+    val socket = Socket(NullWebSocket.factory, URL("http://localhost/"), listener, onParsed = { events.add("parsed") })
+    socket.onMessage(NullWebSocket, """{"command":"leave","data":"u1"}""")
+    assertEquals(listOf("parsed", "listener"), events)
+  }
+
+  private object NullWebSocket : WebSocket {
+    val factory = object : WebSocket.Factory {
+      override fun newWebSocket(request: Request, listener: WebSocketListener): WebSocket = NullWebSocket
+    }
+
+    override fun request(): Request = Request.Builder().url("http://localhost/").build()
+    override fun queueSize(): Long = 0
+    override fun send(text: String): Boolean = true
+    override fun send(bytes: ByteString): Boolean = true
+    override fun close(code: Int, reason: String?): Boolean = true
+    override fun cancel() {}
+  }
+}
@@ -0,0 +1,35 @@
+package net.u_wave.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Loads the recorded and synthesized inputs under resources/fixtures. */
+final class Fixtures {
+  private Fixtures() {}
+
+  static List<String> lines(String name) {
+    final InputStream stream = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+    if (stream == null) {
+      throw new IllegalArgumentException("Missing fixture " + name);
+    }
+
+    final List<String> lines = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          lines.add(line);
+        }
+      }
+    } catch (IOException err) {
+      throw new IllegalStateException("Could not read fixture " + name, err);
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,149 @@
+package net.u_wave.benchmarks;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import kotlinx.serialization.json.Json;
+import kotlinx.serialization.json.JsonElement;
+import net.u_wave.client.ReceiveMessage;
+import net.u_wave.client.Socket;
+import net.u_wave.client.SocketKt;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing a recorded mix of socket traffic: chat, votes, waitlist changes, joins and leaves,
+ * advances, keepalives and commands the client doesn't model. Each invocation handles the whole
+ * session, so scores are per session of {@link #SESSION_SIZE} messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SocketParseBenchmark {
+  private static final int SESSION_SIZE = 400;
+
+  private String[] session;
+  private Socket rawSocket;
+  private Socket parsingSocket;
+
+  @Setup
+  public void setUp() throws Exception {
+    final List<String> lines = Fixtures.lines("socket-session.jsonl");
+    if (lines.size() != SESSION_SIZE) {
+      throw new IllegalStateException("Expected " + SESSION_SIZE + " messages");
+    }
+    session = lines.toArray(new String[0]);
+
+    final URL url = new URL("http://localhost/");
+    rawSocket = new Socket(new NullWebSocket.Factory(), url, new NullListener());
+    parsingSocket = new Socket(new NullWebSocket.Factory(), url, new NullListener(), 1);
+    // Creates the parsed message channel. Nobody consumes it, so with a capacity of 1 every
+    // message goes through the overflow path once the first one is buffered.
+    parsingSocket.getMessages();
+  }
+
+  /** The typed single pass parser used by the socket. */
+  @Benchmark
+  @OperationsPerInvocation(SESSION_SIZE)
+  public void parseReceivedMessage(Blackhole blackhole) {
+    for (String text : session) {
+      if (text.equals("-")) continue;
+      final ReceiveMessage message = SocketKt.parseReceivedMessage(text);
+      blackhole.consume(message);
+    }
+  }
+
+  /** Baseline: only build a generic JSON tree, without binding it to message classes. */
+  @Benchmark
+  @OperationsPerInvocation(SESSION_SIZE)
+  public void parseJsonTree(Blackhole blackhole) {
+    for (String text : session) {
+      if (text.equals("-")) continue;
+      final JsonElement element = Json.Companion.getPlain().parseJson(text);
+      blackhole.consume(element);
+    }
+  }
+
+  /** The reader thread path for raw text consumers such as WebSocketPlugin. */
+  @Benchmark
+  @OperationsPerInvocation(SESSION_SIZE)
+  public void onMessageRaw() {
+    for (String text : session) {
+      rawSocket.onMessage(NullWebSocket.INSTANCE, text);
+    }
+  }
+
+  /** The reader thread path with a parsed message consumer. */
+  @Benchmark
+  @OperationsPerInvocation(SESSION_SIZE)
+  public void onMessageParsed() {
+    for (String text : session) {
+      parsingSocket.onMessage(NullWebSocket.INSTANCE, text);
+    }
+  }
+
+  private static class NullListener implements Socket.Listener {
+    @Override
+    public void onOpen() {}
+
+    @Override
+    public void onText(String text) {}
+
+    @Override
+    public void onClosed(int code, String reason) {}
+
+    @Override
+    public void onFailure(Throwable err) {}
+  }
+
+  /** A WebSocket that is never connected, so the socket can be driven directly. */
+  static class NullWebSocket implements WebSocket {
+    static final NullWebSocket INSTANCE = new NullWebSocket();
+
+    @Override
+    public Request request() {
+      return new Request.Builder().url("http://localhost/").build();
+    }
+
+    @Override
+    public long queueSize() {
+      return 0;
+    }
+
+    @Override
+    public boolean send(String text) {
+      return true;
+    }
+
+    @Override
+    public boolean send(ByteString bytes) {
+      return true;
+    }
+
+    @Override
+    public boolean close(int code, String reason) {
+      return true;
+    }
+
+    @Override
+    public void cancel() {}
+
+    static class Factory implements WebSocket.Factory {
+      @Override
+      public WebSocket newWebSocket(Request request, WebSocketListener listener) {
+        return INSTANCE;
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package net.u_wave.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.u_wave.android.StreamSelection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.schabi.newpipe.extractor.MediaFormat;
+import org.schabi.newpipe.extractor.stream.AudioStream;
+import org.schabi.newpipe.extractor.stream.VideoStream;
+
+/** Picking streams out of the candidates of a typical YouTube video. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StreamSelectionBenchmark {
+  @Param({"360p", "1080p", "4320p"})
+  public String preferredResolution;
+
+  private List<AudioStream> audioStreams;
+  private List<VideoStream> videoStreams;
+  private List<VideoStream> videoOnlyStreams;
+
+  @Setup
+  public void setUp() {
+    audioStreams = new ArrayList<>();
+    videoStreams = new ArrayList<>();
+    videoOnlyStreams = new ArrayList<>();
+
+    for (String line : Fixtures.lines("youtube-streams.tsv")) {
+      final String[] fields = line.split("\t");
+      final MediaFormat format = MediaFormat.valueOf(fields[1]);
+      switch (fields[0]) {
+        case "audio":
+          audioStreams.add(new AudioStream(fields[3], format, Integer.parseInt(fields[2])));
+          break;
+        case "video":
+          videoStreams.add(new VideoStream(fields[3], format, fields[2]));
+          break;
+        case "video-only":
+          videoOnlyStreams.add(new VideoStream(fields[3], format, fields[2], true));
+          break;
+        default:
+          throw new IllegalStateException("Unknown stream kind " + fields[0]);
+      }
+    }
+  }
+
+  @Benchmark
+  public AudioStream preferredAudioStream() {
+    return StreamSelection.getPreferredAudioStream(audioStreams);
+  }
+
+  @Benchmark
+  public VideoStream preferredVideoStream() {
+    return StreamSelection.getPreferredVideoStream(videoStreams, preferredResolution);
+  }
+
+  @Benchmark
+  public VideoStream preferredVideoOnlyStream() {
+    return StreamSelection.getPreferredVideoStream(videoOnlyStreams, preferredResolution);
+  }
+}
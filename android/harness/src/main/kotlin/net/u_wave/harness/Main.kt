@@ -0,0 +1,248 @@
+package net.u_wave.harness
+
+import java.io.File
+import java.util.Collections
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import kotlin.system.exitProcess
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+
+private const val USAGE = """Usage:
+  synthesize <scenario> <file> [--duration <s>] [--users <n>] [--seed <n>]
+      Write a synthesized session to a file.
+  record <socket url> <file> [--duration <s>]
+      Record the public messages of a live server.
+  replay <scenario or file> [--speed <n>] [--target raw|parsed|plugin] [--duration <s>]
+         [--users <n>] [--seed <n>] [--json <file>]
+         [--max-p99 <ms>] [--min-rate <msgs/s>] [--max-heap-growth <MiB>] [--max-dropped <n>]
+      Replay a session from a local server and report throughput, latency and heap growth.
+      A speed of 0 sends as fast as possible. Exits with 1 if a threshold is exceeded, if more
+      messages are missing than were dropped from the parsed buffer, or if the room state ends
+      up different from what the session leads to.
+
+Scenarios: chat-flood, vote-storm, waitlist-churn, keepalive, mixed"""
+
+private class Options(args: List<String>) {
+  val positional = ArrayList<String>()
+  private val named = HashMap<String, String>()
+
+  init {
+    var i = 0
+    while (i < args.size) {
+      val arg = args[i]
+      if (arg.startsWith("--")) {
+        require(i + 1 < args.size) { "Missing value for $arg" }
+        named[arg.substring(2)] = args[i + 1]
+        i += 2
+      } else {
+        positional.add(arg)
+        i++
+      }
+    }
+  }
+
+  fun string(name: String): String? = named[name]
+  fun int(name: String, default: Int) = named[name]?.toInt() ?: default
+  fun long(name: String, default: Long) = named[name]?.toLong() ?: default
+  fun long(name: String): Long? = named[name]?.toLong()
+  fun double(name: String): Double? = named[name]?.toDouble()
+}
+
+fun main(args: Array<String>) {
+  val command = args.firstOrNull()
+  val options = try {
+    Options(args.drop(1))
+  } catch (err: IllegalArgumentException) {
+    System.err.println(err.message)
+    exitProcess(2)
+  }
+
+  val status = when (command) {
+    "synthesize" -> synthesize(options)
+    "record" -> record(options)
+    "replay" -> replay(options)
+    else -> {
+      System.err.println(USAGE)
+      2
+    }
+  }
+  // OkHttp and MockWebServer keep non-daemon threads alive for a while after use.
+  exitProcess(status)
+}
+
+private fun loadSession(name: String, options: Options): Session =
+  if (name in Scenarios.names) {
+    Scenarios.create(
+      name,
+      durationSeconds = options.int("duration", 60),
+      users = options.int("users", 500),
+      seed = options.long("seed", 1L)
+    )
+  } else {
+    Session.load(File(name))
+  }
+
+private fun synthesize(options: Options): Int {
+  val (scenario, file) = options.positional.takeIf { it.size == 2 } ?: return usage()
+  val session = loadSession(scenario, options)
+  session.save(File(file))
+  println("Wrote ${session.size} messages over ${session.durationMillis / 1000}s to $file")
+  return 0
+}
+
+private fun record(options: Options): Int {
+  val (url, file) = options.positional.takeIf { it.size == 2 } ?: return usage()
+  val duration = options.long("duration", 60L)
+  val client = OkHttpClient.Builder().readTimeout(0, TimeUnit.MILLISECONDS).build()
+  val messages = Collections.synchronizedList(ArrayList<SessionMessage>())
+  val start = System.nanoTime()
+
+  val ws = client.newWebSocket(Request.Builder().url(url).build(), object : WebSocketListener() {
+    override fun onMessage(webSocket: WebSocket, text: String) {
+      messages.add(SessionMessage((System.nanoTime() - start) / 1_000_000, text))
+    }
+
+    override fun onFailure(webSocket: WebSocket, t: Throwable, response: okhttp3.Response?) {
+      System.err.println("Connection failed: ${t.message}")
+    }
+  })
+  Thread.sleep(duration * 1000)
+  ws.close(1000, null)
+
+  val session = synchronized(messages) { Session(ArrayList(messages)) }
+  session.save(File(file))
+  println("Recorded ${session.size} messages over ${duration}s to $file")
+  return 0
+}
+
+private fun replay(options: Options): Int {
+  val name = options.positional.singleOrNull() ?: return usage()
+  val speed = options.double("speed") ?: 1.0
+  val target = ReplayTarget.create(options.string("target") ?: "plugin")
+  val session = loadSession(name, options)
+
+  val report = replaySession(File(name).name, session, target, speed)
+  println(report)
+  options.string("json")?.let { report.writeJson(File(it)) }
+
+  val failures = ArrayList<String>()
+  // Messages may only go missing by being dropped from the parsed buffer, which --max-dropped
+  // limits.
+  if (report.expected - report.received > report.dropped) {
+    failures.add("${report.expected - report.received - report.dropped} messages were lost")
+  }
+  options.long("max-dropped")?.let {
+    if (report.dropped > it) failures.add("more than $it messages were dropped")
+  }
+  report.stateDivergence?.let {
+    if (it.isNotEmpty()) failures.add("room state differs in ${it.joinToString(", ")}")
+  }
+  options.double("max-p99")?.let {
+    if (report.latency.p99 / 1e6 > it) failures.add("p99 latency is over ${it}ms")
+  }
+  options.double("min-rate")?.let {
+    if (report.messagesPerSecond < it) failures.add("throughput is under $it msgs/s")
+  }
+  options.double("max-heap-growth")?.let {
+    if (report.heapGrowthBytes > it * 1024 * 1024) failures.add("heap grew by more than ${it}MiB")
+  }
+  for (failure in failures) {
+    System.err.println("FAIL: $failure")
+  }
+  return if (failures.isEmpty()) 0 else 1
+}
+
+private fun replaySession(name: String, session: Session, target: ReplayTarget, speed: Double): Report {
+  val expectedIndices = session.messages.indices.filter { target.expects(session.messages[it].text) }
+  val receipts = Receipts(expectedIndices.size)
+  val client = OkHttpClient.Builder().readTimeout(0, TimeUnit.MILLISECONDS).build()
+
+  val heapBefore = usedHeapAfterGc()
+  val sampler = HeapSampler()
+  val server = ReplayServer(session, speed)
+  val heapAfter: Long
+  val stateDivergence: List<String>?
+  try {
+    val url = server.start()
+    target.connect(client, url, receipts)
+    server.begin()
+
+    val timeout = (if (speed > 0) (session.durationMillis / speed).toLong() else 0L) + 30_000
+    server.awaitFinished(timeout)
+    server.failure()?.let { System.err.println("Replay failed: ${it.message}") }
+    // Dropped messages never arrive, so stop waiting once nothing has come in for a while.
+    receipts.awaitQuiet(timeout, 2000)
+    stateDivergence = target.stateDivergence(expectedRoom(session))
+    // Measured while the target still holds its state, so retained room state counts too.
+    heapAfter = usedHeapAfterGc()
+  } finally {
+    sampler.stop()
+    target.close()
+    server.close()
+    client.dispatcher().executorService().shutdown()
+    client.connectionPool().evictAll()
+  }
+
+  val received = receipts.size
+  val latencies = expectedIndices.indices
+    .filter { receipts.times[it] != 0L }
+    .map { receipts.times[it] - server.sentAt[expectedIndices[it]] }
+    .toLongArray()
+  latencies.sort()
+  val elapsed = if (received > 0) receipts.times.max()!! - server.sentAt[0] else 0L
+
+  return Report(
+    session = name,
+    target = target.name,
+    speed = speed,
+    sent = session.size,
+    expected = expectedIndices.size,
+    received = received,
+    dropped = target.droppedMessages(),
+    elapsedNanos = elapsed,
+    latency = LatencyStats(latencies),
+    heapBeforeBytes = heapBefore,
+    heapAfterBytes = heapAfter,
+    heapPeakBytes = sampler.peak,
+    stateDivergence = stateDivergence
+  )
+}
+
+private fun usage(): Int {
+  System.err.println(USAGE)
+  return 2
+}
+
+private fun usedHeap(): Long {
+  val runtime = Runtime.getRuntime()
+  return runtime.totalMemory() - runtime.freeMemory()
+}
+
+private fun usedHeapAfterGc(): Long {
+  repeat(3) {
+    System.gc()
+    Thread.sleep(50)
+  }
+  return usedHeap()
+}
+
+// Samples heap usage in the background to find the peak during a replay.
+private class HeapSampler {
+  @Volatile var peak = usedHeap()
+    private set
+  @Volatile private var running = true
+  private val thread = thread(isDaemon = true, name = "HeapSampler") {
+    while (running) {
+      peak = maxOf(peak, usedHeap())
+      Thread.sleep(10)
+    }
+  }
+
+  fun stop() {
+    running = false
+    thread.join()
+  }
+}
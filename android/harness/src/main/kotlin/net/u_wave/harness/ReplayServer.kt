@@ -0,0 +1,87 @@
+package net.u_wave.harness
+
+import java.io.Closeable
+import java.net.URL
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+
+// A local socket server that plays back a session to the first client that connects. `speed`
+// scales the recorded timing; 0 sends every message as fast as the connection takes them.
+class ReplayServer(private val session: Session, private val speed: Double) : Closeable {
+  companion object {
+    // OkHttp fails the connection once 16MiB are queued for sending, so a flood has to wait for
+    // the writer to catch up.
+    private const val MAX_QUEUED_BYTES = 1L shl 20
+  }
+
+  private val server = MockWebServer()
+  private val connected = CountDownLatch(1)
+  private val started = CountDownLatch(1)
+  private val finished = CountDownLatch(1)
+  @Volatile private var failure: Throwable? = null
+
+  // System.nanoTime() at which each message was handed to the connection.
+  val sentAt = LongArray(session.size)
+
+  fun start(): URL {
+    server.enqueue(MockResponse().withWebSocketUpgrade(object : WebSocketListener() {
+      override fun onOpen(webSocket: WebSocket, response: Response) {
+        Thread({ replay(webSocket) }, "ReplayServer").start()
+        connected.countDown()
+      }
+
+      override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
+        failure = t
+        finished.countDown()
+      }
+    }))
+    server.start()
+    return server.url("/").url()
+  }
+
+  // Wait for the client to connect, then start sending. Clients call this once they're ready to
+  // receive, so no messages arrive before they are listening.
+  fun begin(timeoutMillis: Long = 10_000) {
+    check(connected.await(timeoutMillis, TimeUnit.MILLISECONDS)) { "Client did not connect" }
+    started.countDown()
+  }
+
+  fun awaitFinished(timeoutMillis: Long): Boolean = finished.await(timeoutMillis, TimeUnit.MILLISECONDS)
+
+  fun failure() = failure
+
+  private fun replay(webSocket: WebSocket) {
+    started.await()
+    val start = System.nanoTime()
+    for ((i, message) in session.messages.withIndex()) {
+      if (speed > 0) {
+        val due = start + (message.offsetMillis * 1_000_000 / speed).toLong()
+        var remaining = due - System.nanoTime()
+        while (remaining > 0) {
+          LockSupport.parkNanos(remaining)
+          remaining = due - System.nanoTime()
+        }
+      }
+      while (webSocket.queueSize() > MAX_QUEUED_BYTES) {
+        LockSupport.parkNanos(100_000)
+      }
+      sentAt[i] = System.nanoTime()
+      if (!webSocket.send(message.text)) {
+        failure = IllegalStateException("Connection closed after $i of ${session.size} messages")
+        break
+      }
+    }
+    webSocket.close(1000, "End of session")
+    finished.countDown()
+  }
+
+  override fun close() {
+    server.shutdown()
+  }
+}
@@ -0,0 +1,208 @@
+package net.u_wave.harness
+
+import java.net.URL
+import java.nio.charset.StandardCharsets
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.runBlocking
+import net.u_wave.client.ReceiveMessage
+import net.u_wave.client.RoomSnapshot
+import net.u_wave.client.RoomState
+import net.u_wave.client.Socket
+import net.u_wave.client.UwaveClient
+import net.u_wave.client.UwaveServer
+import net.u_wave.client.parseReceivedMessage
+import okhttp3.OkHttpClient
+
+// Arrival times of the messages a target expects, by their index among the expected messages. A
+// message that never arrived has a time of 0.
+class Receipts(expected: Int) {
+  val times = LongArray(expected)
+  private val count = AtomicInteger()
+  private val next = AtomicInteger()
+  private val done = CountDownLatch(if (expected == 0) 0 else 1)
+
+  val size get() = count.get()
+
+  // For targets that see every message in order.
+  fun record() = record(next.getAndIncrement())
+
+  fun record(index: Int) {
+    if (index >= times.size) return
+    times[index] = System.nanoTime()
+    if (count.incrementAndGet() == times.size) done.countDown()
+  }
+
+  // Wait until every message has arrived, or until none has for `quietMillis`.
+  fun awaitQuiet(timeoutMillis: Long, quietMillis: Long) {
+    val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+    var last = -1
+    while (System.nanoTime() < deadline) {
+      if (done.await(quietMillis, TimeUnit.MILLISECONDS)) return
+      val current = count.get()
+      if (current == last) return
+      last = current
+    }
+  }
+}
+
+// A consumer of the socket, measured from the moment a message is sent to the moment it is
+// delivered to where the app would use it.
+abstract class ReplayTarget(val name: String) {
+  // Whether a message sent by the server should reach this target.
+  abstract fun expects(text: String): Boolean
+  abstract fun connect(client: OkHttpClient, url: URL, receipts: Receipts)
+  abstract fun droppedMessages(): Long
+  // The parts of the target's room state that differ from `expected`, or null if it keeps none.
+  open fun stateDivergence(expected: RoomSnapshot): List<String>? = null
+  abstract fun close()
+
+  companion object {
+    val names = listOf("raw", "parsed", "plugin")
+
+    fun create(name: String): ReplayTarget = when (name) {
+      "raw" -> RawTarget()
+      "parsed" -> ParsedTarget()
+      "plugin" -> PluginTarget()
+      else -> throw IllegalArgumentException("Unknown target \"$name\", expected one of $names")
+    }
+  }
+}
+
+private open class ListenerAdapter : Socket.Listener {
+  override fun onOpen() {}
+  override fun onText(text: String) {}
+  override fun onClosed(code: Int, reason: String) {}
+  override fun onFailure(err: Throwable) {}
+}
+
+// Raw text through Socket.Listener, on the OkHttp reader thread.
+private class RawTarget : ReplayTarget("raw") {
+  private var socket: Socket? = null
+
+  override fun expects(text: String) = text != "-"
+
+  override fun connect(client: OkHttpClient, url: URL, receipts: Receipts) {
+    socket = Socket(client, url, object : ListenerAdapter() {
+      override fun onText(text: String) = receipts.record()
+    })
+  }
+
+  override fun droppedMessages() = 0L
+
+  override fun close() {
+    socket?.close()
+  }
+}
+
+// Typed messages through Socket.messages, collected on another thread, with the buffer the app
+// uses. Messages are matched up with what was sent on the reader thread, before they can be
+// dropped, so the latency of the ones that make it through is still measured.
+private class ParsedTarget : ReplayTarget("parsed") {
+  private var socket: Socket? = null
+  private val indices = Collections.synchronizedMap(IdentityHashMap<ReceiveMessage, Int>())
+
+  override fun expects(text: String) = try {
+    parseReceivedMessage(text) != null
+  } catch (err: Exception) {
+    false
+  }
+
+  override fun connect(client: OkHttpClient, url: URL, receipts: Receipts) {
+    var parsed = 0
+    val socket = Socket(client, url, onParsed = { indices[it] = parsed++ })
+    this.socket = socket
+    val messages = socket.messages
+    thread(name = "ParsedTarget") {
+      runBlocking {
+        try {
+          messages.collect { message -> indices.remove(message)?.let { receipts.record(it) } }
+        } catch (err: Exception) {
+          // The session ended with a failure; the report shows the missing messages.
+        }
+      }
+    }
+  }
+
+  override fun droppedMessages() = socket?.droppedMessages?.get() ?: 0L
+
+  override fun close() {
+    socket?.close()
+  }
+}
+
+// The path messages take to the UI: PlaybackService's UwaveClient applies them to the room state,
+// and relays the raw text to WebSocketPlugin, which posts it to the main thread and hands it to
+// the event sink. The main looper is stood in for by a single thread, and the sink by encoding the
+// text as the platform channel codec would.
+private class PluginTarget : ReplayTarget("plugin") {
+  private var client: UwaveClient? = null
+  private val mainThread: ExecutorService = Executors.newSingleThreadExecutor { Thread(it, "main") }
+  @Volatile var encodedBytes = 0L
+
+  override fun expects(text: String) = text != "-"
+
+  override fun connect(client: OkHttpClient, url: URL, receipts: Receipts) {
+    val server = UwaveServer(url, url)
+    this.client = UwaveClient(client, server, object : ListenerAdapter() {
+      override fun onText(text: String) {
+        mainThread.execute {
+          encodedBytes += text.toByteArray(StandardCharsets.UTF_8).size
+          receipts.record()
+        }
+      }
+    })
+  }
+
+  override fun droppedMessages() = client?.socket?.droppedMessages?.get() ?: 0L
+
+  override fun stateDivergence(expected: RoomSnapshot): List<String> {
+    val state = client?.state ?: return listOf("everything")
+    // The state is applied on the reader thread after the raw text is relayed, so the last message
+    // may still be on its way.
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1)
+    var differences = compareRoom(state.snapshot(), expected)
+    while (differences.isNotEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(10)
+      differences = compareRoom(state.snapshot(), expected)
+    }
+    return differences
+  }
+
+  override fun close() {
+    client?.close()
+    mainThread.shutdown()
+  }
+}
+
+// The room state the app should end up with after every message of a session.
+fun expectedRoom(session: Session): RoomSnapshot {
+  val state = RoomState()
+  for (message in session.messages) {
+    val parsed = try {
+      parseReceivedMessage(message.text)
+    } catch (err: Exception) {
+      null
+    }
+    parsed?.let { state.apply(it) }
+  }
+  return state.snapshot()
+}
+
+private fun compareRoom(actual: RoomSnapshot, expected: RoomSnapshot): List<String> {
+  val differences = ArrayList<String>()
+  if (actual.booth != expected.booth) differences.add("booth")
+  if (actual.users.sortedBy { it.userID } != expected.users.sortedBy { it.userID }) differences.add("users")
+  if (actual.waitlist != expected.waitlist) differences.add("waitlist")
+  if (actual.waitlistLocked != expected.waitlistLocked) differences.add("waitlistLocked")
+  if (actual.votes != expected.votes) differences.add("votes")
+  if (actual.chat != expected.chat) differences.add("chat")
+  return differences
+}
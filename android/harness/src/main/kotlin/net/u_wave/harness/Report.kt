@@ -0,0 +1,91 @@
+package net.u_wave.harness
+
+import java.io.File
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.json
+
+class LatencyStats(sortedNanos: LongArray) {
+  val count = sortedNanos.size
+  val p50 = percentile(sortedNanos, 0.50)
+  val p90 = percentile(sortedNanos, 0.90)
+  val p99 = percentile(sortedNanos, 0.99)
+  val p999 = percentile(sortedNanos, 0.999)
+  val max = sortedNanos.lastOrNull() ?: 0L
+
+  private fun percentile(sorted: LongArray, p: Double): Long {
+    if (sorted.isEmpty()) return 0L
+    val index = Math.ceil(p * sorted.size).toInt() - 1
+    return sorted[index.coerceIn(0, sorted.size - 1)]
+  }
+}
+
+class Report(
+  val session: String,
+  val target: String,
+  val speed: Double,
+  val sent: Int,
+  val expected: Int,
+  val received: Int,
+  val dropped: Long,
+  val elapsedNanos: Long,
+  val latency: LatencyStats,
+  val heapBeforeBytes: Long,
+  val heapAfterBytes: Long,
+  val heapPeakBytes: Long,
+  // The parts of the room state that ended up wrong, or null for targets that keep no state.
+  val stateDivergence: List<String>?
+) {
+  val messagesPerSecond get() = if (elapsedNanos > 0) received * 1e9 / elapsedNanos else 0.0
+  val heapGrowthBytes get() = heapAfterBytes - heapBeforeBytes
+
+  private fun ms(nanos: Long) = "%.3f".format(nanos / 1e6)
+  private fun mib(bytes: Long) = "%.2f".format(bytes / (1024.0 * 1024.0))
+
+  override fun toString() = """
+    |session   $session at ${if (speed > 0) "${speed}x" else "full"} speed, target $target
+    |messages  $received/$expected received ($sent sent, $dropped dropped)
+    |rate      ${"%.0f".format(messagesPerSecond)} msgs/s over ${ms(elapsedNanos)}ms
+    |latency   p50 ${ms(latency.p50)}ms  p90 ${ms(latency.p90)}ms  p99 ${ms(latency.p99)}ms  p99.9 ${ms(latency.p999)}ms  max ${ms(latency.max)}ms
+    |heap      ${mib(heapBeforeBytes)}MiB before, ${mib(heapAfterBytes)}MiB after (${mib(heapGrowthBytes)}MiB growth), ${mib(heapPeakBytes)}MiB peak
+    |state     ${stateSummary()}
+    """.trimMargin()
+
+  private fun stateSummary() = when {
+    stateDivergence == null -> "not kept by this target"
+    stateDivergence.isEmpty() -> "matches the session"
+    else -> "differs in ${stateDivergence.joinToString(", ")}"
+  }
+
+  fun toJson() = json {
+    "session" to session
+    "target" to target
+    "speed" to speed
+    "sent" to sent
+    "expected" to expected
+    "received" to received
+    "dropped" to dropped
+    "elapsedMs" to elapsedNanos / 1e6
+    "messagesPerSecond" to messagesPerSecond
+    "latencyMs" to json {
+      "p50" to latency.p50 / 1e6
+      "p90" to latency.p90 / 1e6
+      "p99" to latency.p99 / 1e6
+      "p999" to latency.p999 / 1e6
+      "max" to latency.max / 1e6
+    }
+    "heap" to json {
+      "beforeBytes" to heapBeforeBytes
+      "afterBytes" to heapAfterBytes
+      "growthBytes" to heapGrowthBytes
+      "peakBytes" to heapPeakBytes
+    }
+    "stateDivergence" to (stateDivergence?.let { parts -> JsonArray(parts.map { JsonPrimitive(it) }) } ?: JsonNull)
+  }
+
+  fun writeJson(file: File) {
+    file.parentFile?.mkdirs()
+    file.writeText(toJson().toString())
+  }
+}
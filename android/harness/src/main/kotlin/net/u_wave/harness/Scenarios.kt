@@ -0,0 +1,162 @@
+package net.u_wave.harness
+
+import java.util.Random
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.json
+import kotlinx.serialization.json.jsonArray
+
+// Synthesized sessions modelled on busy rooms. Every scenario includes the server's keepalive
+// pings, and the same seed always produces the same session.
+object Scenarios {
+  val names = listOf("chat-flood", "vote-storm", "waitlist-churn", "keepalive", "mixed")
+
+  fun create(name: String, durationSeconds: Int = 60, users: Int = 500, seed: Long = 1L): Session {
+    val room = SyntheticRoom(users, Random(seed))
+    val until = durationSeconds * 1000L
+    when (name) {
+      // 100 chat messages per second, with the occasional moderator deleting some.
+      "chat-flood" -> room.every(10, until) { room.chat(it) }
+      // An advance every 10 seconds, with most of the room voting in the following two seconds.
+      "vote-storm" -> room.every(10_000, until) { room.advance(it); room.voteStorm(it, 2000) }
+      // 20 waitlist changes per second on a long waitlist.
+      "waitlist-churn" -> room.every(50, until) { room.waitlistChange(it) }
+      // An idle room: only keepalives.
+      "keepalive" -> {}
+      // A busy room: a bit of everything, at rates seen during popular events.
+      "mixed" -> {
+        room.every(100, until) { room.chat(it) }
+        room.every(30_000, until) { room.advance(it); room.voteStorm(it, 5000) }
+        room.every(500, until) { room.waitlistChange(it) }
+        room.every(1000, until) { room.joinOrLeave(it) }
+        room.every(2000, until) { room.unknown(it) }
+      }
+      else -> throw IllegalArgumentException("Unknown scenario \"$name\", expected one of $names")
+    }
+    room.every(KEEPALIVE_INTERVAL, until) { room.keepalive(it) }
+    return room.toSession()
+  }
+
+  // The u-wave server pings idle clients with a "-" message.
+  private const val KEEPALIVE_INTERVAL = 10_000L
+}
+
+private class SyntheticRoom(users: Int, private val random: Random) {
+  private val messages = ArrayList<SessionMessage>()
+  private val userIDs = List(users) { "5a%022x".format(it) }
+  private val online = LinkedHashSet(userIDs.subList(0, users / 2))
+  private val waitlist = ArrayList(userIDs.subList(0, minOf(50, users)))
+  private var historyID = 0
+  private var chatID = 0
+
+  private val chatLines = listOf(
+    "hello", "that's a tune", "anyone know the name of this?", "lol", "skip pls",
+    "🔥🔥🔥 this is great", "haha yes", "brb",
+    "this song reminds me of summer 2009, good times with the whole gang at the lake"
+  )
+
+  fun every(intervalMillis: Long, untilMillis: Long, block: (Long) -> Unit) {
+    var time = intervalMillis
+    while (time <= untilMillis) {
+      // Jitter so that scenarios don't line up into artificial bursts.
+      block(time + random.nextInt(intervalMillis.toInt().coerceAtMost(1000)) / 2)
+      time += intervalMillis
+    }
+  }
+
+  private fun randomUser() = userIDs[random.nextInt(userIDs.size)]
+
+  private fun add(time: Long, command: String, data: JsonObject) {
+    messages.add(SessionMessage(time, json { "command" to command; "data" to data }.toString()))
+  }
+
+  fun keepalive(time: Long) {
+    messages.add(SessionMessage(time, "-"))
+  }
+
+  fun chat(time: Long) {
+    if (random.nextInt(200) == 0) {
+      add(time, "chatDeleteByUser", json { "userID" to randomUser(); "moderatorID" to userIDs[0] })
+      return
+    }
+    val userID = randomUser()
+    add(time, "chatMessage", json {
+      "id" to "$userID-${chatID++}"
+      "userID" to userID
+      "message" to chatLines[random.nextInt(chatLines.size)]
+      "timestamp" to 1580000000000L + time
+    })
+  }
+
+  fun advance(time: Long) {
+    historyID++
+    val media = json {
+      "_id" to "5d%022x".format(historyID)
+      "sourceType" to "youtube"
+      "sourceID" to "dQw4w9WgX%02d".format(historyID % 100)
+      "artist" to "Some Artist"
+      "title" to "Some Title (Official Video)"
+      "duration" to 213
+      "thumbnail" to "https://i.ytimg.com/vi/dQw4w9WgXcQ/hqdefault.jpg"
+    }
+    add(time, "advance", json {
+      "historyID" to "5e%022x".format(historyID)
+      "userID" to waitlist.firstOrNull()
+      "playlistID" to "5c%022x".format(historyID)
+      "playedAt" to 1580000000000L + time
+      "media" to json {
+        "media" to media
+        "artist" to "Some Artist"
+        "title" to "Some Title (Official Video)"
+        "start" to 0
+        "end" to 213
+      }
+    })
+  }
+
+  fun voteStorm(start: Long, windowMillis: Long) {
+    for (userID in online) {
+      val time = start + random.nextInt(windowMillis.toInt())
+      if (random.nextInt(10) < 8) {
+        add(time, "vote", json { "_id" to userID; "value" to if (random.nextInt(5) == 0) -1 else 1 })
+      }
+      if (random.nextInt(20) == 0) {
+        add(time, "favorite", json { "userID" to userID; "historyID" to "5e%022x".format(historyID) })
+      }
+    }
+  }
+
+  fun waitlistChange(time: Long) {
+    val userID = randomUser()
+    val command = if (waitlist.remove(userID)) {
+      "waitlistLeave"
+    } else {
+      waitlist.add(userID)
+      "waitlistJoin"
+    }
+    add(time, command, json { "userID" to userID; "waitlist" to jsonArray { waitlist.forEach { +it } } })
+  }
+
+  fun joinOrLeave(time: Long) {
+    val userID = randomUser()
+    if (online.remove(userID)) {
+      messages.add(SessionMessage(time, json { "command" to "leave"; "data" to userID }.toString()))
+    } else {
+      online.add(userID)
+      add(time, "join", json {
+        "_id" to userID
+        "username" to "listener${userID.takeLast(4)}"
+        "avatar" to "https://sigil.u-wave.net/$userID"
+        "roles" to jsonArray { +"user" }
+      })
+    }
+  }
+
+  // Commands the client does not model, which should be skipped cheaply.
+  fun unknown(time: Long) {
+    messages.add(SessionMessage(time, json { "command" to "guests"; "data" to random.nextInt(50) }.toString()))
+  }
+
+  // Messages were generated per stream; interleave them by time. The sort is stable, so messages
+  // at the same time keep their generated order.
+  fun toSession() = Session(messages.sortedBy { it.offsetMillis })
+}
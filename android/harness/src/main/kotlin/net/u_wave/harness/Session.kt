@@ -0,0 +1,38 @@
+package net.u_wave.harness
+
+import java.io.File
+
+// A socket message and when it was received, relative to the start of the session.
+class SessionMessage(val offsetMillis: Long, val text: String)
+
+// A sequence of socket messages that can be replayed. On disk, each line is an offset in
+// milliseconds and the raw message text, separated by a tab. JSON text never contains raw tabs or
+// newlines, so no escaping is needed.
+class Session(val messages: List<SessionMessage>) {
+  val size get() = messages.size
+  val durationMillis get() = messages.lastOrNull()?.offsetMillis ?: 0L
+
+  fun save(file: File) {
+    file.bufferedWriter().use { out ->
+      for (message in messages) {
+        out.write(message.offsetMillis.toString())
+        out.write("\t")
+        out.write(message.text)
+        out.newLine()
+      }
+    }
+  }
+
+  companion object {
+    fun load(file: File): Session {
+      val messages = ArrayList<SessionMessage>()
+      file.forEachLine { line ->
+        if (line.isEmpty()) return@forEachLine
+        val tab = line.indexOf('\t')
+        require(tab != -1) { "Expected <offset>\\t<message>, got: $line" }
+        messages.add(SessionMessage(line.substring(0, tab).toLong(), line.substring(tab + 1)))
+      }
+      return Session(messages)
+    }
+  }
+}
@@ -1,4 +1,5 @@
 import 'dart:async';
+import 'dart:math' show max;
 import 'package:flutter/material.dart';
 import './u_wave/announce.dart' show UwaveServer;
 import './u_wave/u_wave.dart';
@@ -7,7 +8,7 @@ import './playback_settings.dart' show PlaybackSettingsRoute;
 import './signin_views.dart' show SignInRoute;
 import './chat_views.dart' show ChatMessages, ChatInput;
 import './listen_store.dart' show ListenStore;
-import './player.dart' show ProgressTimer;
+import './player.dart' show PlaybackProgress, PlayerState, ThumbnailImage;
 import './base_url.dart' show BaseUrl;
 
 class UwaveListen extends StatefulWidget {
@@ -272,7 +273,7 @@ class _UwaveListenState extends State<UwaveListen> {
 class PlayerView extends StatelessWidget {
   final int textureId;
   final HistoryEntry entry;
-  final ProgressTimer currentProgress;
+  final PlaybackProgress currentProgress;
   final double aspectRatio;
 
   const PlayerView({this.textureId, this.entry, this.currentProgress, this.aspectRatio = 16 / 9})
@@ -286,6 +287,10 @@ class PlayerView extends StatelessWidget {
     final thumbnailUrl = BaseUrl.of(context)
         .resolve(Uri.parse(entry.media.thumbnailUrl))
         .toString();
+    final mediaQuery = MediaQuery.of(context);
+    // The thumbnail is letterboxed in a 16:9 box as wide as the screen. The screen can be 0 wide
+    // before the first layout.
+    final thumbnailSize = max(1, (mediaQuery.size.width * 9 / 16 * mediaQuery.devicePixelRatio).round());
 
     return Container(
       color: const Color(0xFF000000),
@@ -295,7 +300,7 @@ class PlayerView extends StatelessWidget {
             aspectRatio: 16 / 9,
             child: Center(
               child: textureId == null
-                ? Image.network(thumbnailUrl)
+                ? Image(image: ThumbnailImage(thumbnailUrl, size: thumbnailSize))
                 : AspectRatio(
                     aspectRatio: aspectRatio,
                     child: Texture(textureId: textureId,
@@ -313,7 +318,7 @@ class PlayerView extends StatelessWidget {
 }
 
 class MediaProgressBar extends StatelessWidget {
-  final ProgressTimer currentProgress;
+  final PlaybackProgress currentProgress;
   final Duration duration;
 
   const MediaProgressBar({this.currentProgress, this.duration})
@@ -322,7 +327,7 @@ class MediaProgressBar extends StatelessWidget {
 
   @override
   Widget build(_) {
-    return StreamBuilder<Duration>(
+    return StreamBuilder<PlayerState>(
       stream: currentProgress.stream,
       builder: (_, snapshot) {
         Duration progress = const Duration(seconds: 0);
@@ -332,14 +337,18 @@ class MediaProgressBar extends StatelessWidget {
             progress = currentProgress.current;
             break;
           case ConnectionState.active:
-            progress = snapshot.data;
+            if (snapshot.hasData && snapshot.data.isBuffering) {
+              // Indeterminate until the player can continue.
+              return const LinearProgressIndicator();
+            }
+            progress = currentProgress.current;
             break;
           case ConnectionState.done:
             progress = duration;
             break;
         }
         return LinearProgressIndicator(
-          value: progress.inSeconds / duration.inSeconds,
+          value: (progress.inSeconds / duration.inSeconds).clamp(0.0, 1.0) as double,
         );
       },
     );
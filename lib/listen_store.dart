@@ -6,7 +6,7 @@ import './u_wave/announce.dart' show UwaveServer;
 import './u_wave/u_wave.dart';
 import './settings.dart' show Settings, SettingUpdate, PlaybackType;
 import './notification.dart' show NowPlayingNotification;
-import './player.dart' show Player, PlaybackSettings;
+import './player.dart' show Player, PlaybackSettings, PlayerState;
 
 bool _isChatVisibleEvent(dynamic message) {
   return message is UserJoinMessage ||
@@ -18,25 +18,16 @@ void _log(String input) {
 }
 
 class VoteStats {
-  final List<User> upvoters = [];
-  final List<User> downvoters = [];
-  final List<User> favoriters = [];
-
-  void addUpvote(User user) {
-    // remove() is safe to call when it's not in the list, too.
-    downvoters.remove(user);
-    upvoters.add(user);
-  }
+  final List<User> upvoters;
+  final List<User> downvoters;
+  final List<User> favoriters;
 
-  void addDownvote(User user) {
-    // remove() is safe to call when it's not in the list, too.
-    upvoters.remove(user);
-    downvoters.add(user);
-  }
+  VoteStats() : upvoters = [], downvoters = [], favoriters = [];
 
-  void addFavorite(User user) {
-    favoriters.add(user);
-  }
+  VoteStats.fromRoom(RoomVotes votes)
+      : upvoters = votes.upvoters,
+        downvoters = votes.downvoters,
+        favoriters = votes.favoriters;
 
   bool didUpvote(User user) {
     return upvoters.any((voter) => voter.id == user.id);
@@ -68,8 +59,10 @@ class ListenStore {
   StreamSubscription<ConnectivityResult> _connectivitySubscription;
   StreamSubscription<ChatMessage> _chatSubscription;
   StreamSubscription<dynamic> _eventsSubscription;
+  StreamSubscription<RoomVotes> _votesSubscription;
   StreamSubscription<SettingUpdate> _settingsSubscription;
   StreamSubscription<String> _notificationSubscription;
+  StreamSubscription<PlayerState> _playerStateSubscription;
 
   final StreamController<void> _update = StreamController.broadcast();
   Stream<void> get onUpdate => _update.stream;
@@ -124,17 +117,9 @@ class ListenStore {
     });
 
     final notification = NowPlayingNotification.getInstance();
+    // Votes and muting are handled natively before we hear about them.
     _notificationSubscription = notification.onIntent.listen((action) {
       switch (action) {
-        case 'net.u_wave.android.UPVOTE':
-          _client?.upvote();
-          break;
-        case 'net.u_wave.android.DOWNVOTE':
-          _client?.downvote();
-          break;
-        case 'net.u_wave.android.MUTE_UNMUTE':
-          // TODO override playbackType by PlaybackType.none
-          break;
         case 'net.u_wave.android.DISCONNECT':
           disconnect();
           break;
@@ -144,8 +129,11 @@ class ListenStore {
     _settingsSubscription = _settings.onUpdate.listen((update) {
       if (update.name == 'playbackType' || update.name == 'playbackTypeData') {
         _onUpdatePlaybackType();
+      } else if (update.name == 'mobileDataBudget') {
+        _updateDataBudget();
       }
     });
+    _updateDataBudget();
 
     _advanceSubscription = _client.advanceMessages.listen((entry) {
       if (entry != null) {
@@ -166,24 +154,21 @@ class ListenStore {
         chatHistory.add(message);
         _emitUpdate();
       } else if (message is VoteMessage) {
-        if (message.isUpvote) {
-          _voteStats.addUpvote(message.user);
-        } else if (message.isDownvote) {
-          _voteStats.addDownvote(message.user);
-        }
-
         if (_client.currentUser != null && message.user.id == _client.currentUser.id) {
           NowPlayingNotification.getInstance()
               ..setVote(message.direction);
         }
-
-        _emitUpdate();
-      } else if (message is FavoriteMessage) {
-        _voteStats.addFavorite(message.user);
-        _emitUpdate();
       }
     });
 
+    // The native room state counts the votes, including the ones from before we connected that
+    // it restored from the last session. It starts over when the track changes.
+    _voteStats = VoteStats();
+    _votesSubscription = _client.votes.listen((votes) {
+      _voteStats = VoteStats.fromRoom(votes);
+      _emitUpdate();
+    });
+
     final credentials = await loadCredentials();
     await _client.init(credentials: credentials);
 
@@ -199,6 +184,7 @@ class ListenStore {
     _connectivitySubscription.cancel();
     _advanceSubscription.cancel();
     _eventsSubscription.cancel();
+    _votesSubscription.cancel();
     _chatSubscription.cancel();
     _settingsSubscription.cancel();
     _notificationSubscription.cancel();
@@ -207,6 +193,7 @@ class ListenStore {
     _connectivitySubscription = null;
     _advanceSubscription = null;
     _eventsSubscription = null;
+    _votesSubscription = null;
     _chatSubscription = null;
     _settingsSubscription = null;
     _notificationSubscription = null;
@@ -223,6 +210,11 @@ class ListenStore {
     _update.close();
   }
 
+  /// The native side enforces the budget, and remembers it between sessions.
+  void _updateDataBudget() {
+    Player.getInstance().setDataBudget(_settings.mobileDataBudget * 1024 * 1024);
+  }
+
   void _onUpdatePlaybackType() {
     final playbackType = _connectivityStatus == ConnectivityResult.wifi
         ? _settings.playbackType
@@ -231,8 +223,10 @@ class ListenStore {
     _log('Connectivity changed, switching to $playbackType');
 
     if (_playing != null) {
-      Player.getInstance()
-          ..setPlaybackType(playbackType);
+      // The player refuses video while the app is not visible.
+      Player.getInstance().setPlaybackType(playbackType).catchError((err) {
+        _log('Could not switch to $playbackType: $err');
+      });
     }
 
     _playbackType = playbackType;
@@ -254,14 +248,28 @@ class ListenStore {
         _log('Audio-only: no player texture');
       }
 
-      _voteStats = VoteStats();
       _playing = entry;
       _playbackSettings = playbackSettings;
+      _playerStateSubscription?.cancel();
+      _playerStateSubscription = playbackSettings.onProgress.stream.listen((state) {
+        if (state.state != 'none' && !state.hasVideo && _playbackSettings.hasTexture) {
+          // The video was dropped natively, eg. when memory ran low in the background.
+          _log('Video was dropped, continuing audio-only');
+          _playbackSettings = PlaybackSettings(onProgress: _playbackSettings.onProgress);
+          _emitUpdate();
+        }
+      }, onError: (dynamic error) {
+        debugPrint('playback error: ${error.toString()}');
+        _playbackErrorMessage = error.toString();
+        _emitUpdate();
+      });
       _emitUpdate();
 
       notification.show(
         artist: entry.artist,
         title: entry.title,
+        thumbnail: entry.media.thumbnailUrl == null ? null
+            : Uri.parse(_server.url).resolve(entry.media.thumbnailUrl).toString(),
         duration: entry.end - entry.start,
         progress: playbackSettings.onProgress,
         showVoteButtons: shouldShowVoteButtons,
@@ -284,6 +292,8 @@ class ListenStore {
   /// Stop playing.
   void stop() {
     _log('Stopping playback');
+    _playerStateSubscription?.cancel();
+    _playerStateSubscription = null;
     Player.getInstance()
       ..stop();
     NowPlayingNotification.getInstance()
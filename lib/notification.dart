@@ -1,6 +1,6 @@
 import 'dart:async';
 import 'package:flutter/services.dart' show MethodChannel, MissingPluginException;
-import './player.dart' show ProgressTimer;
+import './player.dart' show PlaybackProgress;
 
 const _channel = MethodChannel('u-wave.net/notification');
 
@@ -17,7 +17,6 @@ class NowPlayingNotification {
     });
   }
 
-  StreamSubscription<Duration> _progressSubscription;
   final StreamController<String> _intents = StreamController.broadcast();
   Stream<String> get onIntent => _intents.stream;
 
@@ -27,33 +26,22 @@ class NowPlayingNotification {
     return _instance;
   }
 
-  void _setProgress(int progress, int duration) {
-    _channel.invokeMethod<void>('setProgress', [progress, duration]);
-  }
-
   void show({
     String artist,
     String title,
+    String thumbnail,
     int duration,
-    ProgressTimer progress,
+    PlaybackProgress progress,
     bool showVoteButtons = false,
   }) {
-    if (_progressSubscription != null) {
-      _progressSubscription.cancel();
-      _progressSubscription = null;
-    }
-
     _channel.invokeMethod<void>('nowPlaying', <String, String>{
       'artist': artist,
       'title': title,
+      'thumbnail': thumbnail,
       'duration': '$duration',
       'seek': '${progress.current.inSeconds}',
       'showVoteButtons': showVoteButtons ? 'true' : 'false',
     });
-
-    _progressSubscription = progress.stream.listen((past) {
-      _setProgress(past.inSeconds, duration);
-    });
   }
 
   void setVote(int direction) {
@@ -2,6 +2,14 @@ import 'dart:async' show Future;
 import 'package:flutter/material.dart';
 import './settings.dart' show Settings, UwaveSettings, PlaybackType;
 
+const _dataBudgets = [0, 500, 1024, 2048, 5120];
+
+Text _getDataBudgetValue(int megabytes) {
+  if (megabytes == 0) return const Text('No limit');
+  if (megabytes >= 1024) return Text('${megabytes ~/ 1024} GB per month');
+  return Text('$megabytes MB per month');
+}
+
 Text _getPlaybackValue(PlaybackType type) {
   switch (type) {
     case PlaybackType.both: return const Text('Audio and Video');
@@ -45,6 +53,28 @@ class _PlaybackSettingsRouteState extends State<PlaybackSettingsRoute> {
     });
   }
 
+  void _dataBudgetDialog() {
+    final settings = UwaveSettings.of(context);
+    showDialog<int>(
+      context: context,
+      builder: (context) => SimpleDialog(
+        title: const Text('Mobile data budget'),
+        children: _dataBudgets.map((megabytes) => RadioListTile<int>(
+          title: _getDataBudgetValue(megabytes),
+          value: megabytes,
+          groupValue: settings.mobileDataBudget,
+          onChanged: (value) {
+            Navigator.pop(context, value);
+          },
+        )).toList(),
+      ),
+    ).then((megabytes) {
+      if (megabytes != null) {
+        settings.mobileDataBudget = megabytes;
+      }
+    });
+  }
+
   Widget _buildFormFields(Settings settings) {
     return Column(
       children: ListTile.divideTiles(
@@ -77,6 +107,11 @@ class _PlaybackSettingsRouteState extends State<PlaybackSettingsRoute> {
             subtitle: Text(settings.maxVideoResolutionData),
             onTap: () {},
           ),
+          ListTile(
+            title: const Text('Mobile data budget'),
+            subtitle: _getDataBudgetValue(settings.mobileDataBudget),
+            onTap: _dataBudgetDialog,
+          ),
         ],
       ).toList(),
     );
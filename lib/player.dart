@@ -1,5 +1,8 @@
 import 'dart:async';
-import 'package:flutter/foundation.dart' show debugPrint;
+import 'dart:typed_data' show Uint8List;
+import 'dart:ui' show Codec, hashValues;
+import 'package:flutter/foundation.dart' show debugPrint, SynchronousFuture;
+import 'package:flutter/painting.dart';
 import 'package:flutter/services.dart';
 import './u_wave/u_wave.dart' show HistoryEntry, Media;
 import './settings.dart' show PlaybackType;
@@ -12,6 +15,8 @@ final _channel = const MethodChannel('u-wave.net/player')
     }
   });
 
+const _events = EventChannel('u-wave.net/player-events');
+
 bool _isAudioOnlySourceType(String sourceType) {
   return sourceType == 'soundcloud';
 }
@@ -19,41 +24,72 @@ bool _isAudioOnlySourceType(String sourceType) {
 class PlaybackSettings {
   final int texture;
   final double aspectRatio;
-  final ProgressTimer onProgress;
+  final PlaybackProgress onProgress;
 
   bool get hasTexture => texture != null;
 
   PlaybackSettings({this.texture, this.aspectRatio, this.onProgress});
 }
 
-class ProgressTimer {
-  Timer _timer;
-  StreamController<Duration> _controller;
-  Stream<Duration> get stream => _controller.stream;
-  Duration get current => DateTime.now().difference(startTime);
-
-  DateTime startTime;
-  ProgressTimer({this.startTime}) : assert(startTime != null) {
-    _controller = StreamController.broadcast(
-      onListen: _startTimer,
-      onCancel: _stopTimer,
-    );
-  }
-
-  void _startTimer() {
-    _timer = Timer.periodic(const Duration(seconds: 1), _update);
-    _update(_timer);
-  }
-
-  void _stopTimer() {
-    _timer.cancel();
-  }
+/// The native player's state, as last reported.
+class PlayerState {
+  /// One of 'none', 'idle', 'buffering', 'ready' or 'ended'.
+  final String state;
+  final bool isPlaying;
+  /// False when there is no video, or when it was dropped to save memory.
+  final bool hasVideo;
+  /// Position in the current entry, rather than in the media.
+  final Duration position;
+  final Duration bufferedPosition;
+  final DateTime receivedAt;
+
+  bool get isBuffering => state == 'buffering';
+
+  PlayerState.fromMap(Map<dynamic, dynamic> map, {Duration mediaStart = Duration.zero})
+      : state = map['state'] as String,
+        isPlaying = map['playing'] as bool ?? false,
+        hasVideo = map['video'] as bool ?? false,
+        position = Duration(milliseconds: map['position'] as int ?? 0) - mediaStart,
+        bufferedPosition = Duration(milliseconds: map['bufferedPosition'] as int ?? 0) - mediaStart,
+        receivedAt = DateTime.now();
+
+  /// The position now. Updates are sparse while playing, so this extrapolates from the last one.
+  Duration get currentPosition =>
+      isPlaying ? position + DateTime.now().difference(receivedAt) : position;
+}
 
-  void _update(Timer _) {
-    _controller.add(current);
+/// Progress through the current entry, as reported by the native player.
+///
+/// The player pushes updates when its state changes, and about once a second while playing, so
+/// nothing wakes up while it is paused or buffering.
+class PlaybackProgress {
+  final DateTime startTime;
+  final Duration mediaStart;
+  final StreamController<PlayerState> _controller = StreamController.broadcast();
+  StreamSubscription<dynamic> _subscription;
+  PlayerState _state;
+
+  /// The player's state, or errors that happened during playback.
+  Stream<PlayerState> get stream => _controller.stream;
+  PlayerState get state => _state;
+
+  /// The position in the current entry.
+  ///
+  /// Until the player reports in, this is estimated from when the entry started.
+  Duration get current => _state != null
+      ? _state.currentPosition
+      : DateTime.now().difference(startTime);
+
+  PlaybackProgress({this.startTime, this.mediaStart = Duration.zero})
+      : assert(startTime != null) {
+    _subscription = _events.receiveBroadcastStream().listen((event) {
+      _state = PlayerState.fromMap(event as Map<dynamic, dynamic>, mediaStart: mediaStart);
+      _controller.add(_state);
+    }, onError: _controller.addError);
   }
 
   void cancel() {
+    _subscription.cancel();
     _controller.close();
   }
 }
@@ -84,12 +120,12 @@ class Player {
     return _instance;
   }
 
-  ProgressTimer _progressTimer;
+  PlaybackProgress _progress;
 
   Future<PlaybackSettings> play(HistoryEntry entry, PlaybackType playbackType) async {
-    if (_progressTimer != null) {
-      _progressTimer.cancel();
-      _progressTimer = null;
+    if (_progress != null) {
+      _progress.cancel();
+      _progress = null;
     }
 
     final seek = DateTime.now().difference(entry.timestamp);
@@ -115,11 +151,14 @@ class Player {
     final texture = result['texture'] as int;
     final aspectRatio = result['aspectRatio'] as double;
 
-    _progressTimer = ProgressTimer(startTime: entry.timestamp);
+    _progress = PlaybackProgress(
+      startTime: entry.timestamp,
+      mediaStart: Duration(seconds: entry.start),
+    );
     return PlaybackSettings(
       texture: texture,
       aspectRatio: aspectRatio,
-      onProgress: _progressTimer,
+      onProgress: _progress,
     );
   }
 
@@ -127,11 +166,76 @@ class Player {
     await _channel.invokeMethod<void>('setPlaybackType', playbackType.index);
   }
 
+  /// Fetch a thumbnail, decoded natively so its smallest side is at least [size] pixels.
+  ///
+  /// Thumbnails are cached on disk and in memory, and shared with the notification.
+  Future<Uint8List> thumbnail(String url, {int size}) {
+    return _channel.invokeMethod<Uint8List>('thumbnail', <String, dynamic>{
+      'url': url,
+      'size': size,
+    });
+  }
+
+  /// Get recent native socket and playback events, oldest first, for diagnosing problems.
+  Future<List<String>> traces() {
+    return _channel.invokeListMethod<String>('traces');
+  }
+
+  /// Get the bytes moved by native networking this month.
+  ///
+  /// `bytes` maps categories (`media`, `extraction`, `api`, `socket`) to `metered` and
+  /// `unmetered` counts. `saver` says how playback is held back to stay within the budget:
+  /// `off`, `reduced` or `audioOnly`.
+  Future<Map<String, dynamic>> dataUsage() {
+    return _channel.invokeMapMethod<String, dynamic>('dataUsage');
+  }
+
+  /// Set how many bytes of metered data may be used per month, or 0 for no limit.
+  Future<void> setDataBudget(int bytes) async {
+    await _channel.invokeMethod<void>('setDataBudget', bytes);
+  }
+
   void stop() {
-    if (_progressTimer != null) {
-      _progressTimer.cancel();
-      _progressTimer = null;
+    if (_progress != null) {
+      _progress.cancel();
+      _progress = null;
     }
     _channel.invokeMethod<void>('play', null);
   }
 }
+
+/// Shows a thumbnail through the native thumbnail cache, downsampled to [size] pixels.
+class ThumbnailImage extends ImageProvider<ThumbnailImage> {
+  final String url;
+  final int size;
+
+  const ThumbnailImage(this.url, {this.size})
+      : assert(url != null),
+        assert(size != null && size > 0);
+
+  @override
+  Future<ThumbnailImage> obtainKey(ImageConfiguration configuration) {
+    return SynchronousFuture<ThumbnailImage>(this);
+  }
+
+  @override
+  ImageStreamCompleter load(ThumbnailImage key, DecoderCallback decode) {
+    return MultiFrameImageStreamCompleter(
+      codec: _loadAsync(key, decode),
+      scale: 1.0,
+    );
+  }
+
+  Future<Codec> _loadAsync(ThumbnailImage key, DecoderCallback decode) async {
+    final bytes = await Player.getInstance().thumbnail(key.url, size: key.size);
+    return decode(bytes);
+  }
+
+  @override
+  bool operator ==(dynamic other) {
+    return other is ThumbnailImage && other.url == url && other.size == size;
+  }
+
+  @override
+  int get hashCode => hashValues(url, size);
+}
@@ -135,6 +135,18 @@ class ServerCard extends StatelessWidget {
       : assert(server != null),
         assert(onJoin != null);
 
+  /// Describes the last probe of the server, if it has been probed.
+  String _status() {
+    final probe = server.probe;
+    if (probe == null) {
+      return null;
+    }
+    if (!probe.online) {
+      return 'Not responding';
+    }
+    return '${server.subtitle} · ${probe.users} online';
+  }
+
   @override
   Widget build(BuildContext context) {
     final thumbnail = <Widget>[];
@@ -168,7 +180,7 @@ class ServerCard extends StatelessWidget {
         children: <Widget>[
           ListTile(
             title: Text(server.name),
-            subtitle: Text(server.subtitle),
+            subtitle: Text(_status() ?? server.subtitle),
             trailing: IconButton(
               icon: const Icon(Icons.more_vert),
               onPressed: onShowServer
@@ -25,6 +25,7 @@ class Settings {
   static const _DEFAULT_MAX_AUDIO_DATA = 'best';
   static const _DEFAULT_PLAYBACK_TYPE = PlaybackType.both;
   static const _DEFAULT_PLAYBACK_TYPE_DATA = PlaybackType.audioOnly;
+  static const _DEFAULT_MOBILE_DATA_BUDGET = 0;
 
   final SharedPreferences _prefs;
   final StreamController<SettingUpdate> _updateController = StreamController.broadcast();
@@ -83,6 +84,14 @@ class Settings {
     _prefs.setInt('playbackTypeData', value.index);
     if (old != value) _emitUpdate('playbackTypeData', value);
   }
+
+  /// Megabytes of mobile data that may be used per month, or 0 for no limit.
+  int get mobileDataBudget => _prefs.getInt('mobileDataBudget') ?? _DEFAULT_MOBILE_DATA_BUDGET;
+  set mobileDataBudget(int megabytes) {
+    final old = mobileDataBudget;
+    _prefs.setInt('mobileDataBudget', megabytes);
+    if (old != megabytes) _emitUpdate('mobileDataBudget', megabytes);
+  }
 }
 
 class UwaveSettings extends StatefulWidget {
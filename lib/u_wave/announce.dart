@@ -1,14 +1,17 @@
 import 'dart:async';
 import 'dart:convert';
 import 'package:flutter/foundation.dart' show debugPrint;
-import 'package:http/http.dart' as http;
+import 'package:flutter/services.dart' show EventChannel;
 import 'package:w3c_event_source/event_source.dart' show EventSource, MessageEvent;
 
+const _directory = EventChannel('u-wave.net/directory');
+
 typedef OnUpdateCallback = void Function(Map<String, UwaveServer> servers);
 class UwaveAnnounceClient {
   final String _url;
   final Map<String, UwaveServer> _servers = {};
   StreamSubscription<MessageEvent> _events;
+  StreamSubscription<dynamic> _directoryEvents;
 
   final StreamController<Map<String, UwaveServer>> _onUpdate = StreamController.broadcast();
   Stream<Map<String, UwaveServer>> get onUpdate => _onUpdate.stream;
@@ -34,29 +37,52 @@ class UwaveAnnounceClient {
 
   void _onEvent(String data) {
     final server = UwaveServer.fromJson(json.decode(data) as Map<String, dynamic>);
-    _servers[server.publicKey] = server;
+    _servers[server.publicKey] = server.withProbe(_servers[server.publicKey]?.probe);
     _updated();
   }
 
-  Future<List<UwaveServer>> fetchServers() async {
-    final response = await http.get(_url);
-    final parsed = json.decode(response.body) as Map<String, dynamic>;
-    final List<UwaveServer> list = (parsed['servers'] as List<dynamic>)
-        .cast<Map<String, dynamic>>()
-        .map<UwaveServer>((Map<String, dynamic> json) => UwaveServer.fromJson(json))
-        .toList();
+  /// Refresh the server list natively. The cached list comes first, then the fresh one, and then
+  /// the probe results for each server as they come in.
+  void fetchServers() {
+    _directoryEvents?.cancel();
+    _directoryEvents = _directory
+        .receiveBroadcastStream(<String, dynamic>{'url': _url})
+        .listen(_onDirectoryEvent, onError: (dynamic error) {
+          debugPrint('Could not fetch servers: $error');
+        });
+  }
 
-    for (final server in list) {
-      _servers[server.publicKey] = server;
+  void _onDirectoryEvent(dynamic message) {
+    final event = json.decode(message as String) as Map<String, dynamic>;
+    switch (event['type'] as String) {
+      case 'servers':
+        final previous = Map<String, UwaveServer>.from(_servers);
+        _servers.clear();
+        for (final data in (event['servers'] as List<dynamic>).cast<Map<String, dynamic>>()) {
+          final server = UwaveServer.fromJson(data);
+          // Keep the probe result until the new one is in.
+          _servers[server.publicKey] = server.withProbe(previous[server.publicKey]?.probe);
+        }
+        break;
+      case 'probe':
+        final server = _servers[event['publicKey'] as String];
+        if (server == null) {
+          return;
+        }
+        final probe = ServerProbe.fromJson(event);
+        _servers[server.publicKey] = server.withProbe(probe,
+          currentMedia: event['booth'] != null
+            ? CurrentMedia.fromJson(event['booth'] as Map<String, dynamic>)
+            : null,
+        );
+        break;
     }
-
     _updated();
-
-    return list;
   }
 
   void close() {
     _events.cancel();
+    _directoryEvents?.cancel();
     _onUpdate.close();
   }
 }
@@ -70,6 +96,8 @@ class UwaveServer {
   final String apiUrl;
   final String socketUrl;
   final CurrentMedia currentMedia;
+  /// The last probe of this server's API, or null if it has not been probed yet.
+  final ServerProbe probe;
 
   UwaveServer({
     this.publicKey,
@@ -80,6 +108,7 @@ class UwaveServer {
     this.apiUrl,
     this.socketUrl,
     this.currentMedia,
+    this.probe,
   });
 
   factory UwaveServer.fromJson(Map<String, dynamic> json) {
@@ -96,6 +125,40 @@ class UwaveServer {
         : null,
     );
   }
+
+  /// A copy with a probe result. Media from the probe is newer than the announced media, so it is
+  /// used if there is any.
+  UwaveServer withProbe(ServerProbe probe, {CurrentMedia currentMedia}) {
+    return UwaveServer(
+      publicKey: publicKey,
+      name: name,
+      subtitle: subtitle,
+      description: description,
+      url: url,
+      apiUrl: apiUrl,
+      socketUrl: socketUrl,
+      currentMedia: currentMedia ?? this.currentMedia,
+      probe: probe,
+    );
+  }
+}
+
+/// How a server's API answered when it was last checked.
+class ServerProbe {
+  final bool online;
+  /// Round trip time in milliseconds.
+  final int latency;
+  final int users;
+
+  ServerProbe({this.online, this.latency, this.users});
+
+  factory ServerProbe.fromJson(Map<String, dynamic> json) {
+    return ServerProbe(
+      online: json['online'] as bool,
+      latency: json['latency'] as int,
+      users: json['users'] as int,
+    );
+  }
 }
 
 class CurrentMedia {
@@ -1,4 +1,5 @@
 import 'dart:async' show Future, Stream, EventSink;
+import 'dart:convert' show json;
 import 'package:flutter/foundation.dart' show debugPrint;
 import 'package:flutter/services.dart' show EventChannel, MethodChannel;
 import './ws.dart' show WebSocket;
@@ -11,6 +12,7 @@ const _NO_MESSAGE = <String>[];
 typedef ReconnectCallback = Future<void> Function();
 class PlatformWebSocket extends WebSocket {
   final String _socketUrl;
+  final String _apiUrl;
   Stream<dynamic> _stream;
   // ignore: unused_field
   final ReconnectCallback _customReconnect;
@@ -29,11 +31,92 @@ class PlatformWebSocket extends WebSocket {
   @override
   EventSink get sink => _PlatformWebSocketSink();
 
-  PlatformWebSocket(String socketUrl, {ReconnectCallback reconnect})
+  PlatformWebSocket(String socketUrl, {String apiUrl, ReconnectCallback reconnect})
       : assert(socketUrl != null),
+        assert(apiUrl != null),
         _socketUrl = socketUrl,
+        _apiUrl = apiUrl,
         _customReconnect = reconnect {
-    _stream = _eventChannel.receiveBroadcastStream(_socketUrl);
+    _stream = _eventChannel.receiveBroadcastStream(<String, dynamic>{
+      'url': _socketUrl,
+      'apiUrl': _apiUrl,
+    });
+  }
+
+  /// Get byte counters for the socket connection.
+  ///
+  /// `payloadBytesIn`/`payloadBytesOut` count the UTF-8 bytes of the messages.
+  /// `estimatedWireBytesIn`/`estimatedWireBytesOut` add the WebSocket frame
+  /// headers. They are worked out from the payload, because the socket does not
+  /// expose its frames. TLS and TCP overhead is not included.
+  static Future<Map<String, int>> stats() async {
+    final stats = await _methodChannel.invokeMapMethod<String, int>('stats');
+    return stats;
+  }
+
+  /// Get the state of the room at [apiUrl] as it was at the end of the last session, or null.
+  ///
+  /// This has the shape of the `/now` response, with the tail of the chat in `chat`, and the
+  /// local time at which it was saved in `savedAt`.
+  static Future<Map<String, dynamic>> snapshot(String apiUrl) async {
+    final snapshot = await _methodChannel.invokeMethod<String>('snapshot', <String, dynamic>{
+      'apiUrl': apiUrl,
+    });
+    return snapshot != null ? json.decode(snapshot) as Map<String, dynamic> : null;
+  }
+
+  /// Get the live state of the room on the current connection, or null if there is none.
+  ///
+  /// This has the same shape as [snapshot], without `savedAt`. Its `revision` can be passed to
+  /// [roomDiff] later, and `votes` has the IDs of the users that voted on the current track.
+  static Future<Map<String, dynamic>> room() async {
+    final room = await _methodChannel.invokeMethod<String>('room');
+    return room != null ? json.decode(room) as Map<String, dynamic> : null;
+  }
+
+  /// Get what changed in the live room state after [revision], or null if there is no connection.
+  ///
+  /// Parts that did not change are left out, and `users` and `chat` only have the users and
+  /// messages that are new or changed. When `full` is true, [revision] was too old to compare
+  /// against, and [room] has to be used instead.
+  static Future<Map<String, dynamic>> roomDiff(int revision) async {
+    final diff = await _methodChannel.invokeMethod<String>('roomDiff', <String, dynamic>{
+      'since': revision,
+    });
+    return diff != null ? json.decode(diff) as Map<String, dynamic> : null;
+  }
+
+  /// Get the room state from the server, in the shape of the `/now` response.
+  ///
+  /// The request goes through the native client of the current connection, which has an HTTP
+  /// cache, and updates its room state with the response too. With a [token], the request is made
+  /// as that user, and so are all later ones.
+  static Future<Map<String, dynamic>> now({String token}) async {
+    final now = await _methodChannel.invokeMethod<String>('now', <String, dynamic>{
+      'token': token,
+    });
+    return json.decode(now) as Map<String, dynamic>;
+  }
+
+  /// Sign in through the native client. The result has the session token in `jwt`, and the user
+  /// in `user`. Later requests are made as that user.
+  static Future<Map<String, dynamic>> signIn(String email, String password) async {
+    final result = await _methodChannel.invokeMethod<String>('signIn', <String, dynamic>{
+      'email': email,
+      'password': password,
+    });
+    return json.decode(result) as Map<String, dynamic>;
+  }
+
+  /// Get a token that signs the socket in as the signed in user.
+  static Future<String> socketToken() async {
+    return await _methodChannel.invokeMethod<String>('socketToken');
+  }
+
+  /// The native side sends the token ahead of the messages waiting for it.
+  @override
+  void sendToken(String token) {
+    _methodChannel.invokeMethod<void>('sendToken', token);
   }
 
   @override
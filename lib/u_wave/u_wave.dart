@@ -1,6 +1,7 @@
 import 'dart:async';
 import 'dart:convert';
 import 'package:flutter/foundation.dart' show debugPrint;
+import 'package:flutter/services.dart' show PlatformException;
 import 'package:http/http.dart' as http;
 import './ws.dart' show WebSocket;
 import './dart_ws.dart' show DartWebSocket;
@@ -15,6 +16,8 @@ class _TimeSynchronizer {
   DateTime _referenceLocalTime;
   Duration _offset;
 
+  /// How far ahead the local clock is of the server's.
+  Duration get offset => _offset;
   /// Get the current (estimated) server time.
   DateTime get serverTime => toServer(DateTime.now());
   /// Set the server time.
@@ -169,6 +172,27 @@ class FavoriteMessage {
   }
 }
 
+/// Who voted on the current track.
+class RoomVotes {
+  final List<User> upvoters;
+  final List<User> downvoters;
+  final List<User> favoriters;
+
+  RoomVotes({this.upvoters, this.downvoters, this.favoriters});
+
+  factory RoomVotes.fromJson(Map<String, dynamic> json, {Map<String, User> users}) {
+    List<User> toUsers(dynamic ids) => ids
+        .cast<String>()
+        .map<User>((String id) => (users != null ? users[id] : null) ?? User(id: id))
+        .toList() as List<User>;
+    return RoomVotes(
+      upvoters: toUsers(json['upvotes']),
+      downvoters: toUsers(json['downvotes']),
+      favoriters: toUsers(json['favorites']),
+    );
+  }
+}
+
 // TODO make this able to be stored in the device's keychain
 class UwaveCredentials {
   final String email;
@@ -214,6 +238,8 @@ class UwaveClient {
       StreamController.broadcast();
   final StreamController<dynamic> _eventsController =
       StreamController<dynamic>.broadcast();
+  final StreamController<RoomVotes> _votesController =
+      StreamController.broadcast();
 
   UwaveCredentials _activeCredentials;
   User _loggedInUser;
@@ -221,18 +247,29 @@ class UwaveClient {
   Stream<ChatMessage> get chatMessages => _chatMessagesController.stream;
   Stream<HistoryEntry> get advanceMessages => _advanceController.stream;
   Stream<dynamic> get events => _eventsController.stream;
+  /// Who voted on the current track, whenever that changes. Only with the platform socket, which
+  /// keeps the room state natively.
+  Stream<RoomVotes> get votes => _votesController.stream;
   User get currentUser => _loggedInUser;
 
   final Map<String, User> _knownUsers = {};
+  final bool _usePlatformSocket;
+  bool _restoredSnapshot = false;
+
+  // The native room state revision that `_knownUsers` and `votes` are up to date with.
+  int _roomRevision = 0;
+  Future<void> _roomSync;
+  bool _roomSyncPending = false;
 
   UwaveClient({this.apiUrl, this.socketUrl, bool usePlatformSocket = false})
       : assert(apiUrl != null),
-        assert(socketUrl != null) {
+        assert(socketUrl != null),
+        _usePlatformSocket = usePlatformSocket {
     final reconnectHook = () async {
       await reconnect();
     };
     if (usePlatformSocket) {
-      _ws = PlatformWebSocket(socketUrl, reconnect: reconnectHook);
+      _ws = PlatformWebSocket(socketUrl, apiUrl: apiUrl, reconnect: reconnectHook);
     } else {
       _ws = DartWebSocket(socketUrl, reconnect: reconnectHook);
     }
@@ -256,16 +293,17 @@ class UwaveClient {
 
     _initSocket();
 
-    final headers = <String, String>{
-      'accept': 'application/json',
-    };
     if (credentials != null && credentials.hasToken) {
-      headers['authorization'] = 'JWT ${credentials.token}';
       _activeCredentials = credentials;
     }
 
-    final response = await _client.get('$apiUrl/now', headers: headers);
-    final nowJson = json.decode(response.body) as Map<String, dynamic>;
+    HistoryEntry restoredEntry;
+    if (_usePlatformSocket && !_restoredSnapshot) {
+      _restoredSnapshot = true;
+      restoredEntry = await _restoreSnapshot();
+    }
+
+    final nowJson = await _fetchNow(credentials != null && credentials.hasToken ? credentials.token : null);
     final state = UwaveNowState.fromJson(nowJson);
 
     _serverTime.serverTime = state.serverTime;
@@ -274,7 +312,12 @@ class UwaveClient {
       _knownUsers[user.id] = user;
     });
 
-    if (state.currentEntry != null) {
+    // Playback of the restored entry started from our own clock. Only restart it if that was
+    // too far off from the server's.
+    final alreadyPlaying = restoredEntry != null && state.currentEntry != null
+        && restoredEntry.id == state.currentEntry.id
+        && _serverTime.offset.abs() < _maxRestoredClockSkew;
+    if (state.currentEntry != null && !alreadyPlaying) {
       _advanceController.add(state.currentEntry);
     }
 
@@ -292,11 +335,121 @@ class UwaveClient {
       );
     }
 
+    if (_usePlatformSocket) {
+      _syncRoom();
+    }
+
     return state;
   }
 
+  /// Socket commands that change the users or the votes.
+  static const _roomCommands = {'advance', 'join', 'leave', 'nameChange', 'vote', 'favorite'};
+
+  /// Catch up with the native room state. Only the parts that changed since the last sync cross
+  /// the platform channel, and calls made while a sync is running are folded into one more.
+  void _syncRoom() {
+    if (_roomSync != null) {
+      _roomSyncPending = true;
+      return;
+    }
+    _roomSync = _fetchRoomChanges().catchError((dynamic err) {
+      debugPrint('Could not sync room state: $err');
+    }).whenComplete(() {
+      _roomSync = null;
+      if (_roomSyncPending) {
+        _roomSyncPending = false;
+        _syncRoom();
+      }
+    });
+  }
+
+  Future<void> _fetchRoomChanges() async {
+    var changes = await PlatformWebSocket.roomDiff(_roomRevision);
+    if (changes != null && changes['full'] == true) {
+      changes = await PlatformWebSocket.room();
+    }
+    if (changes == null || _votesController.isClosed) {
+      return;
+    }
+
+    _roomRevision = changes['revision'] as int;
+    for (final dynamic userJson in changes['users'] as List<dynamic>) {
+      final user = User.fromJson(userJson as Map<String, dynamic>);
+      final known = _knownUsers[user.id];
+      if (known != null) {
+        // Update in place, so chat messages and votes that refer to the user see the change.
+        known
+          ..username = user.username
+          ..avatarUrl = user.avatarUrl
+          ..roles = user.roles;
+      } else {
+        _knownUsers[user.id] = user;
+      }
+    }
+    // Departed users are kept, as chat messages still refer to them.
+
+    if (changes['votes'] != null) {
+      _votesController.add(RoomVotes.fromJson(changes['votes'] as Map<String, dynamic>, users: _knownUsers));
+    }
+  }
+
+  /// Get the `/now` state, as the user with the session [token] if there is one. With the platform
+  /// socket, this goes through the native client, which also updates its room state with it.
+  Future<Map<String, dynamic>> _fetchNow(String token) async {
+    if (_usePlatformSocket) {
+      return await PlatformWebSocket.now(token: token);
+    }
+
+    final headers = <String, String>{
+      'accept': 'application/json',
+    };
+    if (token != null) {
+      headers['authorization'] = 'JWT $token';
+    }
+    final response = await _client.get('$apiUrl/now', headers: headers);
+    return json.decode(response.body) as Map<String, dynamic>;
+  }
+
+  static const _maxRestoredClockSkew = Duration(seconds: 2);
+
+  /// Show the room as it was at the end of the last session, while the server is still being
+  /// asked for the real thing. Returns the booth entry that was restored, if it is still playing.
+  Future<HistoryEntry> _restoreSnapshot() async {
+    Map<String, dynamic> snapshot;
+    try {
+      snapshot = await PlatformWebSocket.snapshot(apiUrl);
+    } catch (err) {
+      debugPrint('Could not restore room snapshot: $err');
+    }
+    if (snapshot == null) {
+      return null;
+    }
+
+    // The snapshot has no server time. Assume our clock is right until `/now` tells us.
+    snapshot['time'] = DateTime.now().millisecondsSinceEpoch;
+    final state = UwaveNowState.fromJson(snapshot);
+    _serverTime.serverTime = state.serverTime;
+    _knownUsers.addAll(state.users);
+
+    for (final dynamic message in snapshot['chat'] as List<dynamic>) {
+      final chat = ChatMessage.fromJson(message as Map<String, dynamic>, users: _knownUsers, serverTime: _serverTime);
+      _chatMessagesController.add(chat);
+    }
+
+    final entry = state.currentEntry;
+    if (entry == null) {
+      return null;
+    }
+    final endsAt = entry.timestamp.add(Duration(seconds: entry.end - entry.start));
+    if (endsAt.isBefore(DateTime.now())) {
+      return null;
+    }
+    _advanceController.add(entry);
+    return entry;
+  }
+
   void _sendSocketToken(String socketToken) {
-    _ws.sink.add(socketToken);
+    _ws.sendToken(socketToken);
   }
 
   Future<void> _authenticateSocket() async {
@@ -304,14 +457,20 @@ class UwaveClient {
       throw 'Cannot authenticate to socket: no active session';
     }
 
-    final response = await _client.get('$apiUrl/auth/socket',
-      headers: {
-        'accept': 'application/json',
-        'authorization': 'JWT ${_activeCredentials.token}',
-      },
-    );
-    final socketJson = json.decode(response.body) as Map<String, dynamic>;
-    final dynamic socketToken = socketJson['data']['socketToken'];
+    dynamic socketToken;
+    if (_usePlatformSocket) {
+      // The native client is signed in with the same session.
+      socketToken = await PlatformWebSocket.socketToken();
+    } else {
+      final response = await _client.get('$apiUrl/auth/socket',
+        headers: {
+          'accept': 'application/json',
+          'authorization': 'JWT ${_activeCredentials.token}',
+        },
+      );
+      final socketJson = json.decode(response.body) as Map<String, dynamic>;
+      socketToken = socketJson['data']['socketToken'];
+    }
 
     if (socketToken is String) {
       _sendSocketToken(socketToken);
@@ -345,23 +504,36 @@ class UwaveClient {
   }
 
   Future<UwaveCredentials> signIn({String email, String password}) async {
-    final response = await _client.post('$apiUrl/auth/login',
-      body: json.encode({'email': email, 'password': password}),
-      headers: {
-        'accept': 'application/json',
-        'content-type': 'application/json',
-      },
-    );
+    String token;
+    Map<String, dynamic> userJson;
+    if (_usePlatformSocket) {
+      try {
+        final result = await PlatformWebSocket.signIn(email, password);
+        token = result['jwt'] as String;
+        userJson = result['user'] as Map<String, dynamic>;
+      } on PlatformException {
+        throw 'Sign in failed';
+      }
+    } else {
+      final response = await _client.post('$apiUrl/auth/login',
+        body: json.encode({'email': email, 'password': password}),
+        headers: {
+          'accept': 'application/json',
+          'content-type': 'application/json',
+        },
+      );
+
+      if (response.statusCode != 200) {
+        throw 'Sign in failed';
+      }
 
-    if (response.statusCode != 200) {
-      throw 'Sign in failed';
+      final authJson = json.decode(response.body) as Map<String, dynamic>;
+      token = authJson['meta']['jwt'] as String;
+      userJson = authJson['data'] as Map<String, dynamic>;
     }
 
-    final authJson = json.decode(response.body) as Map<String, dynamic>;
-    _activeCredentials = UwaveCredentials(
-      token: authJson['meta']['jwt'] as String,
-    );
-    _loggedInUser = User.fromJson(authJson['data'] as Map<String, dynamic>);
+    _activeCredentials = UwaveCredentials(token: token);
+    _loggedInUser = User.fromJson(userJson);
 
     _authenticateSocket();
 
@@ -369,6 +541,11 @@ class UwaveClient {
   }
 
   void _onMessage(_SocketMessage message) {
+    // The native room state has already applied the message.
+    if (_usePlatformSocket && _roomCommands.contains(message.command)) {
+      _syncRoom();
+    }
+
     if (message.command == 'chatMessage') {
       final chat = ChatMessage.fromJson(message.data as Map<String, dynamic>, users: _knownUsers, serverTime: _serverTime);
       _chatMessagesController.add(chat);
@@ -396,6 +573,7 @@ class UwaveClient {
     _advanceController.close();
     _chatMessagesController.close();
     _eventsController.close();
+    _votesController.close();
     _client.close();
     if (_ws != null) {
       _ws.sink.close();
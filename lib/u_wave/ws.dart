@@ -4,6 +4,9 @@ abstract class WebSocket {
   Stream<String> get stream => const Stream.empty();
   EventSink get sink => _NullStreamSink();
 
+  /// Authenticate the connection with a socket token.
+  void sendToken(String token) => sink.add(token);
+
   void init();
   void reconnect();
 }